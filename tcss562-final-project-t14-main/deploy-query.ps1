@@ -3,6 +3,8 @@ $FUNCTION_NAME = "QuerySQLite"
 $HANDLER = "lambda.QuerySQLite::handleRequest"
 $ROLE_ARN = "arn:aws:iam::110412263187:role/lambda-s3-sqlite-role"
 $JAR_FILE = "target\lambda_test-1.0-SNAPSHOT.jar"
+# Prefer the per-function slim jar when built with: mvn -P slim package
+if (Test-Path "target\lambda_test-1.0-SNAPSHOT-query.jar") { $JAR_FILE = "target\lambda_test-1.0-SNAPSHOT-query.jar" }
 $RUNTIME = "java11"
 $TIMEOUT = 300
 $MEMORY = 512
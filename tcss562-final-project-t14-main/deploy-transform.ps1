@@ -3,6 +3,8 @@ $FUNCTION_NAME = "TransformCSV"
 $HANDLER = "lambda.TransformCSV::handleRequest"
 $ROLE_ARN = "arn:aws:iam::110412263187:role/lambda-s3-sqlite-role"
 $JAR_FILE = "target\lambda_test-1.0-SNAPSHOT.jar"
+# Prefer the per-function slim jar when built with: mvn -P slim package
+if (Test-Path "target\lambda_test-1.0-SNAPSHOT-transform.jar") { $JAR_FILE = "target\lambda_test-1.0-SNAPSHOT-transform.jar" }
 $RUNTIME = "java11"
 $TIMEOUT = 900
 $MEMORY = 1024
@@ -0,0 +1,145 @@
+# Setup CoalesceUploads: batch CSV uploads into one transform and load
+
+$accountId = "110412263187"
+$roleName = "lambda-s3-sqlite-role"
+$bucketName = "tcss562-suzzanne-data"
+$region = "us-west-2"
+$functionArn = "arn:aws:lambda:${region}:${accountId}:function:CoalesceUploads"
+
+Write-Host "`n=====================================" -ForegroundColor Cyan
+Write-Host "Upload Coalescing Setup for TLQ Pipeline" -ForegroundColor Cyan
+Write-Host "=====================================`n" -ForegroundColor Cyan
+
+# Step 1: Deploy CoalesceUploads from the full jar (it runs both Transform and Load)
+Write-Host "Step 1: Deploying CoalesceUploads..." -ForegroundColor Yellow
+aws lambda create-function `
+  --function-name CoalesceUploads `
+  --runtime java17 `
+  --role "arn:aws:iam::${accountId}:role/${roleName}" `
+  --handler lambda.CoalesceUploads `
+  --zip-file fileb://target/lambda_test-1.0-SNAPSHOT.jar `
+  --timeout 900 `
+  --memory-size 2048 `
+  --environment "Variables={TLQ_COALESCE_BUCKET=${bucketName},TLQ_COALESCE_MAX_OBJECTS=50,TLQ_COALESCE_WINDOW_SECONDS=60}" `
+  --region $region 2>$null
+
+if ($LASTEXITCODE -ne 0) {
+    aws lambda update-function-code `
+      --function-name CoalesceUploads `
+      --zip-file fileb://target/lambda_test-1.0-SNAPSHOT.jar `
+      --region $region | Out-Null
+}
+Write-Host "✓ CoalesceUploads deployed" -ForegroundColor Green
+
+# Step 2: One instance at a time, since the queue manifest is rewritten whole
+Write-Host "`nStep 2: Setting reserved concurrency to 1..." -ForegroundColor Yellow
+aws lambda put-function-concurrency `
+  --function-name CoalesceUploads `
+  --reserved-concurrent-executions 1 `
+  --region $region | Out-Null
+
+if ($LASTEXITCODE -eq 0) {
+    Write-Host "✓ Reserved concurrency set" -ForegroundColor Green
+} else {
+    Write-Host "✗ Failed to set reserved concurrency" -ForegroundColor Red
+}
+
+# Step 3: Route CSV uploads to CoalesceUploads instead of TransformCSV
+Write-Host "`nStep 3: Creating EventBridge rule for uploads..." -ForegroundColor Yellow
+$eventPattern = @'
+{
+  "source": ["aws.s3"],
+  "detail-type": ["Object Created"],
+  "detail": {
+    "bucket": {
+      "name": ["tcss562-suzzanne-data"]
+    },
+    "object": {
+      "key": [{
+        "anything-but": {
+          "prefix": "databases/"
+        }
+      }]
+    }
+  }
+}
+'@ -replace "`n", "" -replace "`r", ""
+
+aws events put-rule `
+  --name "S3-CSV-Upload-Coalesce" `
+  --event-pattern $eventPattern `
+  --description "Queue uploaded CSVs for CoalesceUploads" `
+  --region $region
+
+if ($LASTEXITCODE -eq 0) {
+    Write-Host "✓ EventBridge rule created: S3-CSV-Upload-Coalesce" -ForegroundColor Green
+} else {
+    Write-Host "✗ Failed to create EventBridge rule" -ForegroundColor Red
+}
+
+# Step 4: Tick every minute so a window closes even when no further upload arrives
+Write-Host "`nStep 4: Creating schedule rule..." -ForegroundColor Yellow
+aws events put-rule `
+  --name "Coalesce-Uploads-Tick" `
+  --schedule-expression "rate(1 minute)" `
+  --description "Flush CoalesceUploads batches whose window has closed" `
+  --region $region
+
+if ($LASTEXITCODE -eq 0) {
+    Write-Host "✓ EventBridge rule created: Coalesce-Uploads-Tick" -ForegroundColor Green
+} else {
+    Write-Host "✗ Failed to create schedule rule" -ForegroundColor Red
+}
+
+# Step 5: Allow both rules to invoke the function
+Write-Host "`nStep 5: Adding Lambda permissions..." -ForegroundColor Yellow
+foreach ($rule in @("S3-CSV-Upload-Coalesce", "Coalesce-Uploads-Tick")) {
+    aws lambda add-permission `
+      --function-name CoalesceUploads `
+      --statement-id "EventBridgeInvoke-$rule" `
+      --action lambda:InvokeFunction `
+      --principal events.amazonaws.com `
+      --source-arn "arn:aws:events:${region}:${accountId}:rule/$rule" `
+      --region $region 2>$null | Out-Null
+}
+Write-Host "✓ Lambda permissions added" -ForegroundColor Green
+
+# Step 6: Connect the rules to CoalesceUploads
+Write-Host "`nStep 6: Connecting CoalesceUploads to EventBridge..." -ForegroundColor Yellow
+aws events put-targets `
+  --rule S3-CSV-Upload-Coalesce `
+  --targets "Id"="1","Arn"="$functionArn" `
+  --region $region
+
+$tickInput = "{`"bucket`":`"${bucketName}`"}" -replace '"', '\"'
+aws events put-targets `
+  --rule Coalesce-Uploads-Tick `
+  --targets "Id=1,Arn=$functionArn,Input=`"$tickInput`"" `
+  --region $region
+
+if ($LASTEXITCODE -eq 0) {
+    Write-Host "✓ CoalesceUploads connected to EventBridge" -ForegroundColor Green
+} else {
+    Write-Host "✗ Failed to add targets" -ForegroundColor Red
+}
+
+# Step 7: Stop the per-upload rules so each upload is processed once
+Write-Host "`nStep 7: Disabling per-upload Transform and Load rules..." -ForegroundColor Yellow
+aws events disable-rule --name S3-CSV-Upload-Trigger-Transform --region $region 2>$null
+aws events disable-rule --name S3-Transformed-CSV-Trigger-Load --region $region 2>$null
+Write-Host "✓ Per-upload rules disabled" -ForegroundColor Green
+
+Write-Host "`n=====================================" -ForegroundColor Green
+Write-Host "Upload Coalescing Setup Complete!" -ForegroundColor Green
+Write-Host "=====================================" -ForegroundColor Green
+
+Write-Host "`nPIPELINE FLOW:" -ForegroundColor Cyan
+Write-Host "  1. Upload CSVs to S3" -ForegroundColor White
+Write-Host "  2. CoalesceUploads adds each one to queue/pending.json" -ForegroundColor White
+Write-Host "  3. At 50 objects, 256 MB or 60 s the queue is flushed" -ForegroundColor White
+Write-Host "  4. One TransformCSV batch, then one append load into databases/tlq.db" -ForegroundColor White
+
+Write-Host "`nFLUSH NOW:" -ForegroundColor Cyan
+Write-Host "  aws lambda invoke --function-name CoalesceUploads --payload '{`"bucket`":`"${bucketName}`",`"flush`":true}' response.json" -ForegroundColor Gray
+Write-Host "`nMONITOR LOGS:" -ForegroundColor Cyan
+Write-Host "  aws logs tail /aws/lambda/CoalesceUploads --follow" -ForegroundColor Gray
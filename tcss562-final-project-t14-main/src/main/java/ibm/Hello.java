@@ -1,9 +1,12 @@
 package ibm;
-import com.google.gson.*;
-import saaf.Inspector;
-import java.util.HashMap;
+
+import com.google.gson.JsonObject;
+import lambda.Functions;
 
 /**
+ * IBM Cloud Functions / OpenWhisk version of lambda.Hello, run through the
+ * same shared path as the TLQ actions.
+ *
  * @author Robert Cordingly
  */
 public class Hello {
@@ -15,27 +18,6 @@ public class Hello {
      * @return JsonObject of output.
      */
     public static JsonObject main(JsonObject args) {
-        //Collect data
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
-        
-        //Add custom message and finish the function
-        String name = "World";
-        JsonPrimitive input = args.getAsJsonPrimitive("name");
-        if (input != null) {
-            name = input.getAsString();
-        }
-        inspector.addAttribute("message", "Hello " + name + "!");
-        
-        //Calculate CPU deltas.
-        inspector.inspectAllDeltas();
-        
-        //Convert Inspector Hashmap to JsonObject
-        JsonObject output = new JsonObject();
-        HashMap<String, Object> results = inspector.finish();
-        results.keySet().forEach((s) -> {
-            output.addProperty(s, String.valueOf(results.get(s)));
-        });
-        return output;
+        return OpenWhisk.invoke(Functions.HELLO, args);
     }
 }
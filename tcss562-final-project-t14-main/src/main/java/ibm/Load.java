@@ -0,0 +1,22 @@
+package ibm;
+
+import com.google.gson.JsonObject;
+import lambda.Functions;
+
+/**
+ * IBM Cloud Functions / OpenWhisk action that loads a transformed CSV into a
+ * SQLite database. Takes the same parameters and returns the same result as
+ * lambda.CreateSQLiteDB.
+ */
+public class Load {
+
+    /**
+     * IBM Cloud Functions default handler.
+     *
+     * @param args JsonObject of input Json.
+     * @return JsonObject of output.
+     */
+    public static JsonObject main(JsonObject args) {
+        return OpenWhisk.invoke(Functions.LOAD, args);
+    }
+}
@@ -0,0 +1,33 @@
+package ibm;
+
+import com.google.gson.JsonObject;
+import lambda.Functions;
+import lambda.LocalContext;
+
+/**
+ * Runs a TLQ function for an OpenWhisk action. The action's parameters are
+ * the request and its result is the response, exactly as on Lambda; the
+ * Context takes the action name and remaining time from the __OW_ACTION_NAME
+ * and __OW_DEADLINE variables the runtime sets, and logs go to stdout, which
+ * OpenWhisk keeps with the activation.
+ */
+final class OpenWhisk {
+
+    private static final int DEFAULT_TIMEOUT_MS = 60000;
+
+    private OpenWhisk() {}
+
+    static JsonObject invoke(String function, JsonObject args) {
+        return Functions.shared().invoke(function, args, context(function));
+    }
+
+    private static LocalContext context(String function) {
+        String action = System.getenv("__OW_ACTION_NAME");
+        String name = action == null || action.isEmpty() ? function : action.substring(action.lastIndexOf('/') + 1);
+        String deadline = System.getenv("__OW_DEADLINE");
+        long timeout = deadline == null || deadline.isEmpty() ? DEFAULT_TIMEOUT_MS
+                : Long.parseLong(deadline) - System.currentTimeMillis();
+        int memoryMB = (int) (Runtime.getRuntime().maxMemory() >> 20);
+        return new LocalContext(name, memoryMB, (int) Math.max(0, Math.min(Integer.MAX_VALUE, timeout)), false);
+    }
+}
@@ -0,0 +1,21 @@
+package ibm;
+
+import com.google.gson.JsonObject;
+import lambda.Functions;
+
+/**
+ * IBM Cloud Functions / OpenWhisk action that queries a SQLite database.
+ * Takes the same parameters and returns the same result as lambda.QuerySQLite.
+ */
+public class Query {
+
+    /**
+     * IBM Cloud Functions default handler.
+     *
+     * @param args JsonObject of input Json.
+     * @return JsonObject of output.
+     */
+    public static JsonObject main(JsonObject args) {
+        return OpenWhisk.invoke(Functions.QUERY, args);
+    }
+}
@@ -0,0 +1,91 @@
+package lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Comma-separated fields of a line located by offset, without decoding
+ * the line. Counts fields the way String.split(",") does: trailing empty
+ * fields are dropped, and line() is the line without them.
+ */
+public class ByteFields {
+
+    private byte[] bytes;
+    private int[] starts = new int[32];
+    private int count;
+
+    void split(byte[] line) {
+        bytes = line;
+        int n = 0;
+        starts[n++] = 0;
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == ',') {
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n * 2);
+                }
+                starts[n++] = i + 1;
+            }
+        }
+        if (n == starts.length) {
+            starts = Arrays.copyOf(starts, n + 1);
+        }
+        // starts[n] - 1 is the end of the last field
+        starts[n] = line.length + 1;
+        count = n;
+        if (line.length > 0) {
+            while (count > 0 && end(count - 1) == starts[count - 1]) {
+                count--;
+            }
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    private int end(int index) {
+        return starts[index + 1] - 1;
+    }
+
+    /** The field decoded, or null if the line has no field there */
+    String get(int index) {
+        if (index < 0 || index >= count) {
+            return null;
+        }
+        return new String(bytes, starts[index], end(index) - starts[index], StandardCharsets.UTF_8);
+    }
+
+    /** The field decoded and trimmed, as split(",")[index].trim() gives it; null if there is no field there */
+    String trimmed(int index) {
+        if (index < 0 || index >= count) {
+            return null;
+        }
+        int start = trimmedStart(index);
+        int end = Math.max(start, trimmedEnd(index));
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /** Start of the field with leading whitespace (as String.trim() sees it) skipped */
+    int trimmedStart(int index) {
+        int i = starts[index];
+        while (i < end(index) && (bytes[i] & 0xff) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /** End of the field with trailing whitespace skipped */
+    int trimmedEnd(int index) {
+        int i = end(index);
+        while (i > starts[index] && (bytes[i - 1] & 0xff) <= ' ') {
+            i--;
+        }
+        return i;
+    }
+
+    /** The line without the trailing empty fields split(",") drops; the same array if there are none */
+    byte[] line() {
+        int length = count == 0 ? 0 : end(count - 1);
+        return length == bytes.length || bytes.length == 0 ? bytes : Arrays.copyOf(bytes, length);
+    }
+}
@@ -0,0 +1,13 @@
+package lambda;
+
+import java.io.IOException;
+
+/**
+ * Source of CSV lines as raw UTF-8 bytes, for code that passes most of a
+ * line through without decoding it.
+ */
+public interface ByteLineReader extends LineSource {
+
+    /** Next line without its line ending, as an array the caller may keep; null at the end */
+    byte[] readLineBytes() throws IOException;
+}
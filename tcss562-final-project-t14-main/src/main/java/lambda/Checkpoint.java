@@ -0,0 +1,203 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Progress of a TransformCSV or CreateSQLiteDB run that stopped before the
+ * Lambda timeout, stored as checkpoints/<token>/checkpoint.json next to the
+ * state objects the handler saved with it.
+ *
+ * Handlers check a Deadline at batch boundaries; once the remaining time
+ * drops below the margin (request "checkpointMarginMs", default 60 s) they
+ * stop reading, save their state and return status "partial" with a
+ * continuationToken. Re-invoking with the same request plus that token
+ * resumes at the saved offset: uncompressed objects with a ranged read,
+ * compressed ones by decoding and skipping the bytes already consumed.
+ */
+public class Checkpoint {
+
+    public static final String PREFIX = "checkpoints/";
+    static final String FILE_NAME = "checkpoint.json";
+    static final long DEFAULT_MARGIN_MS = 60000;
+
+    /** Stops a load once the remaining invocation time drops below a margin */
+    public static class Deadline {
+        private final Context context;
+        private final long marginMs;
+        private boolean reached;
+
+        public Deadline(Context context, long marginMs) {
+            this.context = context;
+            this.marginMs = marginMs;
+        }
+
+        /** Check the clock; once reached it stays reached */
+        public boolean reached() {
+            if (!reached && context.getRemainingTimeInMillis() < marginMs) {
+                reached = true;
+                context.getLogger().log("Less than " + marginMs + " ms left, checkpointing\n");
+            }
+            return reached;
+        }
+
+        /** Whether reached() has returned true, without checking the clock again */
+        public boolean wasReached() {
+            return reached;
+        }
+    }
+
+    String token;
+    String handler;
+    String sourceKey;
+    long sourceLength;
+    String codec;
+    String headerLine;
+    long byteOffset;
+    long rowsConsumed;
+    int invocations;
+    List<String> objects = new ArrayList<>();
+    Map<String, Object> state = new LinkedHashMap<>();
+
+    Checkpoint() {
+    }
+
+    /** New checkpoint for a run over sourceKey */
+    static Checkpoint create(String handler, String sourceKey, long sourceLength) {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.token = UUID.randomUUID().toString();
+        checkpoint.handler = handler;
+        checkpoint.sourceKey = sourceKey;
+        checkpoint.sourceLength = sourceLength;
+        return checkpoint;
+    }
+
+    /** Key of a state object saved with this checkpoint */
+    String objectKey(String name) {
+        return PREFIX + token + "/" + name;
+    }
+
+    /** Margin from the request, or DEFAULT_MARGIN_MS */
+    static long marginMillis(Map<String, Object> request) {
+        Object margin = request.get("checkpointMarginMs");
+        return margin == null ? DEFAULT_MARGIN_MS : ((Number) margin).longValue();
+    }
+
+    /** Upload a state object and remember it for delete() */
+    void put(ObjectStore store, String bucket, String name, File file) throws IOException {
+        store.upload(bucket, objectKey(name), file);
+        if (!objects.contains(name)) {
+            objects.add(name);
+        }
+    }
+
+    /** Write the checkpoint itself; state objects must be uploaded first */
+    void save(ObjectStore store, String bucket) throws IOException {
+        invocations++;
+        File file = File.createTempFile("checkpoint", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+            }
+            store.upload(bucket, objectKey(FILE_NAME), file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checkpoint for a continuation token, checked against the handler and
+     * source object so a token cannot resume a different run.
+     */
+    static Checkpoint load(ObjectStore store, String bucket, String token, String handler, String sourceKey) throws IOException {
+        if (token.contains("/")) {
+            throw new IllegalArgumentException("Invalid continuationToken: " + token);
+        }
+        String key = PREFIX + token + "/" + FILE_NAME;
+        if (!store.exists(bucket, key)) {
+            throw new IllegalArgumentException("No checkpoint for continuationToken " + token);
+        }
+        Checkpoint checkpoint;
+        try (Reader reader = new InputStreamReader(store.open(bucket, key), StandardCharsets.UTF_8)) {
+            checkpoint = new Gson().fromJson(reader, Checkpoint.class);
+        }
+        if (!handler.equals(checkpoint.handler) || !sourceKey.equals(checkpoint.sourceKey)) {
+            throw new IllegalArgumentException("continuationToken " + token + " belongs to a " + checkpoint.handler
+                    + " run over " + checkpoint.sourceKey);
+        }
+        if (store.length(bucket, sourceKey) != checkpoint.sourceLength) {
+            throw new IllegalStateException(sourceKey + " changed since checkpoint " + token + " was taken");
+        }
+        return checkpoint;
+    }
+
+    /** Remove the checkpoint and its state objects once the run has finished */
+    void delete(ObjectStore store, String bucket, Context context) {
+        List<String> names = new ArrayList<>(objects);
+        names.add(FILE_NAME);
+        for (String name : names) {
+            try {
+                store.delete(bucket, objectKey(name));
+            } catch (Exception e) {
+                context.getLogger().log("Could not delete checkpoint object " + objectKey(name) + ": " + e.getMessage() + "\n");
+            }
+        }
+    }
+
+    /** Record where the next invocation picks up */
+    void advance(OffsetLineReader reader, long rows) {
+        advance(reader.getOffset(), reader.getCodec(), rows);
+    }
+
+    /** Record where the next invocation picks up, for a reader that has already read past offset */
+    void advance(long offset, String readerCodec, long rows) {
+        byteOffset = offset;
+        rowsConsumed += rows;
+        codec = readerCodec;
+    }
+
+    /** Running total of a numeric state entry across invocations */
+    long total(String name, long current) {
+        Object previous = state.get(name);
+        return current + (previous == null ? 0 : ((Number) previous).longValue());
+    }
+
+    /**
+     * Open the source object as an OffsetLineReader: from the start, or for
+     * a resumed run at the checkpoint's offset with its header line replayed.
+     */
+    static OffsetLineReader openSource(ObjectStore store, String bucket, String key, Checkpoint resume,
+                                       Context context) throws IOException {
+        if (resume != null && Compression.NONE.equals(resume.codec)) {
+            CountingInputStream raw = new CountingInputStream(store.open(bucket, key, resume.byteOffset));
+            context.getLogger().log("Input compression: none, resuming at byte " + resume.byteOffset + "\n");
+            return new OffsetLineReader(raw, raw, Compression.NONE, resume.byteOffset, resume.headerLine);
+        }
+
+        if (resume == null) {
+            return OffsetLineReader.open(store.open(bucket, key), key, context);
+        }
+
+        CountingInputStream raw = new CountingInputStream(store.open(bucket, key));
+        BufferedInputStream buffered = new BufferedInputStream(raw, 65536);
+        String codec = Compression.detect(buffered, key);
+        InputStream decoded = Compression.decompress(buffered, codec);
+
+        // Compressed streams cannot be entered mid-way; decode and discard up to the offset
+        long skipped = 0;
+        while (skipped < resume.byteOffset) {
+            long n = decoded.skip(resume.byteOffset - skipped);
+            if (n <= 0) {
+                throw new EOFException(key + " ended before checkpoint offset " + resume.byteOffset);
+            }
+            skipped += n;
+        }
+        context.getLogger().log("Input compression: " + codec + ", skipped " + skipped + " decoded bytes to resume\n");
+        return new OffsetLineReader(decoded, raw, codec, resume.byteOffset, resume.headerLine);
+    }
+}
@@ -0,0 +1,298 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Debounce stage between S3 "Object Created" events and the TLQ pipeline.
+ *
+ * Instead of a transform and a database rebuild per upload, each event adds
+ * its object to an UploadQueue. Once the queue holds maxObjects objects or
+ * maxBytes bytes, or its oldest entry has waited windowSeconds, the whole
+ * queue is claimed and run as one TransformCSV batch (combined output)
+ * followed by one append load of the result into dbName. A scheduled rule
+ * sending {"bucket": ...} closes windows no later upload arrives to close;
+ * {"bucket": ..., "flush": true} flushes right away.
+ *
+ * Limits come from the request, then TLQ_COALESCE_MAX_OBJECTS,
+ * TLQ_COALESCE_MAX_BYTES and TLQ_COALESCE_WINDOW_SECONDS, then the
+ * defaults (50 objects, 256 MB, 60 s). A failed batch goes back on the
+ * queue and its objects are retried one per flush until each has been
+ * tried MAX_ATTEMPTS times. A batch still claimed after claimTimeoutSeconds
+ * (TLQ_COALESCE_CLAIM_TIMEOUT_SECONDS, default 900, the longest a Lambda
+ * function can run) was cut off by a crash or timeout and counts as failed.
+ * Append loads skip Order IDs already loaded, so replaying a batch is
+ * harmless.
+ */
+public class CoalesceUploads implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
+
+    static {
+        Warmup.init("CoalesceUploads", true);
+    }
+
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Objects the pipeline writes itself; their events must not be queued */
+    private static final String[] OUTPUT_PREFIXES = {"databases/", "transformed/", "queue/", "checkpoints/"};
+
+    /** Queue updates within a container happen one at a time */
+    private static final Object QUEUE_LOCK = new Object();
+
+    private final ObjectStore store;
+
+    public CoalesceUploads() {
+        this(ObjectStore.defaultStore());
+    }
+
+    public CoalesceUploads(ObjectStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
+        HashMap<String, Object> response = new HashMap<>();
+
+        try {
+            Map<String, Object> startup = Warmup.firstInvocationReport();
+            if (startup != null) {
+                response.put("startup", startup);
+            }
+
+            String queueKey = (String) request.getOrDefault("queueKey", UploadQueue.DEFAULT_KEY);
+            long maxObjects = setting(request, "maxObjects", "TLQ_COALESCE_MAX_OBJECTS", 50);
+            long maxBytes = setting(request, "maxBytes", "TLQ_COALESCE_MAX_BYTES", 256L << 20);
+            long windowMs = setting(request, "windowSeconds", "TLQ_COALESCE_WINDOW_SECONDS", 60) * 1000;
+            long claimTimeoutMs = setting(request, "claimTimeoutSeconds", "TLQ_COALESCE_CLAIM_TIMEOUT_SECONDS", 900) * 1000;
+
+            // A single EventBridge event, a list of them, or a timer tick naming the bucket
+            List<Map<?, ?>> events = new ArrayList<>();
+            if (request.containsKey("events")) {
+                for (Object event : (List<?>) request.get("events")) {
+                    events.add((Map<?, ?>) event);
+                }
+            } else if (request.containsKey("detail")) {
+                events.add(request);
+            }
+
+            String bucket = (String) request.get("bucket");
+            if (bucket == null) {
+                bucket = System.getenv("TLQ_COALESCE_BUCKET");
+            }
+            int accepted = 0;
+            int ignored = 0;
+            List<String[]> uploads = new ArrayList<>();
+            for (Map<?, ?> event : events) {
+                Map<?, ?> detail = (Map<?, ?>) event.get("detail");
+                Map<?, ?> object = detail == null ? null : (Map<?, ?>) detail.get("object");
+                Map<?, ?> eventBucket = detail == null ? null : (Map<?, ?>) detail.get("bucket");
+                String name = eventBucket == null ? null : (String) eventBucket.get("name");
+                if (name != null) {
+                    if (bucket == null) {
+                        bucket = name;
+                    } else if (!bucket.equals(name)) {
+                        throw new IllegalArgumentException("Events from more than one bucket: " + bucket + ", " + name);
+                    }
+                }
+                String key = object == null ? null : (String) object.get("key");
+                if (key == null || name == null || !isUpload(key)) {
+                    ignored++;
+                    continue;
+                }
+                Object size = object.get("size");
+                uploads.add(new String[]{key, size == null ? "0" : size.toString()});
+            }
+            if (bucket == null) {
+                throw new IllegalArgumentException("No bucket: send S3 events or {\"bucket\": ...}");
+            }
+
+            synchronized (QUEUE_LOCK) {
+                UploadQueue queue = UploadQueue.load(store, bucket, queueKey);
+                long now = System.currentTimeMillis();
+                List<String> abandoned = releaseAbandoned(bucket, queueKey, queue, now - claimTimeoutMs, context);
+                if (!abandoned.isEmpty()) {
+                    response.put("abandonedBatches", abandoned);
+                }
+                for (String[] upload : uploads) {
+                    if (queue.add(upload[0], (long) Double.parseDouble(upload[1]), now)) {
+                        accepted++;
+                    }
+                }
+
+                long oldest = queue.oldestReceivedAt();
+                int pending = queue.pending().size();
+                String reason = null;
+                if (pending > 0) {
+                    if (Boolean.TRUE.equals(request.get("flush"))) {
+                        reason = "requested";
+                    } else if (pending >= maxObjects) {
+                        reason = "maxObjects";
+                    } else if (queue.totalBytes() >= maxBytes) {
+                        reason = "maxBytes";
+                    } else if (now - oldest >= windowMs) {
+                        reason = "window";
+                    }
+                }
+
+                response.put("accepted", accepted);
+                response.put("ignored", ignored);
+                if (reason == null) {
+                    if (!uploads.isEmpty() || !abandoned.isEmpty()) {
+                        queue.save(store, bucket, queueKey);
+                    }
+                    response.put("action", pending == 0 ? "idle" : "queued");
+                    response.put("pending", pending);
+                    response.put("inFlight", queue.entries.size() - pending);
+                    response.put("pendingBytes", queue.totalBytes());
+                    response.put("oldestAgeMs", oldest < 0 ? 0 : now - oldest);
+                    context.getLogger().log("Queued " + accepted + " uploads, " + pending + " pending\n");
+                } else {
+                    context.getLogger().log("Flushing " + pending + " uploads (" + reason + ")\n");
+                    response.put("action", "flushed");
+                    response.put("flushReason", reason);
+                    response.put("batch", flush(request, bucket, queueKey, queue, context));
+                    response.put("pending", queue.pending().size());
+                }
+            }
+
+            response.put("status", "success");
+            response.put("queueLocation", "s3://" + bucket + "/" + queueKey);
+
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            context.getLogger().log("ERROR: " + e.getMessage() + "\n");
+            e.printStackTrace();
+        }
+
+        return response;
+    }
+
+    /**
+     * Claim the pending entries and run their objects through one transform
+     * and one append load. The entries stay in the saved queue, marked as
+     * claimed, until the load has committed; if this invocation dies first,
+     * releaseAbandoned() in a later one puts them back.
+     */
+    private Map<String, Object> flush(Map<String, Object> request, String bucket, String queueKey, UploadQueue queue,
+                                      Context context) throws Exception {
+        UploadQueue.Batch batch = queue.claim();
+        String batchKey = UploadQueue.batchKey(queueKey, batch.id);
+        UploadQueue.write(store, bucket, batchKey, batch);
+        queue.save(store, bucket, queueKey);
+
+        List<String> keys = new ArrayList<>();
+        for (UploadQueue.Entry entry : batch.entries) {
+            keys.add(entry.key);
+        }
+        String transformedKey = "transformed/batch-" + batch.id + ".csv";
+
+        HashMap<String, Object> transformRequest = new HashMap<>();
+        transformRequest.put("sourceBucket", bucket);
+        transformRequest.put("sourceKeys", keys);
+        transformRequest.put("output", "combined");
+        transformRequest.put("destBucket", bucket);
+        transformRequest.put("destKey", transformedKey);
+        copy(request, transformRequest, "concurrency", "sortBy", "summaries");
+        batch.transform = new TransformCSV(store).handleRequest(transformRequest, context);
+        batch.transform.remove("startup");
+
+        if ("success".equals(batch.transform.get("status"))) {
+            HashMap<String, Object> loadRequest = new HashMap<>();
+            loadRequest.put("bucket", bucket);
+            loadRequest.put("key", transformedKey);
+            loadRequest.put("dbName", request.getOrDefault("dbName", "tlq.db"));
+            loadRequest.put("mode", "append");
+            copy(request, loadRequest, "tableName", "indexes");
+            batch.load = new CreateSQLiteDB(store).handleRequest(loadRequest, context);
+            batch.load.remove("startup");
+            store.delete(bucket, transformedKey);
+        }
+
+        if (batch.load != null && "success".equals(batch.load.get("status"))) {
+            batch.status = "done";
+        } else {
+            batch.status = "failed";
+            batch.message = (String) (batch.load != null ? batch.load : batch.transform).get("message");
+        }
+        UploadQueue.write(store, bucket, batchKey, batch);
+        if (batch.status.equals("done")) {
+            queue.complete(batch.id);
+        } else {
+            queue.release(batch.id, MAX_ATTEMPTS);
+        }
+        queue.save(store, bucket, queueKey);
+        context.getLogger().log("Batch " + batch.id + " " + batch.status + "\n");
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", batch.id);
+        result.put("status", batch.status);
+        result.put("objects", keys.size());
+        result.put("location", "s3://" + bucket + "/" + batchKey);
+        if (batch.message != null) {
+            result.put("message", batch.message);
+        }
+        if (batch.load != null) {
+            result.put("rowsInserted", batch.load.get("rowsInserted"));
+            result.put("totalRows", batch.load.get("totalRows"));
+            result.put("dbS3Location", batch.load.get("dbS3Location"));
+        }
+        return result;
+    }
+
+    /**
+     * Treat batches claimed before cutoff as failed: their entries go back
+     * on the queue and their records are marked "abandoned".
+     *
+     * @return The ids of the batches released.
+     */
+    private List<String> releaseAbandoned(String bucket, String queueKey, UploadQueue queue, long cutoff,
+                                          Context context) throws IOException {
+        List<String> released = new ArrayList<>();
+        for (String batchId : queue.claimedBefore(cutoff)) {
+            List<UploadQueue.Entry> dropped = queue.release(batchId, MAX_ATTEMPTS);
+            String batchKey = UploadQueue.batchKey(queueKey, batchId);
+            UploadQueue.Batch batch = UploadQueue.readBatch(store, bucket, batchKey);
+            if (batch != null && "claimed".equals(batch.status)) {
+                batch.status = "abandoned";
+                batch.message = "Did not finish within the claim timeout";
+                UploadQueue.write(store, bucket, batchKey, batch);
+            }
+            context.getLogger().log("Batch " + batchId + " abandoned; requeued its objects, dropped "
+                    + dropped.size() + " out of attempts\n");
+            released.add(batchId);
+        }
+        return released;
+    }
+
+    /** Whether an uploaded key is pipeline input: a CSV the pipeline did not write */
+    static boolean isUpload(String key) {
+        for (String prefix : OUTPUT_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return false;
+            }
+        }
+        String name = Compression.stripSuffix(key.substring(key.lastIndexOf('/') + 1)).toLowerCase();
+        return name.endsWith(".csv") && !name.endsWith(".transformed.csv") && !name.startsWith("transformed-");
+    }
+
+    /** Request value, else environment variable, else the default */
+    private static long setting(Map<String, Object> request, String name, String env, long defaultValue) {
+        Object value = request.get(name);
+        if (value != null) {
+            return ((Number) value).longValue();
+        }
+        String fromEnv = System.getenv(env);
+        return fromEnv == null || fromEnv.isEmpty() ? defaultValue : Long.parseLong(fromEnv);
+    }
+
+    private static void copy(Map<String, Object> from, Map<String, Object> to, String... names) {
+        for (String name : names) {
+            if (from.containsKey(name)) {
+                to.put(name, from.get(name));
+            }
+        }
+    }
+}
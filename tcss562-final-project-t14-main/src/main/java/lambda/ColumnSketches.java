@@ -0,0 +1,289 @@
+package lambda;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Sketches CreateSQLiteDB builds while loading a table and stores in the
+ * <table>_sketches side table, so QuerySQLite's "approx" queries answer
+ * distinct counts and percentiles without scanning the table.
+ *
+ * Every column gets a HyperLogLog; columns whose values all parse as numbers
+ * also get a KLL quantile sketch. Both are kept for the whole table and for
+ * each value of the GROUP_COLUMNS. Both sketch types merge, so append loads
+ * extend the stored sketches and a sharded query combines its shards'.
+ */
+public class ColumnSketches {
+
+    /** Columns sketches are also kept per value of */
+    static final String[] GROUP_COLUMNS = {"Region", "Item_Type"};
+
+    /** Sketches for one (group column, group value) pair; "" / "" is the whole table */
+    private static class Group {
+        final String column;
+        final String value;
+        final HyperLogLog[] distinct;
+        final KllSketch[] quantiles;
+
+        Group(String column, String value, int columns) {
+            this.column = column;
+            this.value = value;
+            this.distinct = new HyperLogLog[columns];
+            this.quantiles = new KllSketch[columns];
+        }
+    }
+
+    private final String[] columns;
+    private final int[] groupIndexes;
+    private final boolean[] numeric;
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final double[] parsed;
+
+    public ColumnSketches(String[] columns) {
+        this.columns = columns;
+        List<Integer> found = new ArrayList<>();
+        for (String group : GROUP_COLUMNS) {
+            int index = CreateSQLiteDB.indexOf(columns, group);
+            if (index >= 0) {
+                found.add(index);
+            }
+        }
+        this.groupIndexes = new int[found.size()];
+        for (int g = 0; g < groupIndexes.length; g++) {
+            groupIndexes[g] = found.get(g);
+        }
+        this.numeric = new boolean[columns.length];
+        Arrays.fill(numeric, true);
+        this.parsed = new double[columns.length];
+    }
+
+    public static String tableName(String tableName) {
+        return tableName + "_sketches";
+    }
+
+    /** Add one CSV row */
+    public void add(String[] parts) {
+        for (int c = 0; c < columns.length; c++) {
+            parsed[c] = Double.NaN;
+            if (numeric[c] && c < parts.length) {
+                String value = parts[c].trim();
+                if (!value.isEmpty()) {
+                    try {
+                        parsed[c] = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        numeric[c] = false;
+                    }
+                }
+            }
+        }
+
+        addToGroup(group("", ""), parts);
+        for (int index : groupIndexes) {
+            addToGroup(group(columns[index], index < parts.length ? parts[index].trim() : ""), parts);
+        }
+    }
+
+    private void addToGroup(Group group, String[] parts) {
+        for (int c = 0; c < columns.length && c < parts.length; c++) {
+            group.distinct[c].add(parts[c].trim());
+            if (numeric[c] && !Double.isNaN(parsed[c])) {
+                group.quantiles[c].add(parsed[c]);
+            }
+        }
+    }
+
+    private Group group(String column, String value) {
+        String key = column + '\u0000' + value;
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(column, value, columns.length);
+            for (int c = 0; c < columns.length; c++) {
+                group.distinct[c] = new HyperLogLog();
+                group.quantiles[c] = new KllSketch();
+            }
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * Fold in the sketches of other rows of the same columns, e.g. another
+     * part of a parallel load. A column stays numeric only if it is in both.
+     */
+    public void merge(ColumnSketches other) {
+        for (int c = 0; c < columns.length; c++) {
+            numeric[c] &= other.numeric[c];
+        }
+        for (Group theirs : other.groups.values()) {
+            Group ours = group(theirs.column, theirs.value);
+            for (int c = 0; c < columns.length; c++) {
+                ours.distinct[c].merge(theirs.distinct[c]);
+                ours.quantiles[c].merge(theirs.quantiles[c]);
+            }
+        }
+    }
+
+    /** Replace the side table with the current sketches */
+    public void write(Connection conn, String tableName) throws SQLException {
+        String sketchTable = tableName(tableName);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + sketchTable);
+            stmt.execute("CREATE TABLE " + sketchTable + " (kind TEXT, column_name TEXT, group_column TEXT, "
+                    + "group_value TEXT, data BLOB, PRIMARY KEY (kind, column_name, group_column, group_value))");
+        }
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + sketchTable + " VALUES (?, ?, ?, ?, ?)")) {
+            for (Group group : groups.values()) {
+                for (int c = 0; c < columns.length; c++) {
+                    insert(ps, "hll", columns[c], group, group.distinct[c].toBytes());
+                    if (numeric[c] && group.quantiles[c].getCount() > 0) {
+                        insert(ps, "kll", columns[c], group, group.quantiles[c].toBytes());
+                    }
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static void insert(PreparedStatement ps, String kind, String column, Group group, byte[] data) throws SQLException {
+        ps.setString(1, kind);
+        ps.setString(2, column);
+        ps.setString(3, group.column);
+        ps.setString(4, group.value);
+        ps.setBytes(5, data);
+        ps.addBatch();
+    }
+
+    /**
+     * Sketches stored by an earlier load, or null if the database has none.
+     * A column without a whole-table KLL sketch is treated as non-numeric.
+     */
+    public static ColumnSketches read(Connection conn, String tableName, String[] columns) throws SQLException {
+        ColumnSketches sketches = new ColumnSketches(columns);
+        Arrays.fill(sketches.numeric, false);
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT kind, column_name, group_column, group_value, data FROM "
+                     + tableName(tableName))) {
+            while (rs.next()) {
+                int c = CreateSQLiteDB.indexOf(columns, rs.getString(2));
+                if (c < 0) {
+                    continue;
+                }
+                Group group = sketches.group(rs.getString(3), rs.getString(4));
+                if (rs.getString(1).equals("hll")) {
+                    group.distinct[c] = HyperLogLog.fromBytes(rs.getBytes(5));
+                } else {
+                    group.quantiles[c] = KllSketch.fromBytes(rs.getBytes(5));
+                    if (group.column.isEmpty()) {
+                        sketches.numeric[c] = true;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            if (e.getMessage() != null && e.getMessage().contains("no such table")) {
+                return null;
+            }
+            throw e;
+        }
+        return sketches;
+    }
+
+    /** Build sketches from every row already in the table */
+    public static ColumnSketches scan(Connection conn, String tableName, String[] columns) throws SQLException {
+        ColumnSketches sketches = new ColumnSketches(columns);
+        String[] parts = new String[columns.length];
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+            while (rs.next()) {
+                for (int c = 0; c < columns.length; c++) {
+                    String value = rs.getString(c + 1);
+                    parts[c] = value == null ? "" : value;
+                }
+                sketches.add(parts);
+            }
+        }
+        return sketches;
+    }
+
+    /** SELECT of the stored sketches an approx query needs */
+    static String buildQuery(String tableName, String function, String column, String groupBy) {
+        String kind = kindOf(function);
+        String groupColumn = groupBy == null ? "" : groupBy;
+        if (!groupColumn.isEmpty() && !Arrays.asList(GROUP_COLUMNS).contains(groupColumn)) {
+            throw new IllegalArgumentException("Approximate queries can only group by " + String.join(" or ", GROUP_COLUMNS));
+        }
+        return "SELECT group_value, data FROM " + tableName(tableName) + " WHERE kind = '" + kind
+                + "' AND column_name = '" + column.replace("'", "''") + "' AND group_column = '" + groupColumn + "'";
+    }
+
+    /**
+     * Merge sketch rows from one or more databases by group value and turn
+     * them into result rows: approx_distinct for DISTINCT, or count and one
+     * "p<percent>" entry per requested quantile for QUANTILE.
+     */
+    static List<Map<String, Object>> estimate(List<Map<String, Object>> sketchRows, String function, String column,
+                                              String groupBy, List<Number> quantiles) {
+        boolean distinct = kindOf(function).equals("hll");
+        if (sketchRows.isEmpty()) {
+            throw new IllegalArgumentException("No " + (distinct ? "distinct-count" : "quantile")
+                    + " sketch for column " + column + (distinct ? "" : " (is it numeric?)"));
+        }
+
+        Map<String, Object> merged = new TreeMap<>();
+        for (Map<String, Object> row : sketchRows) {
+            String value = (String) row.get("group_value");
+            byte[] data = (byte[]) row.get("data");
+            if (distinct) {
+                HyperLogLog sketch = HyperLogLog.fromBytes(data);
+                HyperLogLog existing = (HyperLogLog) merged.putIfAbsent(value, sketch);
+                if (existing != null) {
+                    existing.merge(sketch);
+                }
+            } else {
+                KllSketch sketch = KllSketch.fromBytes(data);
+                KllSketch existing = (KllSketch) merged.putIfAbsent(value, sketch);
+                if (existing != null) {
+                    existing.merge(sketch);
+                }
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : merged.entrySet()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            if (groupBy != null && !groupBy.isEmpty()) {
+                row.put(groupBy, entry.getKey());
+            }
+            if (distinct) {
+                row.put("approx_distinct", ((HyperLogLog) entry.getValue()).estimate());
+                row.put("standard_error", HyperLogLog.STANDARD_ERROR);
+            } else {
+                KllSketch sketch = (KllSketch) entry.getValue();
+                row.put("count", sketch.getCount());
+                for (Number q : quantiles) {
+                    String label = "p" + new BigDecimal(String.valueOf(q.doubleValue() * 100)).stripTrailingZeros().toPlainString();
+                    row.put(label, sketch.quantile(q.doubleValue()));
+                }
+                row.put("rank_error", sketch.isEstimate() ? KllSketch.RANK_ERROR : 0.0);
+            }
+            results.add(row);
+        }
+        if (distinct) {
+            results.sort((a, b) -> Long.compare((Long) b.get("approx_distinct"), (Long) a.get("approx_distinct")));
+        }
+        return results;
+    }
+
+    /** Sketch kind answering an approx function: DISTINCT or QUANTILE */
+    private static String kindOf(String function) {
+        switch (function.toUpperCase()) {
+            case "DISTINCT":
+                return "hll";
+            case "QUANTILE":
+            case "QUANTILES":
+                return "kll";
+            default:
+                throw new IllegalArgumentException("Unsupported approx function: " + function + " (use DISTINCT or QUANTILE)");
+        }
+    }
+}
@@ -0,0 +1,689 @@
+package lambda;
+
+import org.crac.Resource;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory, column-oriented copy of a SQLite table for warm containers.
+ *
+ * The table is read once into primitive arrays and kept statically, keyed by
+ * database file, so later queries run as tight loops over arrays instead of
+ * JDBC row-by-row reads:
+ *
+ *   - columns with at most 65535 distinct values are dictionary coded into a
+ *     short[] whose dictionary is sorted, so code order is SQLite's TEXT
+ *     order (NULL first, then BINARY collation);
+ *   - columns whose values are all numbers also get a double[] for SUM/AVG.
+ *
+ * Every column in the TLQ schema is TEXT, so ORDER BY, MIN and MAX compare
+ * strings, while SUM and AVG convert to numbers; the engine keeps both
+ * semantics and sums with the same compensated summation as SQLite. Rows
+ * returned to the caller are re-read from SQLite by rowid so they are
+ * byte-for-byte what SELECT * returns. Anything the engine cannot answer
+ * the way SQLite would returns null and the caller falls back to SQLite.
+ *
+ * The cache holds at most a byte budget of tables (estimated from their
+ * arrays and dictionaries), by default half the function's memory; the
+ * least recently used tables are dropped to make room, and a table larger
+ * than the whole budget is built for the query at hand but not kept.
+ */
+public class ColumnarTable {
+
+    private static final ConcurrentHashMap<String, ColumnarTable> TABLES = new ConcurrentHashMap<>();
+
+    static {
+        Warmup.register(new TableCache());
+    }
+
+    /**
+     * Empties the cache before a snapshot: the tables describe files in this
+     * container's /tmp and are rebuilt on demand after restore.
+     */
+    private static class TableCache implements Resource {
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+            TABLES.clear();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+            // Rebuilt by the next get(..., true)
+        }
+    }
+
+    /** Dictionary limit: codes are unsigned 16-bit with code 0 reserved for NULL */
+    private static final int MAX_DICTIONARY = 65535;
+
+    /** Tables with more rows than this aggregate over parallel segments */
+    private static final int PARALLEL_THRESHOLD = 1 << 17;
+
+    /** One column's arrays */
+    static class Column {
+        final String name;
+        String[] dictionary;
+        short[] codes;
+        double[] numbers;
+        boolean integral;
+        int[] descending;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        int code(int row) {
+            return codes[row] & 0xffff;
+        }
+    }
+
+    private final File dbFile;
+    private final String table;
+    private final long fileLength;
+    private final long fileModified;
+    private final long[] rowids;
+    private final int rowCount;
+    private final Map<String, Column> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Set<String> indexedColumns = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private final long loadMs;
+
+    /** Estimated heap held by the arrays and dictionaries; grows as sort orders are built */
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long lastUsed;
+
+    private ColumnarTable(File dbFile, String table) throws SQLException {
+        long start = System.nanoTime();
+        this.dbFile = dbFile;
+        this.table = table;
+        this.fileLength = dbFile.length();
+        this.fileModified = dbFile.lastModified();
+
+        try (Connection conn = connect();
+             Statement stmt = conn.createStatement()) {
+            int count;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                count = rs.next() ? rs.getInt(1) : 0;
+            }
+            rowCount = count;
+            rowids = new long[count];
+
+            List<String> indexes = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("PRAGMA index_list(" + table + ")")) {
+                while (rs.next()) {
+                    indexes.add(rs.getString("name"));
+                }
+            }
+            for (String index : indexes) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA index_info(\"" + index + "\")")) {
+                    if (rs.next()) {
+                        indexedColumns.add(rs.getString("name"));
+                    }
+                }
+            }
+
+            try (ResultSet rs = stmt.executeQuery("SELECT rowid, * FROM " + table + " ORDER BY rowid")) {
+                ResultSetMetaData metadata = rs.getMetaData();
+                int columnCount = metadata.getColumnCount() - 1;
+                ColumnBuilder[] builders = new ColumnBuilder[columnCount];
+                for (int c = 0; c < columnCount; c++) {
+                    builders[c] = new ColumnBuilder(metadata.getColumnName(c + 2), count);
+                }
+
+                int row = 0;
+                while (rs.next() && row < count) {
+                    rowids[row] = rs.getLong(1);
+                    for (int c = 0; c < columnCount; c++) {
+                        builders[c].add(row, rs.getString(c + 2));
+                    }
+                    row++;
+                }
+                for (ColumnBuilder builder : builders) {
+                    Column column = builder.build();
+                    columns.put(column.name, column);
+                }
+            }
+        }
+        loadMs = (System.nanoTime() - start) / 1_000_000;
+
+        long estimate = 8L * rowCount;
+        for (Column column : columns.values()) {
+            estimate += column.codes != null ? 2L * rowCount : 0;
+            estimate += column.numbers != null ? 8L * rowCount : 0;
+            if (column.dictionary != null) {
+                for (String value : column.dictionary) {
+                    estimate += value == null ? 8 : 56 + value.length();
+                }
+            }
+        }
+        bytes.set(estimate);
+    }
+
+    /**
+     * Columnar copy of the table, building it if needed. A copy is rebuilt
+     * when the database file changes on disk.
+     *
+     * @param load build the table if it is not in memory yet; when false,
+     *             return null instead.
+     * @param budgetBytes most bytes all cached tables may hold together.
+     */
+    public static ColumnarTable get(File dbFile, String table, boolean load, long budgetBytes) throws SQLException {
+        String key = dbFile.getAbsolutePath() + "|" + table.toLowerCase();
+        ColumnarTable cached = TABLES.get(key);
+        if (cached != null && cached.fileLength == dbFile.length() && cached.fileModified == dbFile.lastModified()) {
+            cached.lastUsed = System.nanoTime();
+            return cached;
+        }
+        if (!load) {
+            return null;
+        }
+        synchronized (TABLES) {
+            cached = TABLES.get(key);
+            if (cached == null || cached.fileLength != dbFile.length() || cached.fileModified != dbFile.lastModified()) {
+                // Make room first, taking the file size as the estimate, so old and new tables never both
+                // fill the heap; a file bigger than the budget will hardly fit, so nothing is dropped for it
+                TABLES.remove(key);
+                if (dbFile.length() <= budgetBytes) {
+                    evictLeastRecentlyUsed(budgetBytes - dbFile.length());
+                }
+                cached = new ColumnarTable(dbFile, table);
+                cached.lastUsed = System.nanoTime();
+                if (cached.bytes.get() <= budgetBytes) {
+                    TABLES.put(key, cached);
+                    evictLeastRecentlyUsed(budgetBytes);
+                }
+            }
+            cached.lastUsed = System.nanoTime();
+            return cached;
+        }
+    }
+
+    /** Drop the least recently used tables until the rest hold at most budgetBytes */
+    private static void evictLeastRecentlyUsed(long budgetBytes) {
+        List<Map.Entry<String, ColumnarTable>> entries = new ArrayList<>(TABLES.entrySet());
+        long total = 0;
+        for (Map.Entry<String, ColumnarTable> entry : entries) {
+            total += entry.getValue().bytes.get();
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+        for (int i = 0; i < entries.size() && total > budgetBytes; i++) {
+            TABLES.remove(entries.get(i).getKey(), entries.get(i).getValue());
+            total -= entries.get(i).getValue().bytes.get();
+        }
+    }
+
+    /**
+     * Default cache budget: TLQ_COLUMNAR_MB if set, otherwise half the
+     * function's memory, and never more than half the heap.
+     */
+    public static long budgetBytes(int memoryLimitMB) {
+        String value = System.getenv("TLQ_COLUMNAR_MB");
+        long heapHalf = Runtime.getRuntime().maxMemory() / 2;
+        if (value != null && !value.isEmpty()) {
+            return Long.parseLong(value) << 20;
+        }
+        return memoryLimitMB > 0 ? Math.min(heapHalf, ((long) memoryLimitMB << 20) / 2) : heapHalf;
+    }
+
+    /** Estimated bytes held by every cached table */
+    static long cachedBytes() {
+        long total = 0;
+        for (ColumnarTable table : TABLES.values()) {
+            total += table.bytes.get();
+        }
+        return total;
+    }
+
+    /** Drop every table cached for the given database file */
+    static void evict(File dbFile) {
+        String prefix = dbFile.getAbsolutePath() + "|";
+        TABLES.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Time spent reading the table into memory */
+    public long getLoadMs() {
+        return loadMs;
+    }
+
+    /** SELECT COUNT(*) */
+    public List<Map<String, Object>> count() {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("total", rowCount);
+        return Collections.singletonList(row);
+    }
+
+    /**
+     * SELECT groupBy, function(column) ... GROUP BY groupBy ORDER BY value DESC
+     * for SUM, COUNT, AVG, MIN and MAX. Needs a dictionary-coded group
+     * column; SUM and AVG need a numeric column, MIN and MAX a dictionary.
+     */
+    public List<Map<String, Object>> aggregate(String groupBy, String function, String columnName) {
+        Column group = columns.get(groupBy);
+        Column measure = columns.get(columnName);
+        String fn = function.toUpperCase();
+        if (group == null || group.dictionary == null || measure == null) {
+            return null;
+        }
+        boolean numeric = fn.equals("SUM") || fn.equals("AVG");
+        boolean ordered = fn.equals("MIN") || fn.equals("MAX");
+        if (!numeric && !ordered && !fn.equals("COUNT")
+                || numeric && measure.numbers == null || ordered && measure.dictionary == null
+                || measure.numbers == null && measure.dictionary == null) {
+            return null;
+        }
+
+        int groups = group.dictionary.length;
+        GroupState state = rowCount > PARALLEL_THRESHOLD
+                ? IntStream.range(0, segments()).parallel()
+                    .mapToObj(s -> aggregateSegment(group, measure, groups, segmentStart(s), segmentStart(s + 1)))
+                    .reduce(GroupState::merge).orElse(new GroupState(groups))
+                : aggregateSegment(group, measure, groups, 0, rowCount);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int g = 0; g < groups; g++) {
+            if (state.rows[g] == 0) {
+                continue;
+            }
+            Object value;
+            switch (fn) {
+                case "COUNT":
+                    value = narrow(state.count[g]);
+                    break;
+                case "AVG":
+                    value = state.count[g] == 0 ? null : (state.sum[g] + state.error[g]) / state.count[g];
+                    break;
+                case "MIN":
+                    value = state.min[g] < 0 ? null : measure.dictionary[state.min[g]];
+                    break;
+                case "MAX":
+                    value = state.max[g] < 0 ? null : measure.dictionary[state.max[g]];
+                    break;
+                default:
+                    value = state.count[g] == 0 ? null
+                            : measure.integral ? narrow((long) state.sum[g]) : (Object) (state.sum[g] + state.error[g]);
+                    break;
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put(group.name, group.dictionary[g]);
+            row.put("aggregate_value", value);
+            results.add(row);
+        }
+        results.sort((a, b) -> QuerySQLite.compareValues(b.get("aggregate_value"), a.get("aggregate_value")));
+        return results;
+    }
+
+    /** Per-group partial state over one segment of rows */
+    private static class GroupState {
+        final long[] rows;
+        final long[] count;
+        final double[] sum;
+        final double[] error;
+        final int[] min;
+        final int[] max;
+
+        GroupState(int groups) {
+            rows = new long[groups];
+            count = new long[groups];
+            sum = new double[groups];
+            error = new double[groups];
+            min = new int[groups];
+            max = new int[groups];
+            Arrays.fill(min, -1);
+            Arrays.fill(max, -1);
+        }
+
+        /** Kahan-Babuska-Neumaier step, the compensated summation SQLite's sum() uses */
+        void add(int g, double value) {
+            double s = sum[g];
+            double t = s + value;
+            error[g] += Math.abs(s) > Math.abs(value) ? (s - t) + value : (value - t) + s;
+            sum[g] = t;
+        }
+
+        GroupState merge(GroupState other) {
+            for (int g = 0; g < rows.length; g++) {
+                rows[g] += other.rows[g];
+                count[g] += other.count[g];
+                add(g, other.sum[g]);
+                error[g] += other.error[g];
+                if (other.min[g] >= 0 && (min[g] < 0 || other.min[g] < min[g])) {
+                    min[g] = other.min[g];
+                }
+                if (other.max[g] > max[g]) {
+                    max[g] = other.max[g];
+                }
+            }
+            return this;
+        }
+    }
+
+    private GroupState aggregateSegment(Column group, Column measure, int groups, int from, int to) {
+        GroupState state = new GroupState(groups);
+        short[] groupCodes = group.codes;
+        double[] numbers = measure.numbers;
+        short[] measureCodes = measure.codes;
+        for (int i = from; i < to; i++) {
+            int g = groupCodes[i] & 0xffff;
+            state.rows[g]++;
+            if (numbers != null) {
+                double value = numbers[i];
+                if (value == value) {
+                    state.count[g]++;
+                    state.add(g, value);
+                }
+            }
+            if (measureCodes != null) {
+                int code = measureCodes[i] & 0xffff;
+                if (code != 0) {
+                    if (numbers == null) {
+                        state.count[g]++;
+                    }
+                    if (state.min[g] < 0 || code < state.min[g]) {
+                        state.min[g] = code;
+                    }
+                    if (code > state.max[g]) {
+                        state.max[g] = code;
+                    }
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Rowids of the first limit rows (in rowid order, as a table scan returns
+     * them) where column op value. Needs a dictionary-coded column. Range
+     * filters on an indexed column are left to SQLite, which returns them in
+     * index order.
+     */
+    public long[] filter(String columnName, String op, String value, int limit) {
+        Column column = columns.get(columnName);
+        if (column == null || column.dictionary == null || (!op.equals("=") && indexedColumns.contains(columnName))) {
+            return null;
+        }
+
+        // Dictionary is sorted, so every operator is a contiguous code range
+        String[] dictionary = column.dictionary;
+        int lower = lowerBound(dictionary, value);
+        boolean present = lower < dictionary.length && dictionary[lower].equals(value);
+        int from;
+        int to;
+        switch (op) {
+            case "<":
+                from = 1;
+                to = lower - 1;
+                break;
+            case "<=":
+                from = 1;
+                to = present ? lower : lower - 1;
+                break;
+            case ">":
+                from = present ? lower + 1 : lower;
+                to = dictionary.length - 1;
+                break;
+            case ">=":
+                from = lower;
+                to = dictionary.length - 1;
+                break;
+            default:
+                from = present ? lower : dictionary.length;
+                to = present ? lower : -1;
+                break;
+        }
+
+        long[] matches = new long[Math.min(limit, rowCount)];
+        int found = 0;
+        if (from <= to) {
+            short[] codes = column.codes;
+            for (int i = 0; i < rowCount && found < matches.length; i++) {
+                int code = codes[i] & 0xffff;
+                if (code >= from && code <= to) {
+                    matches[found++] = rowids[i];
+                }
+            }
+        }
+        return Arrays.copyOf(matches, found);
+    }
+
+    /**
+     * Rowids of the first limit rows of ORDER BY column DESC. The order of
+     * each column is computed on first use and kept.
+     */
+    public long[] top(String columnName, int limit) throws SQLException {
+        Column column = columns.get(columnName);
+        if (column == null) {
+            return null;
+        }
+        int[] order = descendingOrder(column);
+        long[] result = new long[Math.min(limit, rowCount)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rowids[order[i]];
+        }
+        return result;
+    }
+
+    /** Row positions sorted by the column descending, NULLs last */
+    private int[] descendingOrder(Column column) throws SQLException {
+        synchronized (column) {
+            if (column.descending != null) {
+                return column.descending;
+            }
+
+            int[] order = new int[rowCount];
+            bytes.addAndGet(4L * rowCount);
+            if (column.dictionary != null) {
+                // Counting sort on the codes, highest code first
+                int[] starts = new int[column.dictionary.length + 1];
+                for (int i = 0; i < rowCount; i++) {
+                    starts[column.dictionary.length - 1 - column.code(i) + 1]++;
+                }
+                for (int c = 1; c < starts.length; c++) {
+                    starts[c] += starts[c - 1];
+                }
+                for (int i = 0; i < rowCount; i++) {
+                    order[starts[column.dictionary.length - 1 - column.code(i)]++] = i;
+                }
+            } else {
+                // High-cardinality column: let SQLite sort it once
+                try (Connection conn = connect();
+                     Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT rowid FROM " + table
+                             + " ORDER BY \"" + column.name + "\" DESC")) {
+                    int i = 0;
+                    while (rs.next() && i < rowCount) {
+                        order[i++] = Arrays.binarySearch(rowids, rs.getLong(1));
+                    }
+                }
+            }
+            column.descending = order;
+            return order;
+        }
+    }
+
+    /** SELECT * rows for the given rowids, in that order */
+    public List<Map<String, Object>> fetchRows(long[] ids) throws SQLException {
+        Map<Long, Map<String, Object>> byRowid = new HashMap<>();
+        try (Connection conn = connect();
+             Statement stmt = conn.createStatement()) {
+            for (int start = 0; start < ids.length; start += 500) {
+                StringBuilder sql = new StringBuilder("SELECT rowid AS tlq_rowid, * FROM " + table + " WHERE rowid IN (");
+                for (int i = start; i < Math.min(ids.length, start + 500); i++) {
+                    sql.append(i > start ? "," : "").append(ids[i]);
+                }
+                try (ResultSet rs = stmt.executeQuery(sql.append(")").toString())) {
+                    ResultSetMetaData metadata = rs.getMetaData();
+                    while (rs.next()) {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        for (int i = 2; i <= metadata.getColumnCount(); i++) {
+                            row.put(metadata.getColumnName(i), rs.getObject(i));
+                        }
+                        byRowid.put(rs.getLong(1), row);
+                    }
+                }
+            }
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long id : ids) {
+            rows.add(byRowid.get(id));
+        }
+        return rows;
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:file:" + dbFile.getAbsolutePath() + "?mode=ro");
+    }
+
+    private int segments() {
+        return Runtime.getRuntime().availableProcessors() * 4;
+    }
+
+    private int segmentStart(int segment) {
+        return (int) ((long) rowCount * segment / segments());
+    }
+
+    /** First dictionary index (skipping NULL at 0) whose value is >= value */
+    private static int lowerBound(String[] dictionary, String value) {
+        int low = 1;
+        int high = dictionary.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareText(dictionary[mid], value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** SQLite BINARY collation: UTF-8 byte order, which is code point order */
+    static int compareText(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /** Integer when the value fits, as sqlite-jdbc's getObject returns */
+    private static Object narrow(long value) {
+        return value == (int) value ? (Object) (int) value : (Object) value;
+    }
+
+    /** Accumulates one column while the table is read */
+    private static class ColumnBuilder {
+        final String name;
+        final int rows;
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> values = new ArrayList<>();
+        int[] provisional;
+        double[] numbers;
+        boolean numeric = true;
+        boolean integral = true;
+
+        ColumnBuilder(String name, int rows) {
+            this.name = name;
+            this.rows = rows;
+            this.provisional = new int[rows];
+            this.numbers = new double[rows];
+        }
+
+        void add(int row, String value) {
+            if (numeric) {
+                double number = value == null ? Double.NaN : parseNumber(value);
+                if (value != null && number != number) {
+                    numeric = false;
+                    numbers = null;
+                } else {
+                    numbers[row] = number;
+                    integral &= value == null || isInteger(value);
+                }
+            }
+            if (dictionary != null) {
+                Integer code = value == null ? Integer.valueOf(-1) : dictionary.get(value);
+                if (code == null) {
+                    if (dictionary.size() == MAX_DICTIONARY) {
+                        dictionary = null;
+                        values = null;
+                        provisional = null;
+                        return;
+                    }
+                    code = dictionary.size();
+                    dictionary.put(value, code);
+                    values.add(value);
+                }
+                provisional[row] = code;
+            }
+        }
+
+        Column build() {
+            Column column = new Column(name);
+            column.numbers = numeric ? numbers : null;
+            column.integral = numeric && integral;
+            if (dictionary != null) {
+                // Sort the dictionary and remap codes so code order is text order, NULL = 0
+                String[] sorted = values.toArray(new String[0]);
+                Arrays.sort(sorted, ColumnarTable::compareText);
+                Map<String, Integer> finalCodes = new HashMap<>();
+                for (int i = 0; i < sorted.length; i++) {
+                    finalCodes.put(sorted[i], i + 1);
+                }
+                int[] remap = new int[values.size()];
+                for (int i = 0; i < remap.length; i++) {
+                    remap[i] = finalCodes.get(values.get(i));
+                }
+
+                column.dictionary = new String[sorted.length + 1];
+                System.arraycopy(sorted, 0, column.dictionary, 1, sorted.length);
+                column.codes = new short[rows];
+                for (int i = 0; i < rows; i++) {
+                    column.codes[i] = (short) (provisional[i] < 0 ? 0 : remap[provisional[i]]);
+                }
+            }
+            return column;
+        }
+
+        /** Value as SQLite would convert a well-formed numeric string, or NaN */
+        private static double parseNumber(String value) {
+            int length = value.length();
+            if (length == 0) {
+                return Double.NaN;
+            }
+            for (int i = 0; i < length; i++) {
+                char ch = value.charAt(i);
+                if (!(ch >= '0' && ch <= '9' || ch == '.' || ch == '-' || ch == '+' || ch == 'e' || ch == 'E')) {
+                    return Double.NaN;
+                }
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        private static boolean isInteger(String value) {
+            for (int i = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0; i < value.length(); i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return value.length() < 19;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming gzip/zstd support for CSV objects.
+ *
+ * Input codecs are detected from the first bytes of the object, falling back
+ * to the key suffix (.gz, .zst), and decoded on the fly so compressed objects
+ * are parsed straight from the download stream without a temp file.
+ */
+public final class Compression {
+
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String ZSTD = "zstd";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private Compression() {}
+
+    /**
+     * Open a UTF-8 reader over a possibly compressed object stream.
+     *
+     * @param raw Object content as returned by the store.
+     * @param key Object key, used when the magic bytes are inconclusive.
+     * @param context Lambda context for logging.
+     * @return Reader over the decompressed CSV text.
+     */
+    public static BufferedReader openReader(InputStream raw, String key, Context context) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(raw, BUFFER_SIZE);
+        String codec = detect(buffered, key);
+        context.getLogger().log("Input compression: " + codec + "\n");
+        return new BufferedReader(new InputStreamReader(decompress(buffered, codec), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /** Peek at the magic bytes (stream position is unchanged) to pick a codec */
+    public static String detect(BufferedInputStream in, String key) throws IOException {
+        in.mark(4);
+        byte[] magic = new byte[4];
+        int n = 0;
+        int read;
+        while (n < magic.length && (read = in.read(magic, n, magic.length - n)) > 0) {
+            n += read;
+        }
+        in.reset();
+
+        if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        if (n >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            return ZSTD;
+        }
+        return codecForKey(key);
+    }
+
+    /** Codec implied by a key's suffix */
+    public static String codecForKey(String key) {
+        if (key == null) {
+            return NONE;
+        }
+        String lower = key.toLowerCase();
+        if (lower.endsWith(".gz") || lower.endsWith(".gzip")) {
+            return GZIP;
+        }
+        if (lower.endsWith(".zst") || lower.endsWith(".zstd")) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    /** Wrap a stream with the decoder for the given codec */
+    public static InputStream decompress(InputStream in, String codec) throws IOException {
+        switch (normalize(codec)) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /** Wrap a stream with the encoder for the given codec */
+    public static OutputStream compress(OutputStream out, String codec) throws IOException {
+        switch (normalize(codec)) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    /** Key suffix for objects written with the given codec */
+    public static String suffix(String codec) {
+        switch (normalize(codec)) {
+            case GZIP:
+                return ".gz";
+            case ZSTD:
+                return ".zst";
+            default:
+                return "";
+        }
+    }
+
+    /** Key without a trailing compression suffix */
+    public static String stripSuffix(String key) {
+        String codec = codecForKey(key);
+        if (codec.equals(NONE)) {
+            return key;
+        }
+        return key.substring(0, key.lastIndexOf('.'));
+    }
+
+    /** Canonical codec name; null/empty/false mean no compression */
+    public static String normalize(String codec) {
+        if (codec == null || codec.isEmpty() || codec.equalsIgnoreCase("false") || codec.equalsIgnoreCase(NONE)) {
+            return NONE;
+        }
+        String lower = codec.toLowerCase();
+        if (lower.equals("gz") || lower.equals(GZIP) || lower.equals("true")) {
+            return GZIP;
+        }
+        if (lower.equals("zst") || lower.equals(ZSTD)) {
+            return ZSTD;
+        }
+        throw new IllegalArgumentException("Unsupported compression: " + codec);
+    }
+}
@@ -2,43 +2,146 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.S3Object;
+import saaf.Inspector;
 
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class CreateSQLiteDB implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
+    static {
+        Warmup.init("CreateSQLiteDB", true);
+    }
+
+    /** Natural key used to skip rows that are already loaded in append mode */
+    static final String ORDER_ID_COLUMN = "Order_ID";
+
+    /** Per-region rollup kept next to the table: group column and summed measures */
+    static final String ROLLUP_GROUP = "Region";
+    static final String[] ROLLUP_MEASURES = {"Units_Sold", "Total_Revenue", "Total_Cost", "Total_Profit"};
+
+    private static final int BATCH_SIZE = 10000;
+
+    /** Smallest byte range a parallel load gives one worker */
+    private static final long MIN_PART_BYTES = 1 << 20;
+
+    /** Name of the partial database saved with a checkpoint */
+    private static final String PARTIAL_DB = "partial.db";
+
+    private final ObjectStore store;
+
+    public CreateSQLiteDB() {
+        this(ObjectStore.defaultStore());
+    }
+
+    public CreateSQLiteDB(ObjectStore store) {
+        this.store = store;
+    }
+
     @Override
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
+        Inspector metrics = Helpers.startMetrics();
+        HashMap<String, Object> response = process(request, context);
+        Helpers.finishMetrics(metrics, "CreateSQLiteDB", response);
+        return response;
+    }
+
+    private HashMap<String, Object> process(HashMap<String, Object> request, Context context) {
         HashMap<String, Object> response = new HashMap<>();
 
         try {
+            Map<String, Object> startup = Warmup.firstInvocationReport();
+            if (startup != null) {
+                response.put("startup", startup);
+            }
+
             String bucket = (String) request.get("bucket");
             String key = (String) request.get("key");
             String dbName = (String) request.getOrDefault("dbName", "tlq.db");
             String tableName = (String) request.getOrDefault("tableName", "sales_records");
+            String mode = (String) request.getOrDefault("mode", "full");
+            boolean append = mode.equalsIgnoreCase("append");
+            String dbS3Key = "databases/" + dbName;
+            @SuppressWarnings("unchecked")
+            List<String> indexes = (List<String>) request.getOrDefault("indexes", new ArrayList<String>());
 
-            context.getLogger().log("Downloading file from S3: " + bucket + "/" + key + "\n");
+            if (ObjectBatch.isBatch(request, "keys", "prefix")) {
+                loadBatch(request, bucket, dbName, tableName, mode, indexes, response, context);
+                return response;
+            }
 
-            File downloaded = downloadFromS3(bucket, key, context);
-            long fileSize = downloaded.length();
-            context.getLogger().log("Downloaded file size: " + fileSize + " bytes\n");
-            
-            File sqliteDB = createSQLiteDB(downloaded, dbName, tableName, context);
-            
-            // Upload SQLite database back to S3
-            String dbS3Key = "databases/" + dbName;
-            uploadToS3(bucket, dbS3Key, sqliteDB, context);
+            if (mode.equalsIgnoreCase("sharded")) {
+                String shardKey = (String) request.getOrDefault("shardKey", "region");
+                int shardCount = ((Number) request.getOrDefault("shards", 4)).intValue();
+                loadSharded(bucket, key, dbName, tableName, shardKey, shardCount, indexes, response, context);
+                return response;
+            }
+
+            if (mode.equalsIgnoreCase("parallel")) {
+                int workers = ((Number) request.getOrDefault("workers", defaultWorkers())).intValue();
+                loadParallel(bucket, key, dbName, tableName, workers, indexes, response, context);
+                return response;
+            }
+
+            // A resumed load continues the partial database saved with its checkpoint
+            String token = (String) request.get("continuationToken");
+            Checkpoint resume = token == null ? null : Checkpoint.load(store, bucket, token, "CreateSQLiteDB", key);
+            if (resume != null) {
+                context.getLogger().log("Resuming checkpoint " + token + " at byte " + resume.byteOffset + "\n");
+                store.download(bucket, resume.objectKey(PARTIAL_DB), new File("/tmp/" + dbName));
+            } else if (append) {
+                // Append loads start from the current database
+                response.put("baseDatabase", fetchExistingDB(bucket, dbS3Key, new File("/tmp/" + dbName), context));
+            }
+
+            context.getLogger().log("Streaming file from S3: " + bucket + "/" + key + "\n");
+
+            // Parse straight from the (possibly compressed) download stream
+            Checkpoint.Deadline deadline = new Checkpoint.Deadline(context, Checkpoint.marginMillis(request));
+            int parsers = LoadPipeline.parsers(request);
+            File sqliteDB;
+            long fileSize;
+            OffsetLineReader br = Checkpoint.openSource(store, bucket, key, resume, context);
+            try {
+                sqliteDB = createSQLiteDB(br, dbName, tableName, append, resume != null, deadline, parsers, response, context);
+            } finally {
+                br.close();
+            }
+            fileSize = br.getSourceBytes();
+            context.getLogger().log("Read " + fileSize + " bytes from S3\n");
+
+            if (resume != null) {
+                response.put("rowsRead", resume.total("rowsRead", ((Number) response.get("rowsRead")).longValue()));
+                response.put("rowsInserted", resume.total("rowsInserted", ((Number) response.get("rowsInserted")).longValue()));
+                if (append) {
+                    response.put("rowsIgnored", resume.total("rowsIgnored", ((Number) response.get("rowsIgnored")).longValue()));
+                }
+            }
+
+            if (deadline.wasReached()) {
+                saveCheckpoint(bucket, key, resume, br, sqliteDB, response, context);
+                return response;
+            }
+            publishDatabase(bucket, dbS3Key, sqliteDB, tableName, indexes, response, context);
 
             response.put("status", "success");
-            response.put("dbPath", sqliteDB.getAbsolutePath());
-            response.put("dbS3Location", "s3://" + bucket + "/" + dbS3Key);
+            response.put("mode", append ? "append" : "full");
             response.put("message", "SQLite database created and uploaded to S3 successfully.");
             response.put("fileSizeBytes", fileSize);
+            if (resume != null) {
+                response.put("resumedFrom", resume.token);
+                response.put("invocations", resume.invocations + 1);
+                resume.delete(store, bucket, context);
+            }
 
         } catch (Exception e) {
             response.put("status", "error");
@@ -49,129 +152,927 @@ public class CreateSQLiteDB implements RequestHandler<HashMap<String, Object>, H
         return response;
     }
 
-    /** Download file from S3 */
-    private File downloadFromS3(String bucket, String key, Context context) throws IOException {
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
+    /** Create the requested indexes, then upload the Order ID index and the database */
+    private void publishDatabase(String bucket, String dbS3Key, File sqliteDB, String tableName, List<String> indexes,
+                                 Map<String, Object> result, Context context) throws Exception {
+        createIndexes(sqliteDB, tableName, indexes, context);
 
-        context.getLogger().log("Getting object from S3: " + bucket + "/" + key + "\n");
-        S3Object object = s3.getObject(bucket, key);
-        InputStream input = object.getObjectContent();
+        // The Order ID index goes first: a lookup pairing it with the previous database
+        // can only over-report, never miss rows of the new one
+        File idsFile = OrderIdIndex.file(sqliteDB);
+        if (idsFile.exists()) {
+            LocalCopies.record(idsFile, uploadToS3(bucket, dbS3Key + OrderIdIndex.SUFFIX, idsFile, context));
+            result.put("orderIdIndexBytes", idsFile.length());
+        }
+
+        // Upload SQLite database back to S3
+        LocalCopies.record(sqliteDB, uploadToS3(bucket, dbS3Key, sqliteDB, context));
+
+        result.put("dbPath", sqliteDB.getAbsolutePath());
+        result.put("dbS3Location", "s3://" + bucket + "/" + dbS3Key);
+        result.put("indexes", indexes);
+    }
+
+    /**
+     * Load the objects named by "keys" or "prefix" in one invocation.
+     *
+     * "output": "combined" (default) reads them back to back, downloading
+     * up to concurrency objects ahead, as one full or append load into
+     * dbName. "perKey" builds one database per object, named after it
+     * (sales-1.csv.gz becomes sales-1.db), up to concurrency at a time;
+     * a failing object does not fail the rest. Sharded loads and
+     * checkpoints take a single key.
+     */
+    private void loadBatch(Map<String, Object> request, String bucket, String dbName, String tableName, String mode,
+                           List<String> indexes, HashMap<String, Object> response, Context context) throws Exception {
+        boolean append = mode.equalsIgnoreCase("append");
+        if (!append && !mode.equalsIgnoreCase("full")) {
+            throw new IllegalArgumentException("Batches support full and append loads, not " + mode);
+        }
+        if (request.containsKey("continuationToken")) {
+            throw new IllegalArgumentException("Batches cannot be resumed from a checkpoint");
+        }
+        String prefix = (String) request.get("prefix");
+        @SuppressWarnings("unchecked")
+        List<String> sourceKeys = (List<String>) request.get("keys");
+        List<String> keys = ObjectBatch.resolveKeys(store, bucket, sourceKeys, prefix);
+        int concurrency = Math.min(ObjectBatch.concurrency(request), keys.size());
+        String output = (String) request.getOrDefault("output", "combined");
+        int parsers = LoadPipeline.parsers(request);
+        context.getLogger().log("Loading " + keys.size() + " objects (" + output + ", concurrency " + concurrency + ")\n");
+
+        List<Map<String, Object>> objects;
+        int failed = 0;
+        if (output.equalsIgnoreCase("combined")) {
+            String dbS3Key = "databases/" + dbName;
+            if (append) {
+                response.put("baseDatabase", fetchExistingDB(bucket, dbS3Key, new File("/tmp/" + dbName), context));
+            }
+            ObjectBatch.ConcatenatedReader reader = ObjectBatch.concatenate(store, bucket, keys, concurrency, context);
+            File sqliteDB;
+            try {
+                sqliteDB = createSQLiteDB(reader, dbName, tableName, append, false, null, parsers, response, context);
+            } finally {
+                reader.close();
+            }
+            publishDatabase(bucket, dbS3Key, sqliteDB, tableName, indexes, response, context);
+            objects = reader.getObjects();
+            long fileSize = 0;
+            for (Map<String, Object> object : objects) {
+                fileSize += (Long) object.get("sizeBytes");
+            }
+            response.put("fileSizeBytes", fileSize);
+        } else if (output.equalsIgnoreCase("perKey")) {
+            Map<String, String> owners = new HashMap<>();
+            for (String key : keys) {
+                String previous = owners.put(dbNameFor(key), key);
+                if (previous != null) {
+                    throw new IllegalArgumentException(previous + " and " + key + " would both load into " + dbNameFor(key));
+                }
+            }
+            objects = ObjectBatch.forEach(keys, concurrency, (key, result) -> {
+                String name = dbNameFor(key);
+                String dbS3Key = "databases/" + name;
+                result.put("dbName", name);
+                if (append) {
+                    result.put("baseDatabase", fetchExistingDB(bucket, dbS3Key, new File("/tmp/" + name), context));
+                }
+                CountingInputStream input = new CountingInputStream(store.open(bucket, key));
+                File sqliteDB;
+                try (BufferedReader br = Compression.openReader(input, key, context)) {
+                    sqliteDB = createSQLiteDB(br::readLine, name, tableName, append, false, null, parsers, result, context);
+                }
+                result.put("fileSizeBytes", input.getCount());
+                publishDatabase(bucket, dbS3Key, sqliteDB, tableName, indexes, result, context);
+            }, context);
+            failed = ObjectBatch.failures(objects);
+        } else {
+            throw new IllegalArgumentException("Unsupported output: " + output + " (use combined or perKey)");
+        }
+
+        response.put("status", "success");
+        response.put("mode", append ? "append" : "full");
+        response.put("output", output);
+        response.put("objectCount", keys.size());
+        response.put("failedObjects", failed);
+        response.put("concurrency", concurrency);
+        response.put("objects", objects);
+        response.put("message", "Loaded " + keys.size() + " objects" + (failed > 0 ? ", " + failed + " failed." : "."));
+    }
+
+    /** Database a perKey batch loads an object into: its file name with .db for .csv */
+    static String dbNameFor(String key) {
+        String name = Compression.stripSuffix(key.substring(key.lastIndexOf('/') + 1));
+        if (name.toLowerCase().endsWith(".csv")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name + ".db";
+    }
+
+    /**
+     * Save the partial database under the checkpoint prefix (the real
+     * database key is left alone) and report a continuation token.
+     */
+    private void saveCheckpoint(String bucket, String key, Checkpoint resume, OffsetLineReader br, File sqliteDB,
+                                HashMap<String, Object> response, Context context) throws IOException {
+        Checkpoint checkpoint = resume != null ? resume : Checkpoint.create("CreateSQLiteDB", key, store.length(bucket, key));
+        long rows = ((Number) response.get("rowsRead")).longValue();
+        // The load reads ahead of what it has inserted; it reports the offset after its last batch
+        checkpoint.advance(((Number) response.get("byteOffset")).longValue(), br.getCodec(), rows - checkpoint.rowsConsumed);
+        checkpoint.headerLine = br.getFirstLine();
+        for (String stat : new String[]{"rowsRead", "rowsInserted", "rowsIgnored"}) {
+            if (response.containsKey(stat)) {
+                checkpoint.state.put(stat, response.get(stat));
+            }
+        }
+        checkpoint.put(store, bucket, PARTIAL_DB, sqliteDB);
+        checkpoint.save(store, bucket);
+        context.getLogger().log("Saved checkpoint " + checkpoint.token + " at byte " + checkpoint.byteOffset + "\n");
 
-        File temp = File.createTempFile("s3file", ".tmp");
-        FileOutputStream fos = new FileOutputStream(temp);
+        response.put("status", "partial");
+        response.put("continuationToken", checkpoint.token);
+        response.put("byteOffset", checkpoint.byteOffset);
+        response.put("invocations", checkpoint.invocations);
+        response.put("message", "Stopped before the timeout after " + checkpoint.rowsConsumed
+                + " rows; invoke again with continuationToken to resume.");
+    }
+
+    /**
+     * Sharded load: partition the input into shard databases, upload each one
+     * under databases/<dbName>/ and write the manifest last so readers never
+     * see a manifest pointing at missing shards.
+     */
+    private void loadSharded(String bucket, String key, String dbName, String tableName, String shardKey,
+                             int shardCount, List<String> indexes, HashMap<String, Object> response,
+                             Context context) throws Exception {
+        context.getLogger().log("Streaming file from S3: " + bucket + "/" + key + "\n");
+
+        CountingInputStream input = openFromS3(bucket, key, context);
+        ShardManifest manifest;
+        try (BufferedReader br = Compression.openReader(input, key, context)) {
+            manifest = createShardedDB(br::readLine, dbName, tableName, shardKey, shardCount, response, context);
+        }
+        context.getLogger().log("Read " + input.getCount() + " bytes from S3\n");
+
+        File shardDir = shardDirectory(dbName);
+        for (ShardManifest.Shard shard : manifest.shards) {
+            File shardFile = new File(shardDir, "shard-" + shard.index + ".db");
+            createIndexes(shardFile, tableName, indexes, context);
+            shard.sizeBytes = shardFile.length();
+            uploadToS3(bucket, shard.key, shardFile, context);
+        }
+        File manifestFile = new File(shardDir, ShardManifest.FILE_NAME);
+        manifest.write(manifestFile);
+        String manifestKey = ShardManifest.manifestKey(dbName);
+        uploadToS3(bucket, manifestKey, manifestFile, context);
+
+        List<Long> shardRows = new ArrayList<>();
+        for (ShardManifest.Shard shard : manifest.shards) {
+            shardRows.add(shard.rows);
+        }
+
+        response.put("status", "success");
+        response.put("mode", "sharded");
+        response.put("shardKey", manifest.shardKey);
+        response.put("shards", manifest.shardCount);
+        response.put("shardRows", shardRows);
+        response.put("indexes", indexes);
+        response.put("dbS3Location", "s3://" + bucket + "/" + manifestKey);
+        response.put("message", "Sharded SQLite database created and uploaded to S3 successfully.");
+        response.put("fileSizeBytes", input.getCount());
+    }
+
+    /** Parallel load workers when the request does not say: one per CPU, up to 8 */
+    static int defaultWorkers() {
+        return Math.min(8, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Parallel full load of one object: see createParallelDB */
+    private void loadParallel(String bucket, String key, String dbName, String tableName, int workers,
+                              List<String> indexes, HashMap<String, Object> response, Context context) throws Exception {
+        context.getLogger().log("Loading s3://" + bucket + "/" + key + " with up to " + workers + " workers\n");
+        File sqliteDB = createParallelDB(bucket, key, dbName, tableName, workers, response, context);
+        publishDatabase(bucket, "databases/" + dbName, sqliteDB, tableName, indexes, response, context);
+
+        response.put("status", "success");
+        response.put("mode", "parallel");
+        response.put("message", "SQLite database created and uploaded to S3 successfully.");
+        response.put("fileSizeBytes", store.length(bucket, key));
+    }
+
+    /**
+     * Full load that gets around SQLite's single writer: the object is cut
+     * into byte ranges at line boundaries, up to workers part databases are
+     * built from them at once (each a normal full load of its range), and the
+     * parts are merged in order into /tmp/dbName with ATTACH and INSERT INTO
+     * ... SELECT, so the table's rows keep the input order. The rollup and
+     * Order ID index are rebuilt from the merged table; the parts' sketches
+     * are merged.
+     *
+     * Compressed objects cannot be entered mid-way, so they and objects too
+     * small to split (under MIN_PART_BYTES per worker) are loaded by one
+     * writer as usual. stats gets "workers", "parts", "buildMs" and "mergeMs".
+     */
+    public File createParallelDB(String bucket, String key, String dbName, String tableName, int workers,
+                                 Map<String, Object> stats, Context context) throws Exception {
+        long length = store.length(bucket, key);
+        if (length < 0) {
+            throw new FileNotFoundException("No such object: " + bucket + "/" + key);
+        }
+        String headerLine;
+        String codec;
+        try (OffsetLineReader head = OffsetLineReader.open(
+                new ByteArrayInputStream(store.readRange(bucket, key, 0, 65536)), key, context)) {
+            headerLine = head.readLine();
+            codec = head.getCodec();
+        }
+        if (headerLine == null) {
+            throw new Exception("CSV file is empty");
+        }
+
+        workers = (int) Math.max(1, Math.min(workers, length / MIN_PART_BYTES));
+        if (workers == 1 || !Compression.NONE.equals(codec)) {
+            context.getLogger().log("Loading with one writer (" + (workers == 1 ? "object too small to split" : codec + " input") + ")\n");
+            stats.put("workers", 1);
+            try (OffsetLineReader br = OffsetLineReader.open(store.open(bucket, key), key, context)) {
+                return createSQLiteDB(br, dbName, tableName, false, false, null, LoadPipeline.defaultParsers(), stats, context);
+            }
+        }
+
+        // Build the parts
+        long buildStart = System.nanoTime();
+        List<Future<Map<String, Object>>> futures = new ArrayList<>();
+        List<Map<String, Object>> parts = new ArrayList<>();
+        List<File> partFiles = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            for (int k = 0; k < workers; k++) {
+                long start = length * k / workers;
+                long end = length * (k + 1) / workers;
+                String partName = dbName + ".part-" + k;
+                partFiles.add(new File("/tmp/" + partName));
+                int index = k;
+                futures.add(pool.submit(() -> buildPart(bucket, key, headerLine, partName, tableName, index, start, end, context)));
+            }
+            for (Future<Map<String, Object>> future : futures) {
+                try {
+                    parts.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            long buildMs = (System.nanoTime() - buildStart) / 1_000_000;
+            context.getLogger().log("Built " + workers + " parts in " + buildMs + " ms\n");
+
+            long mergeStart = System.nanoTime();
+            File dbFile = mergeParts(dbName, tableName, columnsOf(headerLine), partFiles, stats, context);
+            long mergeMs = (System.nanoTime() - mergeStart) / 1_000_000;
+            context.getLogger().log("Merged parts in " + mergeMs + " ms\n");
+
+            stats.put("workers", workers);
+            stats.put("parts", parts);
+            stats.put("buildMs", buildMs);
+            stats.put("mergeMs", mergeMs);
+            return dbFile;
+        } finally {
+            pool.shutdownNow();
+            for (File partFile : partFiles) {
+                partFile.delete();
+                OrderIdIndex.file(partFile).delete();
+            }
+        }
+    }
+
+    /** Full load of the lines starting in [start, end) of the object into /tmp/partName */
+    private Map<String, Object> buildPart(String bucket, String key, String headerLine, String partName, String tableName,
+                                          int index, long start, long end, Context context) throws Exception {
+        long startNanos = System.nanoTime();
+        Map<String, Object> loadStats = new HashMap<>();
+        try (OffsetLineReader br = openRange(bucket, key, headerLine, start, end)) {
+            createSQLiteDB(br, partName, tableName, false, false, null, 0, loadStats, context);
+        }
+        Map<String, Object> part = new LinkedHashMap<>();
+        part.put("index", index);
+        part.put("startByte", start);
+        part.put("endByte", end);
+        part.put("rows", loadStats.get("rowsRead"));
+        part.put("buildMs", (System.nanoTime() - startNanos) / 1_000_000);
+        return part;
+    }
+
+    /**
+     * Reader over the lines of an uncompressed object that start in
+     * [start, end). A line running into the range from before belongs to the
+     * previous range and is skipped; ranges after the first replay the header.
+     */
+    private OffsetLineReader openRange(String bucket, String key, String headerLine, long start, long end) throws IOException {
+        CountingInputStream counted = new CountingInputStream(store.open(bucket, key, Math.max(0, start - 1)));
+        InputStream in = new BufferedInputStream(counted, 65536);
+        long offset = 0;
+        String replayLine = null;
+        if (start > 0) {
+            offset = start - 1;
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b == '\n') {
+                    break;
+                }
+            }
+            replayLine = headerLine;
+        }
+        OffsetLineReader reader = new OffsetLineReader(in, counted, Compression.NONE, offset, replayLine);
+        reader.setEndOffset(end);
+        return reader;
+    }
+
+    /**
+     * Copy the parts' tables, in order, into a new /tmp/dbName, merge their
+     * sketches, and rebuild the rollup and Order ID index from the result.
+     */
+    private File mergeParts(String dbName, String tableName, String[] columns, List<File> partFiles,
+                            Map<String, Object> stats, Context context) throws Exception {
+        File dbFile = new File("/tmp/" + dbName);
+        dbFile.delete();
+        File idsFile = OrderIdIndex.file(dbFile);
+        idsFile.delete();
+
+        long rows = 0;
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(buildCreateTableSQL(tableName, columns));
+
+            ColumnSketches sketches = new ColumnSketches(columns);
+            for (File partFile : partFiles) {
+                stmt.execute("ATTACH DATABASE '" + partFile.getAbsolutePath().replace("'", "''") + "' AS part");
+                rows += stmt.executeUpdate("INSERT INTO main." + tableName + " SELECT * FROM part." + tableName);
+                ColumnSketches partSketches = ColumnSketches.read(conn, "part." + tableName, columns);
+                if (partSketches != null) {
+                    sketches.merge(partSketches);
+                }
+                stmt.execute("DETACH DATABASE part");
+            }
+            context.getLogger().log("Merged " + rows + " rows from " + partFiles.size() + " parts\n");
+
+            conn.setAutoCommit(false);
+            int[] measureIndexes = new int[ROLLUP_MEASURES.length];
+            for (int m = 0; m < ROLLUP_MEASURES.length; m++) {
+                measureIndexes[m] = indexOf(columns, ROLLUP_MEASURES[m]);
+            }
+            if (indexOf(columns, ROLLUP_GROUP) >= 0) {
+                rebuildRollup(conn, tableName, tableName + "_rollup_region", measureIndexes);
+            }
+            sketches.write(conn, tableName);
+
+            if (indexOf(columns, ORDER_ID_COLUMN) >= 0) {
+                OrderIdIndex.Builder ids = new OrderIdIndex.Builder();
+                try (ResultSet rs = stmt.executeQuery("SELECT \"" + ORDER_ID_COLUMN + "\" FROM " + tableName)) {
+                    while (rs.next()) {
+                        ids.add(rs.getString(1));
+                    }
+                }
+                OrderIdIndex index = ids.build();
+                index.write(idsFile);
+                context.getLogger().log("Wrote Order ID index for " + index.getDistinct() + " IDs (" + idsFile.length() + " bytes)\n");
+            }
+            conn.commit();
+        }
+
+        stats.put("rowsRead", rows);
+        stats.put("rowsInserted", rows);
+        return dbFile;
+    }
+
+    /** Table column names for a CSV header line: trimmed, spaces as underscores */
+    static String[] columnsOf(String headerLine) {
+        String[] headers = headerLine.split(",");
+        String[] columns = new String[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            columns[i] = headers[i].trim().replace(" ", "_");
+        }
+        return columns;
+    }
 
-        byte[] buffer = new byte[4096];
-        int length;
-        long bytesRead = 0;
+    /** Open a counted stream over the S3 object */
+    private CountingInputStream openFromS3(String bucket, String key, Context context) throws IOException {
+        context.getLogger().log("Getting object from S3: " + bucket + "/" + key + "\n");
+        return new CountingInputStream(store.open(bucket, key));
+    }
 
-        while ((length = input.read(buffer)) > 0) {
-            fos.write(buffer, 0, length);
-            bytesRead += length;
+    /**
+     * Make dbFile hold the current database for an append load. Reuses /tmp
+     * when this container uploaded or downloaded the latest version and has
+     * not touched the copy since, otherwise downloads it. Versions are told
+     * apart by ETag: an append often leaves a database's size unchanged,
+     * since SQLite files grow in whole pages.
+     *
+     * @return "tmp", "s3" or "new" (nothing to append to yet).
+     */
+    private String fetchExistingDB(String bucket, String dbS3Key, File dbFile, Context context) throws IOException {
+        String remoteTag = store.etag(bucket, dbS3Key);
+        if (remoteTag == null) {
+            context.getLogger().log("No existing database at " + dbS3Key + ", starting a new one\n");
+            dbFile.delete();
+            return "new";
         }
 
-        context.getLogger().log("Successfully read " + bytesRead + " bytes from S3\n");
+        if (LocalCopies.isCurrent(dbFile, remoteTag)) {
+            context.getLogger().log("Reusing database from /tmp (" + dbFile.length() + " bytes)\n");
+            return "tmp";
+        }
 
-        fos.close();
-        input.close();
-        return temp;
+        context.getLogger().log("Downloading existing database from S3: " + dbS3Key + "\n");
+        LocalCopies.fetch(store, bucket, dbS3Key, remoteTag, dbFile);
+        return "s3";
     }
 
     /** Create SQLite DB and load CSV */
     public File createSQLiteDB(File csvFile, String dbName, String tableName, Context context) throws Exception {
+        return createSQLiteDB(csvFile, dbName, tableName, new HashMap<>(), context);
+    }
+
+    /** Create SQLite DB and load CSV, recording load statistics into stats */
+    public File createSQLiteDB(File csvFile, String dbName, String tableName, Map<String, Object> stats, Context context) throws Exception {
+        try (BufferedReader br = Compression.openReader(new FileInputStream(csvFile), csvFile.getName(), context)) {
+            return createSQLiteDB(br::readLine, dbName, tableName, false, stats, context);
+        }
+    }
+
+    /** Load CSV text from the reader into /tmp/dbName, in one go */
+    public File createSQLiteDB(LineSource br, String dbName, String tableName, boolean append,
+                               Map<String, Object> stats, Context context) throws Exception {
+        return createSQLiteDB(br, dbName, tableName, append, false, null, LoadPipeline.defaultParsers(), stats, context);
+    }
+
+    /**
+     * Load CSV text from the reader into /tmp/dbName.
+     *
+     * A full load drops and rebuilds the table. An append load keeps existing
+     * rows, inserts with INSERT OR IGNORE against a unique Order_ID index and
+     * adds only the inserted rows to the region rollup and the column sketches.
+     * Either way the Order ID index is rewritten to /tmp/dbName.ids.
+     *
+     * With a deadline the load stops at the first batch boundary after it is
+     * reached, leaving a consistent partial database, and records the offset
+     * after that batch as stats "byteOffset" when br is an OffsetLineReader;
+     * resuming continues that database rather than starting a new one.
+     *
+     * Rows are read and parsed ahead by a LoadPipeline with the given number
+     * of parser threads (0 parses on this thread), while this thread binds
+     * and executes the batches. Its stage timings go in stats "pipeline".
+     */
+    public File createSQLiteDB(LineSource br, String dbName, String tableName, boolean append, boolean resuming,
+                               Checkpoint.Deadline deadline, int parsers, Map<String, Object> stats,
+                               Context context) throws Exception {
         File dbFile = new File("/tmp/" + dbName);
         String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        String rollupTable = tableName + "_rollup_region";
+        File idsFile = OrderIdIndex.file(dbFile);
+        idsFile.delete();
 
-        context.getLogger().log("Creating SQLite database at: " + dbFile.getAbsolutePath() + "\n");
+        context.getLogger().log((append ? "Appending to" : "Creating") + " SQLite database at: " + dbFile.getAbsolutePath() + "\n");
 
         Connection conn = DriverManager.getConnection(url);
         conn.setAutoCommit(false);
 
         Statement stmt = conn.createStatement();
-        stmt.execute("DROP TABLE IF EXISTS " + tableName + ";");
-        context.getLogger().log("Dropped existing table: " + tableName + "\n");
+        boolean keepExisting = append || resuming;
+        if (!keepExisting) {
+            stmt.execute("DROP TABLE IF EXISTS " + tableName + ";");
+            stmt.execute("DROP TABLE IF EXISTS " + rollupTable + ";");
+            stmt.execute("DROP TABLE IF EXISTS " + ColumnSketches.tableName(tableName) + ";");
+            context.getLogger().log("Dropped existing table: " + tableName + "\n");
+        }
 
-        BufferedReader br = new BufferedReader(new FileReader(csvFile));
         String headerLine = br.readLine();
         
         if (headerLine == null) {
-            br.close();
+            conn.close();
             throw new Exception("CSV file is empty");
         }
 
-        String[] headers = headerLine.split(",");
+        String[] columns = columnsOf(headerLine);
         context.getLogger().log("CSV headers: " + headerLine + "\n");
-        context.getLogger().log("Number of columns: " + headers.length + "\n");
+        context.getLogger().log("Number of columns: " + columns.length + "\n");
 
         // Create table with dynamic columns based on CSV header
-        StringBuilder createTableSQL = new StringBuilder("CREATE TABLE " + tableName + " (");
-        for (int i = 0; i < headers.length; i++) {
-            String columnName = headers[i].trim().replace(" ", "_");
-            createTableSQL.append("\"").append(columnName).append("\" TEXT");
-            if (i < headers.length - 1) {
+        stmt.execute(buildCreateTableSQL(tableName, columns));
+        context.getLogger().log("Created table with " + columns.length + " columns\n");
+
+        // Collapsing duplicate Order IDs removes rows the stored rollup and sketches still count
+        int removedDuplicates = append ? ensureOrderIdIndex(conn, tableName, columns, context) : 0;
+
+        // Sketches extend the stored ones on append; a table loaded before sketches existed, or just
+        // deduplicated, is rescanned
+        ColumnSketches sketches = !keepExisting ? new ColumnSketches(columns)
+                : removedDuplicates > 0 ? null : ColumnSketches.read(conn, tableName, columns);
+        boolean rescanSketches = false;
+        if (sketches == null) {
+            try (ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM " + tableName + ")")) {
+                rescanSketches = rs.next() && rs.getInt(1) == 1;
+            }
+            sketches = rescanSketches ? null : new ColumnSketches(columns);
+        }
+
+        PreparedStatement ps = conn.prepareStatement(buildInsertSQL(tableName, columns, append));
+
+        // Only append loads into an existing rollup track per-row deltas
+        int groupIndex = indexOf(columns, ROLLUP_GROUP);
+        boolean rollupAvailable = groupIndex >= 0;
+        boolean incrementalRollup = append && removedDuplicates == 0 && rollupAvailable && tableExists(conn, rollupTable);
+        int[] measureIndexes = new int[ROLLUP_MEASURES.length];
+        for (int m = 0; m < ROLLUP_MEASURES.length; m++) {
+            measureIndexes[m] = indexOf(columns, ROLLUP_MEASURES[m]);
+        }
+        Map<String, double[]> rollupDeltas = new LinkedHashMap<>();
+
+        // Full loads collect Order IDs as they go; appends and resumed loads read them back from the table
+        int idIndex = indexOf(columns, ORDER_ID_COLUMN);
+        OrderIdIndex.Builder ids = idIndex >= 0 ? new OrderIdIndex.Builder() : null;
+
+        // Only rows actually inserted reach the rollup deltas, sketches and (full loads) the Order IDs.
+        // This runs on the pipeline's after-write stage, which sees the batches in input order.
+        ColumnSketches rowSketches = sketches;
+        OrderIdIndex.Builder rowIds = keepExisting ? null : ids;
+        LoadPipeline.ChunkTask afterWrite = chunk -> {
+            for (int r = 0; r < chunk.size; r++) {
+                if (!chunk.inserted[r]) {
+                    continue;
+                }
+                String[] row = chunk.row(r);
+                if (incrementalRollup) {
+                    addToRollup(row, groupIndex, measureIndexes, rollupDeltas);
+                }
+                if (rowSketches != null) {
+                    rowSketches.add(row);
+                }
+                if (rowIds != null) {
+                    rowIds.add(idIndex < row.length ? row[idIndex] : null);
+                }
+            }
+        };
+
+        int rowCount = 0;
+        int insertedCount = 0;
+        try (LoadPipeline pipeline = new LoadPipeline(br, columns.length, parsers, BATCH_SIZE, afterWrite)) {
+            LoadPipeline.Chunk chunk;
+            while ((chunk = pipeline.next()) != null) {
+                for (int r = 0; r < chunk.size; r++) {
+                    String[] row = chunk.rows[r];
+                    for (int i = 0; i < columns.length; i++) {
+                        ps.setString(i + 1, row[i]);
+                    }
+                    ps.addBatch();
+                }
+                int[] counts = ps.executeBatch();
+                for (int r = 0; r < chunk.size; r++) {
+                    chunk.inserted[r] = counts[r] > 0 || counts[r] == Statement.SUCCESS_NO_INFO;
+                    if (chunk.inserted[r]) {
+                        insertedCount++;
+                    }
+                }
+                rowCount += chunk.size;
+                pipeline.written(chunk);
+
+                // Log progress and check the deadline every 10000 rows
+                if (chunk.size == BATCH_SIZE) {
+                    context.getLogger().log("Processed " + rowCount + " rows\n");
+                    if (deadline != null && deadline.reached()) {
+                        stats.put("byteOffset", chunk.endOffset);
+                        break;
+                    }
+                }
+            }
+            pipeline.finish();
+            stats.put("pipeline", pipeline.stats());
+        }
+        context.getLogger().log("Total rows inserted: " + insertedCount + "\n");
+
+        if (incrementalRollup) {
+            applyRollupDeltas(conn, rollupTable, measureIndexes, rollupDeltas);
+            context.getLogger().log("Updated rollup for " + rollupDeltas.size() + " regions\n");
+        } else if (rollupAvailable) {
+            rebuildRollup(conn, tableName, rollupTable, measureIndexes);
+            context.getLogger().log("Rebuilt rollup table: " + rollupTable + "\n");
+        }
+
+        if (rescanSketches) {
+            sketches = ColumnSketches.scan(conn, tableName, columns);
+        }
+        sketches.write(conn, tableName);
+        context.getLogger().log("Wrote column sketches to " + ColumnSketches.tableName(tableName) + "\n");
+
+        if (ids != null) {
+            if (keepExisting) {
+                try (ResultSet rs = stmt.executeQuery("SELECT \"" + ORDER_ID_COLUMN + "\" FROM " + tableName)) {
+                    while (rs.next()) {
+                        ids.add(rs.getString(1));
+                    }
+                }
+            }
+            OrderIdIndex index = ids.build();
+            index.write(idsFile);
+            context.getLogger().log("Wrote Order ID index for " + index.getDistinct() + " IDs (" + idsFile.length() + " bytes)\n");
+        }
+
+        stats.put("rowsRead", rowCount);
+        stats.put("rowsInserted", insertedCount);
+        if (append) {
+            stats.put("rowsIgnored", rowCount - insertedCount);
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + tableName)) {
+                stats.put("totalRows", rs.next() ? rs.getLong(1) : 0);
+            }
+        }
+        
+        conn.commit();
+        conn.close();
+
+        context.getLogger().log("Database creation completed successfully\n");
+        return dbFile;
+    }
+
+    /**
+     * Create a secondary index per requested column, named
+     * <table>_<column>_idx. QuerySQLite's lazy filter path can answer
+     * queries on these columns from a few ranged reads.
+     */
+    private void createIndexes(File dbFile, String tableName, List<String> columns, Context context) throws SQLException {
+        if (columns.isEmpty()) {
+            return;
+        }
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+             Statement stmt = conn.createStatement()) {
+            for (String column : columns) {
+                String name = column.trim().replace(" ", "_");
+                stmt.execute("CREATE INDEX IF NOT EXISTS " + tableName + "_" + name.toLowerCase() + "_idx ON "
+                        + tableName + " (\"" + name + "\")");
+                context.getLogger().log("Created index on " + name + "\n");
+            }
+        }
+    }
+
+    /** Local directory holding the shard databases of a sharded load */
+    static File shardDirectory(String dbName) {
+        return new File("/tmp/" + dbName + "-shards");
+    }
+
+    /**
+     * Load CSV text into shardCount databases under /tmp/<dbName>-shards,
+     * routing each row by its shard key. Every shard gets the same table, its
+     * own region rollup and its own column sketches, so a query can run
+     * against any subset of shards.
+     */
+    public ShardManifest createShardedDB(LineSource br, String dbName, String tableName, String shardKey,
+                                         int shardCount, Map<String, Object> stats, Context context) throws Exception {
+        ShardManifest manifest = new ShardManifest(dbName, tableName, shardKey, shardCount);
+        File shardDir = shardDirectory(dbName);
+        shardDir.mkdirs();
+
+        String headerLine = br.readLine();
+        if (headerLine == null) {
+            throw new Exception("CSV file is empty");
+        }
+        String[] columns = columnsOf(headerLine);
+        int keyIndex = indexOf(columns, manifest.column);
+        if (keyIndex < 0) {
+            throw new Exception("Shard key " + manifest.shardKey + " needs a \"" + manifest.column + "\" column");
+        }
+
+        context.getLogger().log("Creating " + shardCount + " shards by " + manifest.shardKey + " in " + shardDir + "\n");
+
+        Connection[] conns = new Connection[shardCount];
+        PreparedStatement[] inserts = new PreparedStatement[shardCount];
+        ColumnSketches[] sketches = new ColumnSketches[shardCount];
+        int[] pending = new int[shardCount];
+        try {
+            for (int k = 0; k < shardCount; k++) {
+                File shardFile = new File(shardDir, "shard-" + k + ".db");
+                shardFile.delete();
+                conns[k] = DriverManager.getConnection("jdbc:sqlite:" + shardFile.getAbsolutePath());
+                conns[k].setAutoCommit(false);
+                try (Statement stmt = conns[k].createStatement()) {
+                    stmt.execute(buildCreateTableSQL(tableName, columns));
+                }
+                inserts[k] = conns[k].prepareStatement(buildInsertSQL(tableName, columns, false));
+                sketches[k] = new ColumnSketches(columns);
+            }
+
+            String line;
+            int rowCount = 0;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                String value = manifest.partitionValue(keyIndex < parts.length ? parts[keyIndex] : null);
+                int k = manifest.shardOf(value);
+
+                PreparedStatement ps = inserts[k];
+                for (int i = 0; i < columns.length; i++) {
+                    ps.setString(i + 1, (i < parts.length) ? parts[i].trim() : null);
+                }
+                ps.addBatch();
+                sketches[k].add(parts);
+                manifest.addRow(k, value);
+                rowCount++;
+
+                if (++pending[k] == BATCH_SIZE) {
+                    ps.executeBatch();
+                    pending[k] = 0;
+                }
+                if (rowCount % BATCH_SIZE == 0) {
+                    context.getLogger().log("Processed " + rowCount + " rows\n");
+                }
+            }
+
+            int[] measureIndexes = new int[ROLLUP_MEASURES.length];
+            for (int m = 0; m < ROLLUP_MEASURES.length; m++) {
+                measureIndexes[m] = indexOf(columns, ROLLUP_MEASURES[m]);
+            }
+            for (int k = 0; k < shardCount; k++) {
+                inserts[k].executeBatch();
+                if (indexOf(columns, ROLLUP_GROUP) >= 0) {
+                    rebuildRollup(conns[k], tableName, tableName + "_rollup_region", measureIndexes);
+                }
+                sketches[k].write(conns[k], tableName);
+                conns[k].commit();
+            }
+
+            stats.put("rowsRead", rowCount);
+            stats.put("rowsInserted", rowCount);
+            context.getLogger().log("Total rows inserted: " + rowCount + "\n");
+        } finally {
+            for (Connection conn : conns) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+
+        for (ShardManifest.Shard shard : manifest.shards) {
+            shard.sizeBytes = new File(shardDir, "shard-" + shard.index + ".db").length();
+        }
+        return manifest;
+    }
+
+    /** CREATE TABLE IF NOT EXISTS with one TEXT column per CSV header */
+    static String buildCreateTableSQL(String tableName, String[] columns) {
+        StringBuilder createTableSQL = new StringBuilder("CREATE TABLE IF NOT EXISTS " + tableName + " (");
+        for (int i = 0; i < columns.length; i++) {
+            createTableSQL.append("\"").append(columns[i]).append("\" TEXT");
+            if (i < columns.length - 1) {
                 createTableSQL.append(", ");
             }
         }
         createTableSQL.append(");");
+        return createTableSQL.toString();
+    }
 
-        stmt.execute(createTableSQL.toString());
-        context.getLogger().log("Created table with " + headers.length + " columns\n");
-
-        // Prepare insert statement
-        StringBuilder insertSQL = new StringBuilder("INSERT INTO " + tableName + " (");
-        for (int i = 0; i < headers.length; i++) {
-            String columnName = headers[i].trim().replace(" ", "_");
-            insertSQL.append("\"").append(columnName).append("\"");
-            if (i < headers.length - 1) {
+    /** Parameterized INSERT for every column, skipping key conflicts when requested */
+    static String buildInsertSQL(String tableName, String[] columns, boolean orIgnore) {
+        StringBuilder insertSQL = new StringBuilder(orIgnore ? "INSERT OR IGNORE INTO " : "INSERT INTO ");
+        insertSQL.append(tableName).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            insertSQL.append("\"").append(columns[i]).append("\"");
+            if (i < columns.length - 1) {
                 insertSQL.append(", ");
             }
         }
         insertSQL.append(") VALUES (");
-        for (int i = 0; i < headers.length; i++) {
+        for (int i = 0; i < columns.length; i++) {
             insertSQL.append("?");
-            if (i < headers.length - 1) {
+            if (i < columns.length - 1) {
                 insertSQL.append(", ");
             }
         }
         insertSQL.append(");");
+        return insertSQL.toString();
+    }
 
-        PreparedStatement ps = conn.prepareStatement(insertSQL.toString());
+    /**
+     * Make Order_ID unique so INSERT OR IGNORE skips rows already loaded.
+     * Databases built by full loads have no index yet; their duplicate
+     * Order IDs are collapsed to the first row before the index is created.
+     *
+     * @return the number of duplicate rows deleted.
+     */
+    private int ensureOrderIdIndex(Connection conn, String tableName, String[] columns, Context context) throws SQLException {
+        if (indexOf(columns, ORDER_ID_COLUMN) < 0) {
+            throw new SQLException("Append mode requires an \"Order ID\" column");
+        }
 
-        String line;
-        int rowCount = 0;
-        
-        while ((line = br.readLine()) != null) {
-            String[] parts = line.split(",");
+        String indexName = tableName + "_order_id_uq";
+        try (PreparedStatement check = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = ?")) {
+            check.setString(1, indexName);
+            try (ResultSet rs = check.executeQuery()) {
+                if (rs.next()) {
+                    return 0;
+                }
+            }
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            int removed = stmt.executeUpdate("DELETE FROM " + tableName + " WHERE rowid NOT IN "
+                    + "(SELECT MIN(rowid) FROM " + tableName + " GROUP BY \"" + ORDER_ID_COLUMN + "\")");
+            stmt.execute("CREATE UNIQUE INDEX " + indexName + " ON " + tableName + " (\"" + ORDER_ID_COLUMN + "\")");
+            context.getLogger().log("Created unique index " + indexName + " (removed " + removed + " duplicate rows)\n");
+            return removed;
+        }
+    }
+
+    /** Accumulate one row into the per-region count and measure sums */
+    private void addToRollup(String[] parts, int groupIndex, int[] measureIndexes, Map<String, double[]> rollupDeltas) {
+        String group = groupIndex < parts.length ? parts[groupIndex].trim() : null;
+        double[] totals = rollupDeltas.computeIfAbsent(group, g -> new double[1 + measureIndexes.length]);
+        totals[0]++;
+        for (int m = 0; m < measureIndexes.length; m++) {
+            int index = measureIndexes[m];
+            if (index >= 0 && index < parts.length) {
+                try {
+                    totals[m + 1] += Double.parseDouble(parts[index].trim());
+                } catch (NumberFormatException e) {
+                    // SUM() treats non-numeric text as 0 as well
+                }
+            }
+        }
+    }
 
-            for (int i = 0; i < headers.length; i++) {
-                ps.setString(i + 1, (i < parts.length) ? parts[i].trim() : null);
+    /** Recompute the region rollup from the whole table */
+    private void rebuildRollup(Connection conn, String tableName, String rollupTable, int[] measureIndexes) throws SQLException {
+        StringBuilder create = new StringBuilder("CREATE TABLE " + rollupTable + " (\"" + ROLLUP_GROUP
+                + "\" TEXT PRIMARY KEY, order_count INTEGER");
+        StringBuilder select = new StringBuilder("SELECT \"" + ROLLUP_GROUP + "\", COUNT(*)");
+        for (int m = 0; m < measureIndexes.length; m++) {
+            if (measureIndexes[m] >= 0) {
+                create.append(", \"").append(ROLLUP_MEASURES[m]).append("\" REAL");
+                select.append(", SUM(\"").append(ROLLUP_MEASURES[m]).append("\")");
             }
+        }
+        create.append(")");
+        select.append(" FROM ").append(tableName).append(" GROUP BY \"").append(ROLLUP_GROUP).append("\"");
 
-            ps.addBatch();
-            rowCount++;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + rollupTable);
+            stmt.execute(create.toString());
+            stmt.execute("INSERT INTO " + rollupTable + " " + select);
+        }
+    }
 
-            // Log progress every 10000 rows
-            if (rowCount % 10000 == 0) {
-                context.getLogger().log("Processed " + rowCount + " rows\n");
+    /** Add the inserted rows' totals to the existing rollup rows */
+    private void applyRollupDeltas(Connection conn, String rollupTable, int[] measureIndexes,
+                                   Map<String, double[]> rollupDeltas) throws SQLException {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + rollupTable + " (\"" + ROLLUP_GROUP + "\", order_count");
+        StringBuilder values = new StringBuilder("VALUES (?, ?");
+        StringBuilder update = new StringBuilder(" ON CONFLICT(\"" + ROLLUP_GROUP + "\") DO UPDATE SET order_count = order_count + excluded.order_count");
+        for (int m = 0; m < measureIndexes.length; m++) {
+            if (measureIndexes[m] >= 0) {
+                String measure = "\"" + ROLLUP_MEASURES[m] + "\"";
+                insert.append(", ").append(measure);
+                values.append(", ?");
+                update.append(", ").append(measure).append(" = ").append(measure).append(" + excluded.").append(measure);
             }
         }
+        String sql = insert.append(") ").append(values).append(")").append(update).toString();
 
-        ps.executeBatch();
-        context.getLogger().log("Total rows inserted: " + rowCount + "\n");
-        
-        conn.commit();
-        conn.close();
-        br.close();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<String, double[]> entry : rollupDeltas.entrySet()) {
+                double[] totals = entry.getValue();
+                int param = 1;
+                ps.setString(param++, entry.getKey());
+                ps.setLong(param++, (long) totals[0]);
+                for (int m = 0; m < measureIndexes.length; m++) {
+                    if (measureIndexes[m] >= 0) {
+                        ps.setDouble(param++, totals[m + 1]);
+                    }
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
 
-        context.getLogger().log("Database creation completed successfully\n");
-        return dbFile;
+    private static boolean tableExists(Connection conn, String tableName) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            ps.setString(1, tableName);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
     }
 
-    /** Upload file to S3 */
-    private void uploadToS3(String bucket, String key, File file, Context context) throws IOException {
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
-        
+    static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Upload file to S3 and return the new object's ETag */
+    private String uploadToS3(String bucket, String key, File file, Context context) throws IOException {
         context.getLogger().log("Uploading database to S3: " + bucket + "/" + key + "\n");
-        s3.putObject(bucket, key, file);
+        String etag = store.upload(bucket, key, file);
         context.getLogger().log("Successfully uploaded database to S3\n");
+        return etag;
     }
 }
@@ -0,0 +1,237 @@
+package lambda;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Per-dimension totals and top-N records computed while TransformCSV writes
+ * its output, so consumers that only need "revenue per region" or "top
+ * orders by revenue" can read a small JSON file instead of loading and
+ * querying a database.
+ *
+ * Each dimension keeps a value -> slot map with counts and measure sums in
+ * growable primitive arrays. Top-N is a bounded min-heap of size n: a record
+ * only enters if it beats the smallest kept value, so memory stays O(n).
+ */
+public class CsvSummary {
+
+    public static final String[] DEFAULT_DIMENSIONS = {"Region", "Country", "Item Type", "Sales Channel", "Order Priority"};
+    public static final String[] DEFAULT_MEASURES = {"Units Sold", "Total Revenue", "Total Cost", "Total Profit"};
+    public static final String PROCESSING_DAYS = "Order Processing Time (days)";
+
+    /** Counts and sums per distinct value of one column */
+    private static class Accumulator {
+        final Map<String, Integer> slots = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+        long[] counts = new long[16];
+        double[][] sums;
+
+        Accumulator(int measures) {
+            sums = new double[measures][16];
+        }
+
+        void add(String value, double[] measures) {
+            Integer slot = slots.get(value);
+            if (slot == null) {
+                slot = values.size();
+                slots.put(value, slot);
+                values.add(value);
+                if (slot == counts.length) {
+                    counts = Arrays.copyOf(counts, slot * 2);
+                    for (int m = 0; m < sums.length; m++) {
+                        sums[m] = Arrays.copyOf(sums[m], slot * 2);
+                    }
+                }
+            }
+            counts[slot]++;
+            for (int m = 0; m < measures.length; m++) {
+                sums[m][slot] += measures[m];
+            }
+        }
+    }
+
+    /** A record kept by the top-N heap; seq keeps the first of equal values */
+    private static class Ranked {
+        final double value;
+        final long seq;
+        final String[] record;
+        final long days;
+
+        Ranked(double value, long seq, String[] record, long days) {
+            this.value = value;
+            this.seq = seq;
+            this.record = record;
+            this.days = days;
+        }
+    }
+
+    private final List<String> requestedDimensions;
+    private final String topBy;
+    private final int topN;
+    private final PriorityQueue<Ranked> top;
+
+    private String[] headers;
+    private String[] dimensions;
+    private int[] dimensionIndexes;
+    private String[] measures;
+    private int[] measureIndexes;
+    private Accumulator[] accumulators;
+    private double[] totals;
+    private double[] rowMeasures;
+    private int topIndex = -1;
+    private long rows;
+
+    /**
+     * @param dimensions columns to group by; ones missing from the input are ignored.
+     * @param topBy      numeric column ranking the top-N records.
+     * @param topN       number of records to keep.
+     */
+    public CsvSummary(List<String> dimensions, String topBy, int topN) {
+        this.requestedDimensions = dimensions;
+        this.topBy = topBy;
+        this.topN = Math.max(0, topN);
+        this.top = new PriorityQueue<>(Math.max(1, this.topN),
+                (a, b) -> a.value != b.value ? Double.compare(a.value, b.value) : Long.compare(b.seq, a.seq));
+    }
+
+    /** Bind to the input's header columns; called once before the first add() */
+    public void begin(String[] headers) {
+        this.headers = headers;
+
+        List<String> foundDimensions = new ArrayList<>();
+        for (String dimension : requestedDimensions) {
+            if (indexOf(headers, dimension) >= 0) {
+                foundDimensions.add(dimension);
+            }
+        }
+        this.dimensions = foundDimensions.toArray(new String[0]);
+        this.dimensionIndexes = new int[this.dimensions.length];
+        for (int d = 0; d < this.dimensions.length; d++) {
+            dimensionIndexes[d] = indexOf(headers, this.dimensions[d]);
+        }
+
+        // Measures present in the input, plus the computed processing time
+        List<String> foundMeasures = new ArrayList<>();
+        for (String measure : DEFAULT_MEASURES) {
+            if (indexOf(headers, measure) >= 0) {
+                foundMeasures.add(measure);
+            }
+        }
+        foundMeasures.add(PROCESSING_DAYS);
+        this.measures = foundMeasures.toArray(new String[0]);
+        this.measureIndexes = new int[measures.length];
+        for (int m = 0; m < measures.length; m++) {
+            measureIndexes[m] = indexOf(headers, measures[m]);
+        }
+
+        this.accumulators = new Accumulator[this.dimensions.length];
+        for (int d = 0; d < accumulators.length; d++) {
+            accumulators[d] = new Accumulator(measures.length);
+        }
+        this.totals = new double[measures.length];
+        this.rowMeasures = new double[measures.length];
+        this.topIndex = indexOf(headers, topBy);
+    }
+
+    /** Add one output record and its computed processing time */
+    public void add(String[] record, long processingDays) {
+        for (int m = 0; m < measures.length; m++) {
+            int index = measureIndexes[m];
+            rowMeasures[m] = index < 0 ? processingDays : number(record, index);
+            totals[m] += rowMeasures[m];
+        }
+        for (int d = 0; d < dimensions.length; d++) {
+            int index = dimensionIndexes[d];
+            accumulators[d].add(index < record.length ? record[index].trim() : "", rowMeasures);
+        }
+
+        if (topIndex >= 0 && topN > 0) {
+            double value = number(record, topIndex);
+            if (top.size() < topN) {
+                top.add(new Ranked(value, rows, record, processingDays));
+            } else if (value > top.peek().value) {
+                top.poll();
+                top.add(new Ranked(value, rows, record, processingDays));
+            }
+        }
+        rows++;
+    }
+
+    /** Summary as nested maps, ready for JSON */
+    public Map<String, Object> toMap() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("rows", rows);
+
+        Map<String, Object> totalMap = new LinkedHashMap<>();
+        for (int m = 0; m < measures.length; m++) {
+            totalMap.put(measures[m], totals[m]);
+        }
+        summary.put("totals", totalMap);
+
+        Map<String, Object> byDimension = new LinkedHashMap<>();
+        for (int d = 0; d < dimensions.length; d++) {
+            Accumulator accumulator = accumulators[d];
+            Map<String, Object> groups = new TreeMap<>();
+            for (int slot = 0; slot < accumulator.values.size(); slot++) {
+                Map<String, Object> group = new LinkedHashMap<>();
+                group.put("count", accumulator.counts[slot]);
+                for (int m = 0; m < measures.length; m++) {
+                    group.put(measures[m], accumulator.sums[m][slot]);
+                }
+                groups.put(accumulator.values.get(slot), group);
+            }
+            byDimension.put(dimensions[d], groups);
+        }
+        summary.put("byDimension", byDimension);
+
+        if (topIndex >= 0) {
+            List<Ranked> ranked = new ArrayList<>(top);
+            ranked.sort(top.comparator().reversed());
+            List<Map<String, Object>> records = new ArrayList<>();
+            for (Ranked entry : ranked) {
+                Map<String, Object> record = new LinkedHashMap<>();
+                for (int i = 0; i < headers.length; i++) {
+                    record.put(headers[i].trim(), i < entry.record.length ? entry.record[i].trim() : null);
+                }
+                record.put(PROCESSING_DAYS, entry.days);
+                records.add(record);
+            }
+            Map<String, Object> topMap = new LinkedHashMap<>();
+            topMap.put("by", topBy);
+            topMap.put("n", topN);
+            topMap.put("records", records);
+            summary.put("top", topMap);
+        }
+        return summary;
+    }
+
+    /** Write the summary as JSON */
+    public void write(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            new GsonBuilder().serializeNulls().create().toJson(toMap(), writer);
+        }
+    }
+
+    private static double number(String[] record, int index) {
+        if (index >= record.length) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(record[index].trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int indexOf(String[] headers, String column) {
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i].trim().equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,51 @@
+package lambda;
+
+import org.crac.Resource;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Container-wide fixed pool of daemon threads that is shut down before a
+ * snapshot is taken and started again on first use after restore, so no
+ * worker thread is captured mid-task or shared by restored copies.
+ */
+final class DaemonPool implements Resource {
+
+    private final String threadName;
+    private final int threads;
+    private ExecutorService executor;
+
+    DaemonPool(String threadName, int threads) {
+        this.threadName = threadName;
+        this.threads = threads;
+        Warmup.register(this);
+    }
+
+    /** The running pool, started if needed */
+    synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    @Override
+    public synchronized void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws Exception {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            executor = null;
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // Started again by the next get()
+    }
+}
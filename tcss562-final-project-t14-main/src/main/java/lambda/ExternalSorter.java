@@ -0,0 +1,399 @@
+package lambda;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts CSV records on composite keys within a memory budget.
+ *
+ * Records are buffered until their estimated heap size reaches the budget,
+ * then sorted and written to /tmp as a binary run (sequence number, decoded
+ * keys, fields). sorted() k-way merges the runs through a priority queue, or
+ * sorts in memory when nothing spilled. Ties keep input order, so the sort
+ * is stable like List.sort.
+ *
+ * A record is either its fields (add/sorted) or the raw bytes of its line
+ * with just the key values given (addLine/sortedLines); one sorter should
+ * hold one kind.
+ *
+ * A key value is compared as a number if it parses as one, as a date if it
+ * is M/d/yyyy, and as text otherwise; numbers and dates sort before text.
+ * Priority keys order L, M, H, C, with anything else first.
+ */
+public class ExternalSorter implements Closeable {
+
+    /** One column of a composite sort key */
+    public static class SortKey {
+        final int index;
+        final boolean descending;
+        final boolean priority;
+
+        public SortKey(int index, boolean descending, boolean priority) {
+            this.index = index;
+            this.descending = descending;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * A record with its decoded keys; text[i] is null when key i is numeric.
+     * Exactly one of fields and line is set.
+     */
+    private static class Entry {
+        final long seq;
+        final double[] number;
+        final String[] text;
+        final String[] fields;
+        final byte[] line;
+
+        Entry(long seq, double[] number, String[] text, String[] fields, byte[] line) {
+            this.seq = seq;
+            this.number = number;
+            this.text = text;
+            this.fields = fields;
+            this.line = line;
+        }
+    }
+
+    /** Sequential reader over one run file */
+    private class Run {
+        final DataInputStream in;
+        long remaining;
+        Entry head;
+
+        Run(File file, long count) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.remaining = count;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                in.close();
+                head = null;
+                return false;
+            }
+            remaining--;
+            head = readEntry(in);
+            return true;
+        }
+    }
+
+    private final SortKey[] keys;
+    private final long budgetBytes;
+    private final Comparator<Entry> order;
+    private final List<File> runFiles = new ArrayList<>();
+    private final List<Long> runCounts = new ArrayList<>();
+    private final List<Run> openRuns = new ArrayList<>();
+    private final List<Entry> buffer = new ArrayList<>();
+    private long bufferedBytes;
+    private long seq;
+    private long spilledBytes;
+
+    public ExternalSorter(List<SortKey> keys, long budgetBytes) {
+        this.keys = keys.toArray(new SortKey[0]);
+        this.budgetBytes = Math.max(1 << 20, budgetBytes);
+        this.order = (a, b) -> {
+            for (int k = 0; k < this.keys.length; k++) {
+                int c = compareKey(a, b, k);
+                if (c != 0) {
+                    return this.keys[k].descending ? -c : c;
+                }
+            }
+            return Long.compare(a.seq, b.seq);
+        };
+    }
+
+    public void add(String[] fields) throws IOException {
+        String[] values = new String[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            values[k] = keys[k].index < fields.length ? fields[keys[k].index] : "";
+        }
+        long bytes = 0;
+        for (String field : fields) {
+            bytes += 48 + 2L * field.length();
+        }
+        add(values, fields, null, bytes);
+    }
+
+    /**
+     * Add a record as the bytes of its line, which are kept as they are.
+     * keyValues[k] is the line's value of sort key k ("" if it has none).
+     */
+    public void addLine(byte[] line, String[] keyValues) throws IOException {
+        add(keyValues, null, line, 16 + line.length);
+    }
+
+    private void add(String[] keyValues, String[] fields, byte[] line, long recordBytes) throws IOException {
+        double[] number = new double[keys.length];
+        String[] text = new String[keys.length];
+        long bytes = 96 + 16L * keys.length + recordBytes;
+        for (int k = 0; k < keys.length; k++) {
+            String value = keyValues[k].trim();
+            if (keys[k].priority) {
+                number[k] = priorityRank(value);
+            } else if (!decode(value, number, k)) {
+                text[k] = value;
+                if (line != null) {
+                    bytes += 48 + 2L * value.length();
+                }
+            }
+        }
+
+        buffer.add(new Entry(seq++, number, text, fields, line));
+        bufferedBytes += bytes;
+        if (bufferedBytes >= budgetBytes) {
+            spill();
+        }
+    }
+
+    /** Sort the buffer and write it out as a run */
+    private void spill() throws IOException {
+        buffer.sort(order);
+        File file = File.createTempFile("sort-run", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (Entry entry : buffer) {
+                out.writeLong(entry.seq);
+                for (int k = 0; k < keys.length; k++) {
+                    if (entry.text[k] == null) {
+                        out.writeBoolean(false);
+                        out.writeDouble(entry.number[k]);
+                    } else {
+                        out.writeBoolean(true);
+                        out.writeUTF(entry.text[k]);
+                    }
+                }
+                if (entry.line != null) {
+                    out.writeShort(-1);
+                    out.writeInt(entry.line.length);
+                    out.write(entry.line);
+                } else {
+                    out.writeShort(entry.fields.length);
+                    for (String field : entry.fields) {
+                        out.writeUTF(field);
+                    }
+                }
+            }
+        }
+        runFiles.add(file);
+        runCounts.add((long) buffer.size());
+        spilledBytes += file.length();
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        long entrySeq = in.readLong();
+        double[] number = new double[keys.length];
+        String[] text = new String[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            if (in.readBoolean()) {
+                text[k] = in.readUTF();
+            } else {
+                number[k] = in.readDouble();
+            }
+        }
+        short fieldCount = in.readShort();
+        if (fieldCount < 0) {
+            byte[] line = new byte[in.readInt()];
+            in.readFully(line);
+            return new Entry(entrySeq, number, text, null, line);
+        }
+        String[] fields = new String[fieldCount];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readUTF();
+        }
+        return new Entry(entrySeq, number, text, fields, null);
+    }
+
+    /** All records added with add() in key order; call once, after the last add() */
+    public Iterator<String[]> sorted() throws IOException {
+        Iterator<Entry> entries = entries();
+        return new Iterator<String[]>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                return entries.next().fields;
+            }
+        };
+    }
+
+    /** All lines added with addLine() in key order; call once, after the last addLine() */
+    public Iterator<byte[]> sortedLines() throws IOException {
+        Iterator<Entry> entries = entries();
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return entries.next().line;
+            }
+        };
+    }
+
+    private Iterator<Entry> entries() throws IOException {
+        if (runFiles.isEmpty()) {
+            buffer.sort(order);
+            return buffer.iterator();
+        }
+
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        PriorityQueue<Run> heads = new PriorityQueue<>((a, b) -> order.compare(a.head, b.head));
+        for (int r = 0; r < runFiles.size(); r++) {
+            Run run = new Run(runFiles.get(r), runCounts.get(r));
+            openRuns.add(run);
+            if (run.advance()) {
+                heads.add(run);
+            }
+        }
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                Run run = heads.poll();
+                if (run == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry head = run.head;
+                try {
+                    if (run.advance()) {
+                        heads.add(run);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return head;
+            }
+        };
+    }
+
+    /**
+     * Spill anything buffered and return the run files, e.g. to save them
+     * with a checkpoint. The sorter keeps owning them; close() deletes them.
+     */
+    public List<File> spillAll() throws IOException {
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        return Collections.unmodifiableList(runFiles);
+    }
+
+    /** Records in each run, in the order of spillAll() */
+    public List<Long> getRunCounts() {
+        return Collections.unmodifiableList(runCounts);
+    }
+
+    /** Sequence number the next added record gets */
+    public long getNextSeq() {
+        return seq;
+    }
+
+    /**
+     * Adopt runs spilled by an earlier sorter with the same keys, before any
+     * add(). Records added afterwards continue its sequence, so ties still
+     * keep input order.
+     */
+    public void restore(List<File> files, List<Long> counts, long nextSeq) {
+        if (!buffer.isEmpty() || seq != 0) {
+            throw new IllegalStateException("restore() must come before add()");
+        }
+        runFiles.addAll(files);
+        runCounts.addAll(counts);
+        for (File file : files) {
+            spilledBytes += file.length();
+        }
+        seq = nextSeq;
+    }
+
+    public int getRunCount() {
+        return runFiles.size();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /** Close any runs still being merged and delete the run files */
+    @Override
+    public void close() {
+        for (Run run : openRuns) {
+            try {
+                run.in.close();
+            } catch (IOException e) {
+                // Deleting the file below is all that matters
+            }
+        }
+        for (File file : runFiles) {
+            file.delete();
+        }
+    }
+
+    private int compareKey(Entry a, Entry b, int k) {
+        String textA = a.text[k];
+        String textB = b.text[k];
+        if (textA == null && textB == null) {
+            return Double.compare(a.number[k], b.number[k]);
+        }
+        if (textA == null || textB == null) {
+            return textA == null ? -1 : 1;
+        }
+        return textA.compareTo(textB);
+    }
+
+    /** Parse a number, or an M/d/yyyy date as yyyyMMdd, into number[k] */
+    private static boolean decode(String value, double[] number, int k) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        char first = value.charAt(0);
+        if ((first >= '0' && first <= '9') || first == '-' || first == '.') {
+            int slash = value.indexOf('/');
+            if (slash > 0) {
+                String[] parts = value.split("/");
+                if (parts.length == 3) {
+                    try {
+                        number[k] = Integer.parseInt(parts[2]) * 10000.0 + Integer.parseInt(parts[0]) * 100 + Integer.parseInt(parts[1]);
+                        return true;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            try {
+                number[k] = Double.parseDouble(value);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /** Sort rank of an Order Priority: L=1, M=2, H=3, C=4, anything else 0 */
+    static int priorityRank(String priority) {
+        switch (priority.toUpperCase()) {
+            case "L": return 1;  // Low
+            case "M": return 2;  // Medium
+            case "H": return 3;  // High
+            case "C": return 4;  // Critical
+            default: return 0;
+        }
+    }
+}
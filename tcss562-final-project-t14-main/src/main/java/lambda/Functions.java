@@ -0,0 +1,105 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The TLQ functions by name, for entry points other than the Lambda runtime:
+ * the OpenWhisk actions in package ibm and the local runner.
+ *
+ * Each function is the Lambda handler class itself; the engines are not split
+ * out of the handlers. They depend only on an ObjectStore and the Context
+ * interface, which LocalContext provides anywhere, and the Lambda types come
+ * from aws-lambda-java-core, a small jar of interfaces that every build
+ * already ships. One handler per function is created on first use and kept for
+ * the life of the JVM, as the Lambda runtime keeps its handler instance. So
+ * the /tmp database cache, columnar tables, connection and buffer pools,
+ * Warmup's startup report and the latency histograms behave the same on
+ * every platform.
+ *
+ * JSON entry points get the request as the Lambda runtime gives it to a
+ * HashMap handler: objects as maps, whole numbers as Integer or Long.
+ */
+public final class Functions {
+
+    public static final String TRANSFORM = "transform";
+    public static final String LOAD = "load";
+    public static final String QUERY = "query";
+    public static final String COALESCE = "coalesce";
+    public static final String HELLO = "hello";
+
+    private static volatile Functions shared;
+
+    private final ObjectStore store;
+    private final ConcurrentHashMap<String, RequestHandler<HashMap<String, Object>, HashMap<String, Object>>> handlers
+            = new ConcurrentHashMap<>();
+
+    public Functions(ObjectStore store) {
+        this.store = store;
+    }
+
+    /** The container-wide instance, on ObjectStore.defaultStore() */
+    public static Functions shared() {
+        if (shared == null) {
+            synchronized (Functions.class) {
+                if (shared == null) {
+                    shared = new Functions(ObjectStore.defaultStore());
+                }
+            }
+        }
+        return shared;
+    }
+
+    /** Run a function on a request as the Lambda runtime would */
+    public HashMap<String, Object> invoke(String function, HashMap<String, Object> request, Context context) {
+        return handler(function).handleRequest(request, context);
+    }
+
+    /** Run a function on a JSON request and return its response as JSON */
+    public JsonObject invoke(String function, JsonObject request, Context context) {
+        return toJson(invoke(function, fromJson(request), context));
+    }
+
+    private RequestHandler<HashMap<String, Object>, HashMap<String, Object>> handler(String function) {
+        return handlers.computeIfAbsent(function, name -> {
+            switch (name) {
+                case TRANSFORM:
+                    return new TransformCSV(store);
+                case LOAD:
+                    return new CreateSQLiteDB(store);
+                case QUERY:
+                    return new QuerySQLite(store);
+                case COALESCE:
+                    return new CoalesceUploads(store);
+                case HELLO:
+                    return new Hello();
+                default:
+                    throw new IllegalArgumentException("Unknown function: " + name);
+            }
+        });
+    }
+
+    /** A JSON object as the HashMap the Lambda runtime would pass */
+    public static HashMap<String, Object> fromJson(JsonObject json) {
+        try (JsonReader reader = new JsonReader(new StringReader(json.toString()))) {
+            return QuerySQLiteStream.readObject(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A request or response map as a JSON object */
+    public static JsonObject toJson(Map<String, Object> map) {
+        return new Gson().toJsonTree(map).getAsJsonObject();
+    }
+}
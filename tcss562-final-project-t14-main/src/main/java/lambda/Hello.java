@@ -29,13 +29,15 @@ public class Hello implements RequestHandler<HashMap<String, Object>, HashMap<St
         
         //****************START FUNCTION IMPLEMENTATION*************************
         
+        Object name = request.getOrDefault("name", "World");
+        
         //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.get("name")
+        inspector.addAttribute("message", "Hello " + name
                 + "! This is a custom attribute added as output from SAAF!");
         
         //Create and populate a separate response object for function output. (OPTIONAL)
         Response response = new Response();
-        response.setValue("Hello " + request.get("name")
+        response.setValue("Hello " + name
                 + "! This is from a response object!");
         
         inspector.consumeResponse(response);
@@ -1,10 +1,8 @@
 package lambda;
 
-import com.google.gson.*;
 import saaf.Inspector;
-import java.util.UUID;
-import java.io.InputStream;
-import java.util.HashMap;
+
+import java.util.Map;
 
 
 /**
@@ -18,29 +16,49 @@ public class Helpers {
     /**
      * Push your inspector results to a S3 bucket.
      * 
+     * The results are queued on the bucket's MetricsSink and written in
+     * batches, by a background thread or, inside a function sandbox, before
+     * this returns.
+     * 
      * @param inspector
      * @param bucketName
      */
     public static void s3Push(Inspector inspector, String bucketName) {
-        /*
-        String uuid = UUID.randomUUID().toString();
+        MetricsSink.forBucket(bucketName).submit(inspector.finish());
+        MetricsSink.endInvocation();
+    }
 
-        //Convert Inspector Hashmap to JsonObject
-        JsonObject output = new JsonObject();
-        HashMap<String, Object> results = inspector.finish();
-        results.keySet().forEach((s) -> {
-            output.addProperty(s, String.valueOf(results.get(s)));
-        });
-        String jsonString = output.getAsString();
+    /**
+     * Start collecting an invocation's metrics, or return null when neither
+     * METRICS_BUCKET nor METRICS_DIR is set.
+     */
+    static Inspector startMetrics() {
+        if (MetricsSink.fromEnvironment() == null) {
+            return null;
+        }
+        Inspector inspector = new Inspector();
+        inspector.inspectContainer();
+        inspector.inspectCPU();
+        return inspector;
+    }
 
-        byte[] bytes = jsonString.getBytes(StandardCharsets.UTF_8); 
-        InputStream is = new ByteArrayInputStream(bytes); 
-        ObjectMetadata meta = new ObjectMetadata(); 
-        meta.setContentLength(bytes.length); 
-        meta.setContentType("application/json");
-        
-        // Create new file on S3
-        AmazonS3 s3Client = AmazonS3ClientBuilder.standard().build(); s3Client.putObject(bucketName, "run " + uuid + ".json", is, meta);
-        */
+    /**
+     * Export the metrics started by startMetrics() together with the outcome
+     * of the invocation. Priming runs are not exported.
+     *
+     * @param inspector Result of startMetrics(), may be null.
+     * @param function Name of the handler.
+     * @param response The handler's response.
+     */
+    static void finishMetrics(Inspector inspector, String function, Map<String, Object> response) {
+        if (inspector == null || Warmup.isPriming()) {
+            return;
+        }
+        inspector.inspectCPUDelta();
+        inspector.addAttribute("function", function);
+        inspector.addAttribute("status", response.get("status"));
+        inspector.addAttribute("coldStart", response.containsKey("startup"));
+        MetricsSink.fromEnvironment().submit(inspector.finish());
+        MetricsSink.endInvocation();
     }
-}
\ No newline at end of file
+}
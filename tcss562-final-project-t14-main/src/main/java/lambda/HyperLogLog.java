@@ -0,0 +1,118 @@
+package lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * HyperLogLog distinct-count sketch with 2^PRECISION one-byte registers.
+ *
+ * The relative standard error is 1.04 / sqrt(2^PRECISION), about 1.6%, at
+ * any cardinality; small cardinalities switch to linear counting. Sketches
+ * merge by taking the register-wise maximum, which is what lets append
+ * loads and shards combine their counts. Registers are deflated when
+ * serialized, so low-cardinality columns cost a few bytes.
+ */
+public class HyperLogLog {
+
+    public static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+
+    /** 1.04 / sqrt(m) */
+    public static final double STANDARD_ERROR = 1.04 / Math.sqrt(REGISTERS);
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(new byte[REGISTERS]);
+    }
+
+    private HyperLogLog(byte[] registers) {
+        this.registers = registers;
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        // The marker bit caps the rank at 64 - PRECISION + 1 when the remaining bits are all zero
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /** Fold another sketch into this one */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toBytes() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(registers);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    public static HyperLogLog fromBytes(byte[] data) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] registers = new byte[REGISTERS];
+        try {
+            int read = 0;
+            while (read < REGISTERS && !inflater.finished()) {
+                read += inflater.inflate(registers, read, REGISTERS - read);
+            }
+            if (read != REGISTERS) {
+                throw new IllegalArgumentException("Truncated HyperLogLog sketch");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt HyperLogLog sketch", e);
+        } finally {
+            inflater.end();
+        }
+        return new HyperLogLog(registers);
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 chars, finished with MurmurHash3's fmix64 to spread the bits */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,217 @@
+package lambda;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * KLL quantile sketch (Karnin, Lang, Liberty) over doubles.
+ *
+ * Items enter level 0. When a level reaches its capacity it is sorted and
+ * every other item, starting at a random offset, is promoted to the next
+ * level with twice the weight. Capacities shrink by 2/3 per level below the
+ * top, so the sketch holds O(K) items however many it has seen. With K = 200
+ * quantiles are within about 1.65% of the requested rank; until the first
+ * compaction every item is kept and answers are exact.
+ */
+public class KllSketch {
+
+    public static final int K = 200;
+    private static final double C = 2.0 / 3.0;
+
+    /** Normalized rank error once the sketch starts compacting (K = 200) */
+    public static final double RANK_ERROR = 0.0165;
+
+    private final Random random = new Random(K);
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private int size;
+    private int maxSize;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public KllSketch() {
+        levels[0] = new double[capacity(0) + 1];
+        maxSize = capacity(0);
+    }
+
+    public void add(double value) {
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        append(0, value);
+        if (size >= maxSize) {
+            compress();
+        }
+    }
+
+    /** Fold another sketch into this one */
+    public void merge(KllSketch other) {
+        while (levels.length < other.levels.length) {
+            grow();
+        }
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        while (size >= maxSize) {
+            compress();
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Whether any items have been compacted away, i.e. answers are approximate */
+    public boolean isEstimate() {
+        return levels.length > 1;
+    }
+
+    /** Smallest retained value whose weighted rank reaches q * count */
+    public double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                values[n] = levels[h][i];
+                weights[n++] = 1L << h;
+            }
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        long total = 0;
+        for (long weight : weights) {
+            total += weight;
+        }
+        double target = q * total;
+        long cumulative = 0;
+        for (int i : order) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                return values[i];
+            }
+        }
+        return max;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(count);
+            out.writeDouble(min);
+            out.writeDouble(max);
+            out.writeInt(levels.length);
+            for (int h = 0; h < levels.length; h++) {
+                out.writeInt(sizes[h]);
+                for (int i = 0; i < sizes[h]; i++) {
+                    out.writeDouble(levels[h][i]);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static KllSketch fromBytes(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            KllSketch sketch = new KllSketch();
+            sketch.count = in.readLong();
+            sketch.min = in.readDouble();
+            sketch.max = in.readDouble();
+            int height = in.readInt();
+            while (sketch.levels.length < height) {
+                sketch.grow();
+            }
+            for (int h = 0; h < height; h++) {
+                int levelSize = in.readInt();
+                for (int i = 0; i < levelSize; i++) {
+                    sketch.append(h, in.readDouble());
+                }
+            }
+            return sketch;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt KLL sketch", e);
+        }
+    }
+
+    /** Items level h may hold before it is compacted */
+    private int capacity(int h) {
+        int depth = levels.length - h - 1;
+        return (int) Math.ceil(K * Math.pow(C, depth)) + 1;
+    }
+
+    private void append(int h, double value) {
+        if (sizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], Math.max(8, levels[h].length * 2));
+        }
+        levels[h][sizes[h]++] = value;
+        size++;
+    }
+
+    private void grow() {
+        levels = Arrays.copyOf(levels, levels.length + 1);
+        sizes = Arrays.copyOf(sizes, sizes.length + 1);
+        levels[levels.length - 1] = new double[8];
+        maxSize = 0;
+        for (int h = 0; h < levels.length; h++) {
+            maxSize += capacity(h);
+        }
+    }
+
+    /** Compact the lowest full levels until the sketch is back under maxSize */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacity(h)) {
+                if (h + 1 == levels.length) {
+                    grow();
+                }
+                compact(h);
+                if (size < maxSize) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Sort level h and promote every other item to level h + 1; an odd item out stays */
+    private void compact(int h) {
+        double[] items = levels[h];
+        int n = sizes[h];
+        Arrays.sort(items, 0, n);
+        int even = n & ~1;
+        int offset = random.nextBoolean() ? 1 : 0;
+        sizes[h] = 0;
+        size -= n;
+        for (int i = offset; i < even; i += 2) {
+            append(h + 1, items[i]);
+        }
+        if (even < n) {
+            append(h, items[n - 1]);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package lambda;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free, log-linear (HDR style) latency histogram.
+ *
+ * Values are recorded in microseconds into buckets that split every power of
+ * two into 2^SUB_BUCKET_BITS linear sub-buckets, giving ~3% relative error
+ * over 1us .. ~12 days with a fixed ~1.2k counters. Recording is a handful of
+ * atomic increments. snapshotAndReset() swaps in a fresh interval, so every
+ * recorded value is reported exactly once; the bucket counts are included in
+ * the snapshot so an external collector can merge histograms from many
+ * containers and compute fleet-wide percentiles.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /** One reporting interval; writers register in 'active' so readers can wait them out */
+    private static class Interval {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong active = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumMicros = new AtomicLong();
+        final AtomicLong minMicros = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong maxMicros = new AtomicLong();
+        final long startedAt = System.currentTimeMillis();
+    }
+
+    private final AtomicReference<Interval> current = new AtomicReference<>(new Interval());
+
+    /** Record a latency measured with System.nanoTime() deltas */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /** Record a latency in microseconds */
+    public void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        Interval interval = enter();
+        try {
+            interval.counts.incrementAndGet(bucketIndex(value));
+            interval.count.incrementAndGet();
+            interval.sumMicros.addAndGet(value);
+            updateMin(interval.minMicros, value);
+            updateMax(interval.maxMicros, value);
+        } finally {
+            interval.active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Register as a writer of the current interval. The interval is checked
+     * again after registering: a writer that registers on an interval already
+     * swapped out may come after the reader stopped waiting, so it moves on
+     * to the new one instead.
+     */
+    private Interval enter() {
+        while (true) {
+            Interval interval = current.get();
+            interval.active.incrementAndGet();
+            if (current.get() == interval) {
+                return interval;
+            }
+            interval.active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Report counts and percentiles recorded since the previous call and start
+     * a new interval.
+     *
+     * @return count, min/mean/max, p50/p95/p99 in ms and sparse bucket counts.
+     */
+    public Map<String, Object> snapshotAndReset() {
+        Interval interval = current.getAndSet(new Interval());
+
+        // Wait for writers that registered on the old interval before the swap
+        while (interval.active.get() > 0) {
+            Thread.yield();
+        }
+
+        long[] counts = new long[BUCKET_COUNT];
+        Map<String, Long> buckets = new TreeMap<>(Comparator.comparingInt(Integer::parseInt));
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = interval.counts.get(i);
+            if (counts[i] > 0) {
+                buckets.put(String.valueOf(i), counts[i]);
+            }
+        }
+
+        long count = interval.count.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("intervalStart", interval.startedAt);
+        snapshot.put("intervalEnd", System.currentTimeMillis());
+        if (count > 0) {
+            snapshot.put("minMs", interval.minMicros.get() / 1000.0);
+            snapshot.put("meanMs", interval.sumMicros.get() / 1000.0 / count);
+            snapshot.put("maxMs", interval.maxMicros.get() / 1000.0);
+            long max = interval.maxMicros.get();
+            snapshot.put("p50Ms", Math.min(max, percentile(counts, count, 0.50)) / 1000.0);
+            snapshot.put("p95Ms", Math.min(max, percentile(counts, count, 0.95)) / 1000.0);
+            snapshot.put("p99Ms", Math.min(max, percentile(counts, count, 0.99)) / 1000.0);
+        }
+        snapshot.put("subBucketBits", SUB_BUCKET_BITS);
+        snapshot.put("buckets", buckets);
+        return snapshot;
+    }
+
+    /** Upper bound (in us) of the bucket holding the given quantile */
+    private static long percentile(long[] counts, long total, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(counts.length - 1);
+    }
+
+    /** Map a value to its log-linear bucket */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Largest value that maps to the given bucket */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private static void updateMin(AtomicLong target, long value) {
+        long seen;
+        while (value < (seen = target.get()) && !target.compareAndSet(seen, value)) {
+            // retry
+        }
+    }
+
+    private static void updateMax(AtomicLong target, long value) {
+        long seen;
+        while (value > (seen = target.get()) && !target.compareAndSet(seen, value)) {
+            // retry
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package lambda;
+
+import java.io.IOException;
+
+/**
+ * Source of CSV lines for the load and transform code. OffsetLineReader and
+ * the batch reader implement it directly; a BufferedReader is adapted with
+ * br::readLine.
+ */
+public interface LineSource {
+
+    /** Next line without its line ending, or null at the end */
+    String readLine() throws IOException;
+}
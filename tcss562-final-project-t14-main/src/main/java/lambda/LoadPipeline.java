@@ -0,0 +1,381 @@
+package lambda;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Producer/consumer pipeline in front of CreateSQLiteDB's insert loop.
+ *
+ * A reader thread takes lines into a bounded ring of chunks, parser threads
+ * split and trim each chunk into its preallocated row arrays, the loading
+ * thread (the consumer) binds and executes one batch per chunk, and an
+ * after-write thread runs the per-row bookkeeping that needs the rows in
+ * input order before the chunk goes back to the reader. The reader waits for
+ * a free chunk, so at most slots chunks of rows are held however far SQLite
+ * falls behind, and the arrays are reused rather than allocated per row.
+ *
+ * With no parser threads every stage runs on the loading thread, one chunk
+ * at a time. stats() reports how busy and how blocked each stage was.
+ */
+public class LoadPipeline implements Closeable {
+
+    /** Parser threads when the request does not say: one per spare CPU, up to 4 */
+    static int defaultParsers() {
+        return Math.max(0, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /** Request value "parsers", or defaultParsers() */
+    static int parsers(Map<String, Object> request) {
+        Object parsers = request.get("parsers");
+        return parsers == null ? defaultParsers() : Math.max(0, ((Number) parsers).intValue());
+    }
+
+    /** Rows of one batch, reused round the ring */
+    public static final class Chunk {
+        private final Object[] lines;
+        final String[][] rows;
+        private final int[] fieldCounts;
+        /** Set by the consumer from the batch's update counts */
+        final boolean[] inserted;
+        int size;
+        /** Decoded offset after the chunk's last line, when reading an OffsetLineReader */
+        long endOffset = -1;
+        private long seq = -1;
+        private boolean parsed;
+
+        private Chunk(int rowsPerChunk, int columns) {
+            lines = new Object[rowsPerChunk];
+            rows = new String[rowsPerChunk][columns];
+            fieldCounts = new int[rowsPerChunk];
+            inserted = new boolean[rowsPerChunk];
+        }
+
+        /**
+         * Row r as split(",") would give it, trimmed and cut at the column
+         * count. rows[r] holds the same values padded with nulls to the
+         * column count.
+         */
+        String[] row(int r) {
+            String[] row = rows[r];
+            return fieldCounts[r] == row.length ? row : Arrays.copyOf(row, fieldCounts[r]);
+        }
+    }
+
+    /** Work done on each written chunk, in input order */
+    public interface ChunkTask {
+        void run(Chunk chunk) throws Exception;
+    }
+
+    private static final Chunk END = new Chunk(0, 0);
+
+    private final LineSource reader;
+    private final OffsetLineReader offsetReader;
+    private final int columns;
+    private final int parsers;
+    private final int rowsPerChunk;
+    private final ChunkTask afterWrite;
+    private final Chunk[] ring;
+    private final Semaphore free;
+    private final BlockingQueue<Chunk> toParse;
+    private final BlockingQueue<Chunk> written;
+    private final List<Thread> threads = new ArrayList<>();
+    private final ByteFields fields = new ByteFields();
+
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private volatile long endSeq = -1;
+    private long nextSeq;
+    private boolean finished;
+
+    private final long startNanos = System.nanoTime();
+    private long wallNanos;
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong readBlockedNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong afterWriteNanos = new AtomicLong();
+    private long writeNanos;
+    private long writeStarvedNanos;
+    private long handedOutAt = -1;
+
+    /**
+     * Start the pipeline's threads over br, positioned after the header.
+     *
+     * @param columns Values per row; shorter lines are padded with null.
+     * @param parsers Parser threads; 0 runs every stage on the calling thread.
+     * @param rowsPerChunk Rows per chunk, i.e. per executed batch.
+     * @param afterWrite Run on each chunk passed to written(), in order.
+     */
+    public LoadPipeline(LineSource br, int columns, int parsers, int rowsPerChunk, ChunkTask afterWrite) {
+        this.reader = br;
+        this.offsetReader = br instanceof OffsetLineReader ? (OffsetLineReader) br : null;
+        this.columns = columns;
+        this.parsers = parsers;
+        this.rowsPerChunk = rowsPerChunk;
+        this.afterWrite = afterWrite;
+
+        // Enough chunks for every parser to hold one while the consumer and after-write stage hold others
+        int slots = parsers == 0 ? 1 : 2 * parsers + 2;
+        this.ring = new Chunk[slots];
+        for (int i = 0; i < slots; i++) {
+            ring[i] = new Chunk(rowsPerChunk, columns);
+        }
+        this.free = new Semaphore(slots);
+        this.toParse = new ArrayBlockingQueue<>(slots);
+        this.written = new ArrayBlockingQueue<>(slots + 1);
+
+        if (parsers > 0) {
+            start("tlq-load-reader", this::readLoop);
+            for (int p = 0; p < parsers; p++) {
+                start("tlq-load-parser-" + p, this::parseLoop);
+            }
+            start("tlq-load-after-write", this::afterWriteLoop);
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private void start(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // Stopped by close()
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void fail(Throwable e) {
+        synchronized (this) {
+            if (failure == null && !closed) {
+                failure = e;
+            }
+            notifyAll();
+        }
+    }
+
+    private void readLoop() throws Exception {
+        for (long seq = 0; !closed; seq++) {
+            long waitStart = System.nanoTime();
+            free.acquire();
+            long readStart = System.nanoTime();
+            readBlockedNanos.addAndGet(readStart - waitStart);
+
+            Chunk chunk = ring[(int) (seq % ring.length)];
+            synchronized (this) {
+                chunk.seq = seq;
+                chunk.parsed = false;
+            }
+            boolean more = fill(chunk);
+            readNanos.addAndGet(System.nanoTime() - readStart);
+            if (chunk.size > 0) {
+                toParse.put(chunk);
+            }
+            if (!more) {
+                synchronized (this) {
+                    endSeq = chunk.size > 0 ? seq + 1 : seq;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /** Read up to rowsPerChunk lines into the chunk; false once the input is exhausted */
+    private boolean fill(Chunk chunk) throws IOException {
+        ByteLineReader bytes = reader instanceof ByteLineReader ? (ByteLineReader) reader : null;
+        int size = 0;
+        boolean more = true;
+        while (size < rowsPerChunk) {
+            Object line = bytes != null ? bytes.readLineBytes() : reader.readLine();
+            if (line == null) {
+                more = false;
+                break;
+            }
+            chunk.lines[size++] = line;
+        }
+        chunk.size = size;
+        chunk.endOffset = offsetReader != null ? offsetReader.getOffset() : -1;
+        return more;
+    }
+
+    private void parseLoop() throws Exception {
+        ByteFields fields = new ByteFields();
+        while (true) {
+            Chunk chunk = toParse.take();
+            long start = System.nanoTime();
+            parse(chunk, fields);
+            parseNanos.addAndGet(System.nanoTime() - start);
+            synchronized (this) {
+                chunk.parsed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Split and trim each line into the chunk's row arrays the way line.split(",") and trim() would */
+    private void parse(Chunk chunk, ByteFields fields) {
+        for (int r = 0; r < chunk.size; r++) {
+            Object line = chunk.lines[r];
+            fields.split(line instanceof byte[] ? (byte[]) line : ((String) line).getBytes(StandardCharsets.UTF_8));
+            String[] row = chunk.rows[r];
+            for (int i = 0; i < columns; i++) {
+                row[i] = fields.trimmed(i);
+            }
+            chunk.fieldCounts[r] = Math.min(fields.count(), columns);
+            chunk.lines[r] = null;
+        }
+    }
+
+    private void afterWriteLoop() throws Exception {
+        while (true) {
+            Chunk chunk = written.take();
+            if (chunk == END) {
+                return;
+            }
+            long start = System.nanoTime();
+            afterWrite.run(chunk);
+            afterWriteNanos.addAndGet(System.nanoTime() - start);
+            free.release();
+        }
+    }
+
+    /** Next parsed chunk in input order, waiting for it if need be; null at the end of the input */
+    public Chunk next() throws Exception {
+        long start = System.nanoTime();
+        if (handedOutAt >= 0) {
+            writeNanos += start - handedOutAt;
+        }
+
+        Chunk chunk;
+        if (parsers == 0) {
+            chunk = ring[0];
+            fill(chunk);
+            long parseStart = System.nanoTime();
+            readNanos.addAndGet(parseStart - start);
+            if (chunk.size == 0) {
+                handedOutAt = -1;
+                return null;
+            }
+            parse(chunk, fields);
+            long parseEnd = System.nanoTime();
+            parseNanos.addAndGet(parseEnd - parseStart);
+            writeStarvedNanos += parseEnd - start;
+        } else {
+            chunk = ring[(int) (nextSeq % ring.length)];
+            synchronized (this) {
+                while (failure == null && !(chunk.parsed && chunk.seq == nextSeq) && !(endSeq >= 0 && nextSeq >= endSeq)) {
+                    wait();
+                }
+            }
+            rethrow();
+            if (endSeq >= 0 && nextSeq >= endSeq) {
+                handedOutAt = -1;
+                return null;
+            }
+            writeStarvedNanos += System.nanoTime() - start;
+        }
+        nextSeq++;
+        handedOutAt = System.nanoTime();
+        return chunk;
+    }
+
+    /** Hand a chunk whose batch has been executed to the after-write stage */
+    public void written(Chunk chunk) throws Exception {
+        if (parsers == 0) {
+            long start = System.nanoTime();
+            afterWrite.run(chunk);
+            long end = System.nanoTime();
+            afterWriteNanos.addAndGet(end - start);
+            // Time spent here is not the consumer's own work
+            if (handedOutAt >= 0) {
+                handedOutAt += end - start;
+            }
+            return;
+        }
+        rethrow();
+        written.put(chunk);
+    }
+
+    /** Wait for the after-write stage to finish every written chunk */
+    public void finish() throws Exception {
+        if (handedOutAt >= 0) {
+            writeNanos += System.nanoTime() - handedOutAt;
+            handedOutAt = -1;
+        }
+        if (parsers > 0 && !finished) {
+            finished = true;
+            written.put(END);
+            threads.get(threads.size() - 1).join();
+        }
+        rethrow();
+        wallNanos = System.nanoTime() - startNanos;
+    }
+
+    private void rethrow() throws Exception {
+        Throwable e = failure;
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        } else if (e != null) {
+            throw new IOException("Load pipeline failed: " + e, e);
+        }
+    }
+
+    /** Stage timings; call after finish() */
+    public Map<String, Object> stats() {
+        double wall = Math.max(1, wallNanos);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("parsers", parsers);
+        stats.put("slots", ring.length);
+        stats.put("rowsPerSlot", rowsPerChunk);
+        stats.put("chunks", nextSeq);
+        stats.put("wallMs", wallNanos / 1_000_000);
+        stats.put("readerBusyMs", readNanos.get() / 1_000_000);
+        stats.put("readerBlockedMs", readBlockedNanos.get() / 1_000_000);
+        stats.put("parserBusyMs", parseNanos.get() / 1_000_000);
+        stats.put("parserUtilization", round(parseNanos.get() / (wall * Math.max(1, parsers))));
+        stats.put("writerBusyMs", writeNanos / 1_000_000);
+        stats.put("writerStarvedMs", writeStarvedNanos / 1_000_000);
+        stats.put("writerUtilization", round(writeNanos / wall));
+        stats.put("afterWriteBusyMs", afterWriteNanos.get() / 1_000_000);
+        stats.put("afterWriteUtilization", round(afterWriteNanos.get() / wall));
+        return stats;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /** Stop the threads; chunks not yet written are dropped */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
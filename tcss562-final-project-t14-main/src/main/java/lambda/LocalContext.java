@@ -0,0 +1,55 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.util.UUID;
+
+/**
+ * Lambda Context for running handlers outside of AWS. Logs go to stdout
+ * (or nowhere when quiet) and the remaining time counts down from the
+ * configured timeout like the real runtime.
+ */
+public class LocalContext implements Context {
+
+    private final String functionName;
+    private final int memoryLimitMB;
+    private final long deadline;
+    private final LambdaLogger logger;
+
+    public LocalContext(String functionName) {
+        this(functionName, 512, 300000, false);
+    }
+
+    public LocalContext(String functionName, int memoryLimitMB, int timeoutMillis, boolean quiet) {
+        this.functionName = functionName;
+        this.memoryLimitMB = memoryLimitMB;
+        this.deadline = System.currentTimeMillis() + timeoutMillis;
+        this.logger = quiet ? message -> { } : System.out::print;
+    }
+
+    @Override
+    public String getAwsRequestId() { return UUID.randomUUID().toString(); }
+    @Override
+    public String getLogGroupName() { return "local"; }
+    @Override
+    public String getLogStreamName() { return "local"; }
+    @Override
+    public String getFunctionName() { return functionName; }
+    @Override
+    public String getFunctionVersion() { return "$LATEST"; }
+    @Override
+    public String getInvokedFunctionArn() { return "arn:aws:lambda:local:000000000000:function:" + functionName; }
+    @Override
+    public CognitoIdentity getIdentity() { return null; }
+    @Override
+    public ClientContext getClientContext() { return null; }
+    @Override
+    public int getRemainingTimeInMillis() { return (int) Math.max(0, deadline - System.currentTimeMillis()); }
+    @Override
+    public int getMemoryLimitInMB() { return memoryLimitMB; }
+    @Override
+    public LambdaLogger getLogger() { return logger; }
+}
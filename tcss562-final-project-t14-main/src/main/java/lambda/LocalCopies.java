@@ -0,0 +1,77 @@
+package lambda;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which version of a store object each file in /tmp holds.
+ *
+ * A warm container keeps databases and indexes in /tmp between requests, but
+ * the objects behind them can be replaced at any time, often by content of
+ * the same size. A local file counts as current only while the object still
+ * has the ETag recorded when the file was downloaded or uploaded, and the
+ * file's length and modification time have not changed since.
+ */
+final class LocalCopies {
+
+    /** "etag|length|mtime" keyed by absolute local path */
+    private static final ConcurrentHashMap<String, String> VERSIONS = new ConcurrentHashMap<>();
+
+    /** One lock per local path, so concurrent requests never download into the same file */
+    private static final ConcurrentHashMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private LocalCopies() {}
+
+    /** Record that localFile holds the store object with this ETag */
+    static void record(File localFile, String etag) {
+        VERSIONS.put(localFile.getAbsolutePath(), version(etag, localFile));
+    }
+
+    /** Whether localFile still holds the object version with this ETag */
+    static boolean isCurrent(File localFile, String etag) {
+        return etag != null && localFile.isFile()
+                && version(etag, localFile).equals(VERSIONS.get(localFile.getAbsolutePath()));
+    }
+
+    /** Forget localFile, e.g. after deleting it */
+    static void forget(File localFile) {
+        VERSIONS.remove(localFile.getAbsolutePath());
+    }
+
+    /** Forget every recorded version, so each local file is fetched again */
+    static void clear() {
+        VERSIONS.clear();
+    }
+
+    /**
+     * Download the object into localFile unless it already holds the version
+     * with this ETag. The download goes to a sibling file that then replaces
+     * localFile, so readers with the old copy open keep reading it intact.
+     *
+     * @return true if the object was downloaded.
+     */
+    static boolean fetch(ObjectStore store, String bucket, String key, String etag, File localFile)
+            throws IOException {
+        if (isCurrent(localFile, etag)) {
+            return false;
+        }
+        synchronized (LOCKS.computeIfAbsent(localFile.getAbsolutePath(), k -> new Object())) {
+            if (isCurrent(localFile, etag)) {
+                return false;
+            }
+            File download = new File(localFile.getPath() + ".download");
+            store.download(bucket, key, download);
+            Files.move(download.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            record(localFile, etag);
+            return true;
+        }
+    }
+
+    private static String version(String etag, File localFile) {
+        return etag + "|" + localFile.length() + "|" + localFile.lastModified();
+    }
+}
@@ -0,0 +1,124 @@
+package lambda;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ObjectStore stand-in that keeps each bucket as a directory below a root
+ * folder, with keys as relative paths (root/bucket/key).
+ */
+public class LocalObjectStore implements ObjectStore {
+
+    private final File root;
+
+    public LocalObjectStore(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /** Local file backing the given object */
+    public File fileFor(String bucket, String key) {
+        return new File(new File(root, bucket), key);
+    }
+
+    @Override
+    public InputStream open(String bucket, String key) throws IOException {
+        File file = fileFor(bucket, key);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No such object: " + bucket + "/" + key);
+        }
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public InputStream open(String bucket, String key, long offset) throws IOException {
+        InputStream input = open(bucket, key);
+        ((FileInputStream) input).getChannel().position(offset);
+        return input;
+    }
+
+    @Override
+    public byte[] readRange(String bucket, String key, long offset, int length) throws IOException {
+        File file = fileFor(bucket, key);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No such object: " + bucket + "/" + key);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int available = (int) Math.max(0, Math.min(length, raf.length() - offset));
+            byte[] data = new byte[available];
+            raf.seek(offset);
+            raf.readFully(data);
+            return data;
+        }
+    }
+
+    @Override
+    public String upload(String bucket, String key, File file) throws IOException {
+        File target = fileFor(bucket, key);
+        target.getParentFile().mkdirs();
+        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return etag(bucket, key);
+    }
+
+    @Override
+    public boolean exists(String bucket, String key) {
+        return fileFor(bucket, key).isFile();
+    }
+
+    @Override
+    public long length(String bucket, String key) {
+        File file = fileFor(bucket, key);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    /** Length and modification time to the nanosecond; every upload writes a new file */
+    @Override
+    public String etag(String bucket, String key) throws IOException {
+        File file = fileFor(bucket, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        long modified = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        return Long.toHexString(file.length()) + "-" + Long.toHexString(modified);
+    }
+
+    @Override
+    public void delete(String bucket, String key) {
+        fileFor(bucket, key).delete();
+    }
+
+    @Override
+    public List<String> list(String bucket, String prefix) throws IOException {
+        Path bucketDir = new File(root, bucket).toPath();
+        if (!Files.isDirectory(bucketDir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.walk(bucketDir)) {
+            return files.filter(Files::isRegularFile)
+                    .map(path -> bucketDir.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .filter(key -> key.startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public File download(String bucket, String key, File target) throws IOException {
+        File source = fileFor(bucket, key);
+        if (!source.isFile()) {
+            throw new FileNotFoundException("No such object: " + bucket + "/" + key);
+        }
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+}
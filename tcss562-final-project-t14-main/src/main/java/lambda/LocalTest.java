@@ -19,10 +19,10 @@ public class LocalTest {
         CreateSQLiteDB handler = new CreateSQLiteDB();
         
         try {
-            // Create a simple logger context
-            SimpleLogger logger = new SimpleLogger();
+            // Create a local context that logs to stdout
+            LocalContext context = new LocalContext("local-test");
             
-            File dbFile = handler.createSQLiteDB(csvFile, "test.db", "sales_records", logger);
+            File dbFile = handler.createSQLiteDB(csvFile, "test.db", "sales_records", context);
             
             System.out.println("\n✓ Database created successfully!");
             System.out.println("✓ Location: " + dbFile.getAbsolutePath());
@@ -37,35 +37,3 @@ public class LocalTest {
         }
     }
 }
-
-class SimpleLogger implements com.amazonaws.services.lambda.runtime.Context {
-    private com.amazonaws.services.lambda.runtime.LambdaLogger logger = new com.amazonaws.services.lambda.runtime.LambdaLogger() {
-        @Override
-        public void log(String message) {
-            System.out.print(message);
-        }
-    };
-
-    @Override
-    public String getAwsRequestId() { return "local-test"; }
-    @Override
-    public String getLogGroupName() { return "local"; }
-    @Override
-    public String getLogStreamName() { return "local"; }
-    @Override
-    public com.amazonaws.services.lambda.runtime.ClientContext getClientContext() { return null; }
-    @Override
-    public int getRemainingTimeInMillis() { return 300000; }
-    @Override
-    public int getMemoryLimitInMB() { return 128; }
-    @Override
-    public com.amazonaws.services.lambda.runtime.LambdaLogger getLogger() { return logger; }
-    @Override
-    public String getFunctionName() { return "local-test"; }
-    @Override
-    public String getFunctionVersion() { return "1"; }
-    @Override
-    public String getInvokedFunctionArn() { return "arn:aws:lambda:local:123456789012:function:local-test"; }
-    @Override
-    public com.amazonaws.services.lambda.runtime.CognitoIdentity getIdentity() { return null; }
-}
@@ -0,0 +1,274 @@
+package lambda;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Asynchronous, batched sink for Inspector results.
+ *
+ * submit() only copies the record onto an in-memory queue, so the request path
+ * never waits on S3. Batches are written as newline-delimited JSON (optionally
+ * gzip compressed) through an ObjectStore, so to S3 or a local directory.
+ *
+ * In a long-lived process a daemon thread writes a batch once it is full or
+ * its oldest record reaches the flush interval, and a JVM shutdown hook drains
+ * whatever is left. Inside a function sandbox neither can be relied on: the
+ * container is frozen as soon as the response is sent and may be reaped
+ * without a shutdown. Handlers therefore call endInvocation() before
+ * returning, which writes the queue out on the request thread when running
+ * on Lambda or OpenWhisk.
+ *
+ * Tuning comes from environment variables:
+ *   METRICS_BATCH_SIZE  records per object (default 100)
+ *   METRICS_FLUSH_MS    max age of a pending batch in ms (default 30000)
+ *   METRICS_GZIP        "true" to write .ndjson.gz objects (default true)
+ *   METRICS_PREFIX      key prefix for written objects (default "metrics/")
+ *   METRICS_QUEUE_SIZE  max queued records before new ones are dropped (default 10000)
+ */
+public class MetricsSink {
+
+    private static final ConcurrentHashMap<String, MetricsSink> SINKS = new ConcurrentHashMap<>();
+    private static final String CONTAINER_ID = UUID.randomUUID().toString().substring(0, 8);
+
+    private final ObjectStore store;
+    private final String bucket;
+    private final String prefix;
+    private final boolean gzip;
+    private final int batchSize;
+    private final long flushIntervalMs;
+
+    private final BlockingQueue<Map<String, Object>> queue;
+    private final Object flushLock = new Object();
+    private final Object wakeup = new Object();
+    private final AtomicLong oldestQueuedAt = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flushedRecords = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final Gson gson = new Gson();
+
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    MetricsSink(ObjectStore store, String bucket, String prefix, boolean gzip, int batchSize,
+                long flushIntervalMs, int queueSize) {
+        this.store = store;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.gzip = gzip;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+
+        flusher = new Thread(this::runFlusher, "metrics-sink-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "metrics-sink-shutdown"));
+    }
+
+    /** Sink tuned by the METRICS_* variables */
+    private static MetricsSink configured(ObjectStore store, String bucket) {
+        return new MetricsSink(store, bucket,
+                env("METRICS_PREFIX", "metrics/"),
+                Boolean.parseBoolean(env("METRICS_GZIP", "true")),
+                Integer.parseInt(env("METRICS_BATCH_SIZE", "100")),
+                Long.parseLong(env("METRICS_FLUSH_MS", "30000")),
+                Integer.parseInt(env("METRICS_QUEUE_SIZE", "10000")));
+    }
+
+    /**
+     * Sink that writes batches to the given bucket of ObjectStore.defaultStore(),
+     * shared per bucket
+     */
+    public static MetricsSink forBucket(String bucketName) {
+        return SINKS.computeIfAbsent("bucket:" + bucketName,
+                k -> configured(ObjectStore.defaultStore(), bucketName));
+    }
+
+    /** Sink that writes batches below a local directory, shared per directory */
+    public static MetricsSink forDirectory(File dir) {
+        File absolute = dir.getAbsoluteFile();
+        return SINKS.computeIfAbsent(absolute.getPath(),
+                k -> configured(new LocalObjectStore(absolute.getParentFile()), absolute.getName()));
+    }
+
+    /**
+     * Sink configured by METRICS_BUCKET or METRICS_DIR, or null when neither is
+     * set so callers can skip metrics entirely.
+     */
+    public static MetricsSink fromEnvironment() {
+        String bucket = System.getenv("METRICS_BUCKET");
+        if (bucket != null && !bucket.isEmpty()) {
+            return forBucket(bucket);
+        }
+        String dir = System.getenv("METRICS_DIR");
+        if (dir != null && !dir.isEmpty()) {
+            return forDirectory(new File(dir));
+        }
+        return null;
+    }
+
+    /**
+     * Queue a record for export. Never blocks; if the queue is full the record
+     * is dropped and counted.
+     *
+     * @param record Attributes to export, typically Inspector.finish().
+     * @return true if the record was queued.
+     */
+    public boolean submit(Map<String, Object> record) {
+        if (!running || !queue.offer(new HashMap<>(record))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        submitted.incrementAndGet();
+        oldestQueuedAt.compareAndSet(0, System.currentTimeMillis());
+        if (queue.size() >= batchSize) {
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by handlers just before they return. Inside a function sandbox
+     * every sink is flushed on the calling thread, since nothing else is
+     * guaranteed to run before the container is frozen or reaped; elsewhere
+     * the flusher thread keeps batching.
+     */
+    public static void endInvocation() {
+        if (Warmup.IN_SANDBOX) {
+            flushAll();
+        }
+    }
+
+    /** Synchronously flush every sink created in this container */
+    public static void flushAll() {
+        SINKS.values().forEach(MetricsSink::flush);
+    }
+
+    /** Synchronously write out everything currently queued */
+    public void flush() {
+        synchronized (flushLock) {
+            oldestQueuedAt.set(0);
+            List<Map<String, Object>> batch = new ArrayList<>();
+            while (queue.drainTo(batch, batchSize) > 0) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /** Counters describing what the sink has done so far */
+    public HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("submitted", submitted.get());
+        stats.put("dropped", dropped.get());
+        stats.put("queued", queue.size());
+        stats.put("flushedRecords", flushedRecords.get());
+        stats.put("flushedBatches", flushedBatches.get());
+        stats.put("failedBatches", failedBatches.get());
+        return stats;
+    }
+
+    /**
+     * Background loop: write full batches as they fill up, and everything
+     * queued once the oldest record is older than the flush interval. Records
+     * stay on the queue until written, so flush() always sees all of them.
+     */
+    private void runFlusher() {
+        while (running) {
+            long oldest = oldestQueuedAt.get();
+            long age = oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+
+            if (!queue.isEmpty() && age >= flushIntervalMs) {
+                flush();
+                continue;
+            }
+            synchronized (flushLock) {
+                List<Map<String, Object>> batch = new ArrayList<>();
+                while (queue.size() >= batchSize) {
+                    queue.drainTo(batch, batchSize);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            }
+
+            try {
+                synchronized (wakeup) {
+                    if (queue.size() < batchSize) {
+                        wakeup.wait(queue.isEmpty() ? flushIntervalMs : Math.max(1, flushIntervalMs - age));
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /** Stop the flusher thread and drain the queue, called from the shutdown hook */
+    private void shutdown() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /** Serialize one batch as NDJSON and store it as one object */
+    private void writeBatch(List<Map<String, Object>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        File staged = null;
+        try {
+            staged = File.createTempFile("metrics-", gzip ? ".ndjson.gz" : ".ndjson");
+            try (OutputStream file = new FileOutputStream(staged);
+                 Writer writer = new OutputStreamWriter(gzip ? new GZIPOutputStream(file) : file,
+                         StandardCharsets.UTF_8)) {
+                for (Map<String, Object> record : batch) {
+                    gson.toJson(record, writer);
+                    writer.write('\n');
+                }
+            }
+            store.upload(bucket, nextKey(), staged);
+
+            flushedRecords.addAndGet(batch.size());
+            flushedBatches.incrementAndGet();
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            System.err.println("MetricsSink: failed to write batch of " + batch.size() + " records: " + e);
+        } finally {
+            if (staged != null) {
+                staged.delete();
+            }
+        }
+    }
+
+    /** Time-partitioned, container-unique object key for the next batch */
+    private String nextKey() {
+        SimpleDateFormat partition = new SimpleDateFormat("yyyy/MM/dd/HH");
+        partition.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return prefix + partition.format(new Date()) + "/" + CONTAINER_ID + "-"
+                + System.currentTimeMillis() + "-" + sequence.incrementAndGet()
+                + (gzip ? ".ndjson.gz" : ".ndjson");
+    }
+
+    private static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.isEmpty()) ? defaultValue : value;
+    }
+}
@@ -0,0 +1,278 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several source objects handled by one TransformCSV or CreateSQLiteDB
+ * invocation, named by a list of keys or a prefix, so a burst of uploads
+ * costs one invocation instead of one each.
+ *
+ * Objects are processed either one task per object (per-key outputs) or
+ * read back to back as a single CSV (one combined output). Either way at
+ * most "concurrency" objects of an invocation are in flight at once, on a
+ * container-wide pool of daemon threads sized by TLQ_BATCH_THREADS
+ * (default 16).
+ */
+public class ObjectBatch {
+
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final DaemonPool POOL = new DaemonPool("tlq-batch", batchThreads());
+
+    /** Work done for one object; failures are reported in its result */
+    interface KeyTask {
+        void run(String key, Map<String, Object> result) throws Exception;
+    }
+
+    private ObjectBatch() {}
+
+    private static int batchThreads() {
+        String value = System.getenv("TLQ_BATCH_THREADS");
+        return value == null || value.isEmpty() ? 16 : Math.max(1, Integer.parseInt(value));
+    }
+
+    /** Whether the request names a batch rather than a single key */
+    static boolean isBatch(Map<String, Object> request, String keysParam, String prefixParam) {
+        return request.containsKey(keysParam) || request.containsKey(prefixParam);
+    }
+
+    /** Concurrency from the request, or DEFAULT_CONCURRENCY */
+    static int concurrency(Map<String, Object> request) {
+        Object concurrency = request.get("concurrency");
+        return concurrency == null ? DEFAULT_CONCURRENCY : Math.max(1, ((Number) concurrency).intValue());
+    }
+
+    /**
+     * The explicit keys, or every CSV object (optionally .gz/.zst) under the
+     * prefix in key order.
+     */
+    static List<String> resolveKeys(ObjectStore store, String bucket, List<String> keys, String prefix) throws IOException {
+        List<String> resolved = new ArrayList<>();
+        if (keys != null) {
+            resolved.addAll(keys);
+        } else if (prefix != null) {
+            for (String key : store.list(bucket, prefix)) {
+                if (Compression.stripSuffix(key).toLowerCase().endsWith(".csv")) {
+                    resolved.add(key);
+                }
+            }
+        }
+        if (resolved.isEmpty()) {
+            throw new IllegalArgumentException("No objects to process" + (prefix != null ? " under prefix " + prefix : ""));
+        }
+        return resolved;
+    }
+
+    /**
+     * Run the task for every key on up to concurrency pool threads. Returns
+     * one result per key, in key order, each with "key" and "status"; a
+     * failing object gets status "error" without stopping the others.
+     */
+    static List<Map<String, Object>> forEach(List<String> keys, int concurrency, KeyTask task,
+                                             Context context) throws InterruptedException {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String key : keys) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("key", key);
+            results.add(result);
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < keys.size()) {
+                Map<String, Object> result = results.get(i);
+                long start = System.nanoTime();
+                try {
+                    task.run(keys.get(i), result);
+                    result.put("status", "success");
+                } catch (Exception e) {
+                    result.put("status", "error");
+                    result.put("message", e.getMessage());
+                    context.getLogger().log("ERROR processing " + keys.get(i) + ": " + e.getMessage() + "\n");
+                }
+                result.put("timeMs", (System.nanoTime() - start) / 1000000);
+            }
+        };
+
+        int workers = Math.min(concurrency, keys.size());
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            futures.add(POOL.get().submit(worker));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // The worker catches everything a task throws
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /** Count the results whose status is not "success" */
+    static int failures(List<Map<String, Object>> results) {
+        int failed = 0;
+        for (Map<String, Object> result : results) {
+            if (!"success".equals(result.get("status"))) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Reader over the objects as one CSV: the first object's header, then
+     * every object's rows in key order. Up to concurrency objects are
+     * downloaded ahead of the one being read.
+     */
+    static ConcatenatedReader concatenate(ObjectStore store, String bucket, List<String> keys, int concurrency,
+                                          Context context) {
+        return new ConcatenatedReader(store, bucket, keys, concurrency, context);
+    }
+
+    /**
+     * Line reader over several CSV objects. Each object's header must match
+     * the first one and is skipped; empty objects are skipped.
+     */
+    static class ConcatenatedReader implements ByteLineReader, Closeable {
+        private final ObjectStore store;
+        private final String bucket;
+        private final List<String> keys;
+        private final int concurrency;
+        private final Context context;
+        private final Deque<Future<File>> downloads = new ArrayDeque<>();
+        private final List<Map<String, Object>> objects = new ArrayList<>();
+        private int scheduled;
+        private int current = -1;
+        private OffsetLineReader reader;
+        private File currentFile;
+        private String header;
+        private long rows;
+
+        ConcatenatedReader(ObjectStore store, String bucket, List<String> keys, int concurrency, Context context) {
+            this.store = store;
+            this.bucket = bucket;
+            this.keys = keys;
+            this.concurrency = Math.max(1, concurrency);
+            this.context = context;
+            while (scheduled < keys.size() && scheduled < this.concurrency) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            String key = keys.get(scheduled++);
+            downloads.add(POOL.get().submit(() -> {
+                File file = File.createTempFile("batch-object", ".bin");
+                try (InputStream input = store.open(bucket, key)) {
+                    Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    file.delete();
+                    throw e;
+                }
+                return file;
+            }));
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            byte[] line = readLineBytes();
+            return line == null ? null : new String(line, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] readLineBytes() throws IOException {
+            while (true) {
+                if (reader != null) {
+                    byte[] line = reader.readLineBytes();
+                    if (line != null) {
+                        rows++;
+                        return line;
+                    }
+                    finishCurrent();
+                }
+                if (!openNext()) {
+                    return null;
+                }
+                String objectHeader = reader.readLine();
+                if (objectHeader == null) {
+                    continue;
+                }
+                if (header == null) {
+                    header = objectHeader;
+                    return header.getBytes(StandardCharsets.UTF_8);
+                }
+                if (!objectHeader.trim().equals(header.trim())) {
+                    throw new IOException("Header of " + keys.get(current) + " differs from the first object's");
+                }
+            }
+        }
+
+        /** Open the next downloaded object; false once all are read */
+        private boolean openNext() throws IOException {
+            if (downloads.isEmpty()) {
+                return false;
+            }
+            try {
+                currentFile = downloads.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + keys.get(current + 1));
+            } catch (ExecutionException e) {
+                throw new IOException("Could not download " + keys.get(current + 1) + ": " + e.getCause().getMessage(), e.getCause());
+            }
+            if (scheduled < keys.size()) {
+                schedule();
+            }
+            current++;
+            rows = 0;
+            reader = OffsetLineReader.open(new FileInputStream(currentFile), keys.get(current), context);
+            return true;
+        }
+
+        private void finishCurrent() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            object.put("key", keys.get(current));
+            object.put("rows", rows);
+            object.put("sizeBytes", currentFile.length());
+            objects.add(object);
+            reader.close();
+            reader = null;
+            currentFile.delete();
+        }
+
+        /** Rows and size of each object read so far, in key order */
+        List<Map<String, Object>> getObjects() {
+            return objects;
+        }
+
+        /** Close the current object and delete it and any downloads not read yet */
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+                currentFile.delete();
+                reader = null;
+            }
+            // At most concurrency downloads are pending; let them finish so their files can go too
+            for (Future<File> download : downloads) {
+                try {
+                    download.get().delete();
+                } catch (Exception e) {
+                    // A failed download already removed its file
+                }
+            }
+            downloads.clear();
+        }
+    }
+}
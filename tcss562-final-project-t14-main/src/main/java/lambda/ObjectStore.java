@@ -0,0 +1,110 @@
+package lambda;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Minimal object storage API used by the TLQ handlers.
+ *
+ * S3ObjectStore talks to Amazon S3; LocalObjectStore maps buckets and keys
+ * onto a directory so the whole pipeline can run offline. Handlers pick one
+ * with defaultStore() unless one is passed to their constructor.
+ */
+public interface ObjectStore {
+
+    /** Open a stream over the object's content. Caller closes it. */
+    InputStream open(String bucket, String key) throws IOException;
+
+    /** Open a stream over the object's content from the given byte offset on */
+    default InputStream open(String bucket, String key, long offset) throws IOException {
+        InputStream input = open(bucket, key);
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = input.skip(offset - skipped);
+            if (n <= 0) {
+                break;
+            }
+            skipped += n;
+        }
+        return input;
+    }
+
+    /**
+     * Store a local file under the given key, replacing any existing object.
+     *
+     * @return the new object's etag().
+     */
+    String upload(String bucket, String key, File file) throws IOException;
+
+    /** Whether an object exists under the given key */
+    boolean exists(String bucket, String key) throws IOException;
+
+    /** Size of the object in bytes, or -1 if it does not exist */
+    long length(String bucket, String key) throws IOException;
+
+    /**
+     * Tag that changes whenever the object is replaced, even by content of
+     * the same size (S3's ETag), or null if it does not exist.
+     */
+    String etag(String bucket, String key) throws IOException;
+
+    /** Remove the object; a missing object is not an error */
+    void delete(String bucket, String key) throws IOException;
+
+    /** Keys of all objects starting with prefix, in lexicographic order */
+    List<String> list(String bucket, String prefix) throws IOException;
+
+    /**
+     * Read up to length bytes starting at offset. The result is shorter only
+     * when the object ends first.
+     */
+    default byte[] readRange(String bucket, String key, long offset, int length) throws IOException {
+        try (InputStream input = open(bucket, key)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = input.skip(offset - skipped);
+                if (n <= 0) {
+                    return new byte[0];
+                }
+                skipped += n;
+            }
+            return readFully(input, length);
+        }
+    }
+
+    /** Read until length bytes or end of stream */
+    static byte[] readFully(InputStream input, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        int n;
+        while (read < length && (n = input.read(data, read, length - read)) > 0) {
+            read += n;
+        }
+        return read == length ? data : java.util.Arrays.copyOf(data, read);
+    }
+
+    /** Copy the object into the target file and return it */
+    default File download(String bucket, String key, File target) throws IOException {
+        try (InputStream input = open(bucket, key);
+             FileOutputStream fos = new FileOutputStream(target)) {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                fos.write(buffer, 0, length);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Store used when a handler is created by the platform: a LocalObjectStore
+     * rooted at $TLQ_LOCAL_STORE if that variable is set, otherwise S3.
+     */
+    static ObjectStore defaultStore() {
+        String localRoot = System.getenv("TLQ_LOCAL_STORE");
+        if (localRoot != null && !localRoot.isEmpty()) {
+            return new LocalObjectStore(new File(localRoot));
+        }
+        return S3ObjectStore.getInstance();
+    }
+}
@@ -0,0 +1,194 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Line reader over UTF-8 CSV bytes that knows the byte offset of the next
+ * line, so a handler stopping early can record exactly where to resume.
+ *
+ * Lines end at '\n' with an optional '\r' before it. Offsets count bytes of
+ * the decoded stream (after decompression) from the start of the object.
+ * A resumed reader can replay the header line before continuing from the
+ * saved offset.
+ */
+public class OffsetLineReader implements ByteLineReader, Closeable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final InputStream in;
+    private final CountingInputStream source;
+    private final String codec;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] spill = new byte[256];
+    private int pos;
+    private int limit;
+    private long offset;
+    private String replayLine;
+    private String firstLine;
+    private long endOffset = Long.MAX_VALUE;
+
+    /** Last line found by nextSlice(), without its line ending */
+    private byte[] sliceBytes;
+    private int sliceStart;
+    private int sliceLength;
+
+    /**
+     * @param in Decoded stream, already positioned at startOffset.
+     * @param source Raw object stream, for transferred byte counts.
+     * @param codec Compression of the object.
+     * @param startOffset Decoded bytes before the stream's position.
+     * @param replayLine Line returned before reading from the stream, or null.
+     */
+    public OffsetLineReader(InputStream in, CountingInputStream source, String codec, long startOffset, String replayLine) {
+        this.in = in;
+        this.source = source;
+        this.codec = codec;
+        this.offset = startOffset;
+        this.replayLine = replayLine;
+    }
+
+    /**
+     * Reader over a possibly compressed object stream from its start.
+     *
+     * @param raw Object content as returned by the store.
+     * @param key Object key, used when the magic bytes are inconclusive.
+     * @param context Lambda context for logging.
+     */
+    public static OffsetLineReader open(InputStream raw, String key, Context context) throws IOException {
+        CountingInputStream counted = new CountingInputStream(raw);
+        BufferedInputStream buffered = new BufferedInputStream(counted, BUFFER_SIZE);
+        String codec = Compression.detect(buffered, key);
+        context.getLogger().log("Input compression: " + codec + "\n");
+        return new OffsetLineReader(Compression.decompress(buffered, codec), counted, codec, 0, null);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        String line;
+        if (replayLine != null) {
+            line = replayLine;
+            replayLine = null;
+        } else {
+            line = nextSlice() ? new String(sliceBytes, sliceStart, sliceLength, StandardCharsets.UTF_8) : null;
+        }
+        if (firstLine == null) {
+            firstLine = line;
+        }
+        return line;
+    }
+
+    /** Next line as a copy of its undecoded bytes, or null at the end */
+    @Override
+    public byte[] readLineBytes() throws IOException {
+        if (replayLine != null) {
+            return readLine().getBytes(StandardCharsets.UTF_8);
+        }
+        if (!nextSlice()) {
+            return null;
+        }
+        if (firstLine == null) {
+            firstLine = new String(sliceBytes, sliceStart, sliceLength, StandardCharsets.UTF_8);
+        }
+        return Arrays.copyOfRange(sliceBytes, sliceStart, sliceStart + sliceLength);
+    }
+
+    /**
+     * End the input before the first line starting at or after endOffset,
+     * so the reader covers one byte range of a larger object.
+     */
+    public void setEndOffset(long endOffset) {
+        this.endOffset = endOffset;
+    }
+
+    /** Find the next line, without its '\n' or '\r\n', in the buffer or the spill array */
+    private boolean nextSlice() throws IOException {
+        if (offset >= endOffset || pos == limit && !fill()) {
+            return false;
+        }
+
+        // Common case: the whole line is in the buffer
+        int start = pos;
+        int end = indexOfNewline(start);
+        if (end >= 0) {
+            pos = end + 1;
+            offset += pos - start;
+            return slice(buffer, start, end - start);
+        }
+
+        int length = 0;
+        while (true) {
+            end = indexOfNewline(pos);
+            int chunk = (end >= 0 ? end : limit) - pos;
+            if (length + chunk > spill.length) {
+                spill = Arrays.copyOf(spill, Math.max(spill.length * 2, length + chunk));
+            }
+            System.arraycopy(buffer, pos, spill, length, chunk);
+            length += chunk;
+            offset += chunk;
+            if (end >= 0) {
+                pos = end + 1;
+                offset++;
+                break;
+            }
+            pos = limit;
+            if (!fill()) {
+                break;
+            }
+        }
+        return slice(spill, 0, length);
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        pos = 0;
+        limit = Math.max(0, n);
+        return n > 0;
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean slice(byte[] bytes, int start, int length) {
+        if (length > 0 && bytes[start + length - 1] == '\r') {
+            length--;
+        }
+        sliceBytes = bytes;
+        sliceStart = start;
+        sliceLength = length;
+        return true;
+    }
+
+    /** First line returned, i.e. the CSV header */
+    public String getFirstLine() {
+        return firstLine;
+    }
+
+    /** Decoded bytes consumed up to the end of the last line returned */
+    public long getOffset() {
+        return offset;
+    }
+
+    /** Raw (possibly compressed) bytes read from the object by this reader */
+    public long getSourceBytes() {
+        return source.getCount();
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
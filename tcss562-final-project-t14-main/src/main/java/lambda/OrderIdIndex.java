@@ -0,0 +1,213 @@
+package lambda;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Order ID membership index written by CreateSQLiteDB next to each database
+ * as <dbKey>.ids, so QuerySQLite's "lookup" queries can answer most IDs
+ * without opening SQLite.
+ *
+ * A Bloom filter sized for FALSE_POSITIVE_RATE rejects absent IDs. When every
+ * ID is an integer the file also holds the sorted distinct IDs, and a binary
+ * search gives an exact answer; otherwise a Bloom hit has to be confirmed in
+ * SQLite.
+ */
+public class OrderIdIndex {
+
+    public static final String SUFFIX = ".ids";
+    static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAGIC = 0x4f494458;
+
+    /** Indexes loaded in this container, keyed by local file path, length and mtime */
+    private static final ConcurrentHashMap<String, OrderIdIndex> LOADED = new ConcurrentHashMap<>();
+
+    /** Collects IDs during a load */
+    public static class Builder {
+        private long[] hashes = new long[1024];
+        private long[] values = new long[1024];
+        private int count;
+        private boolean numeric = true;
+
+        public void add(String id) {
+            if (id == null || id.isEmpty()) {
+                return;
+            }
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                values = numeric ? Arrays.copyOf(values, count * 2) : values;
+            }
+            hashes[count] = HyperLogLog.hash(id);
+            if (numeric) {
+                try {
+                    values[count] = Long.parseLong(id);
+                } catch (NumberFormatException e) {
+                    numeric = false;
+                    values = null;
+                }
+            }
+            count++;
+        }
+
+        public OrderIdIndex build() {
+            long[] ids = null;
+            int distinct = count;
+            if (numeric) {
+                ids = Arrays.copyOf(values, count);
+                Arrays.sort(ids);
+                distinct = 0;
+                for (int i = 0; i < ids.length; i++) {
+                    if (i == 0 || ids[i] != ids[i - 1]) {
+                        ids[distinct++] = ids[i];
+                    }
+                }
+                ids = Arrays.copyOf(ids, distinct);
+            }
+
+            // m = -n ln p / (ln 2)^2 bits and k = (m / n) ln 2 hash functions
+            long bits = Math.max(64, (long) Math.ceil(-distinct * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2))));
+            int hashCount = Math.max(1, (int) Math.round((double) bits / Math.max(1, distinct) * Math.log(2)));
+            OrderIdIndex index = new OrderIdIndex(new long[(int) ((bits + 63) / 64)], hashCount, ids, distinct);
+            for (int i = 0; i < count; i++) {
+                index.set(hashes[i]);
+            }
+            return index;
+        }
+    }
+
+    private final long[] bloom;
+    private final int hashCount;
+    private final long[] ids;
+    private final long distinct;
+
+    private OrderIdIndex(long[] bloom, int hashCount, long[] ids, long distinct) {
+        this.bloom = bloom;
+        this.hashCount = hashCount;
+        this.ids = ids;
+        this.distinct = distinct;
+    }
+
+    /** Local file holding the index of a database file */
+    public static File file(File dbFile) {
+        return new File(dbFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * FALSE if the ID is definitely absent, TRUE if it is definitely present
+     * (exact ID list), null if the Bloom filter matched but only SQLite can tell.
+     */
+    public Boolean contains(String id) {
+        if (!mightContain(HyperLogLog.hash(id))) {
+            return Boolean.FALSE;
+        }
+        if (ids == null) {
+            return null;
+        }
+        try {
+            return Arrays.binarySearch(ids, Long.parseLong(id)) >= 0;
+        } catch (NumberFormatException e) {
+            return Boolean.FALSE;
+        }
+    }
+
+    /** Whether answers are exact, i.e. the sorted ID list is present */
+    public boolean isExact() {
+        return ids != null;
+    }
+
+    public long getDistinct() {
+        return distinct;
+    }
+
+    /** Double hashing (Kirsch-Mitzenmacher): bit i = h1 + i * h2 */
+    private void set(long hash) {
+        long bits = (long) bloom.length * 64;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(long hash) {
+        long bits = (long) bloom.length * 64;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(distinct);
+            out.writeInt(hashCount);
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            out.writeInt(ids == null ? -1 : ids.length);
+            if (ids != null) {
+                for (long id : ids) {
+                    out.writeLong(id);
+                }
+            }
+        }
+    }
+
+    public static OrderIdIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an Order ID index");
+            }
+            long distinct = in.readLong();
+            int hashCount = in.readInt();
+            long[] bloom = new long[in.readInt()];
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] = in.readLong();
+            }
+            int idCount = in.readInt();
+            long[] ids = null;
+            if (idCount >= 0) {
+                ids = new long[idCount];
+                for (int i = 0; i < idCount; i++) {
+                    ids[i] = in.readLong();
+                }
+            }
+            return new OrderIdIndex(bloom, hashCount, ids, distinct);
+        }
+    }
+
+    /**
+     * Index for the database object, from memory, /tmp or the store (in that
+     * order), or null if the database was loaded without one. The local copy
+     * is used only while the store object still has the ETag it was
+     * downloaded or uploaded with; otherwise it is fetched again.
+     */
+    public static OrderIdIndex load(ObjectStore store, String bucket, String dbKey, File localFile) throws IOException {
+        String etag = store.etag(bucket, dbKey + SUFFIX);
+        if (etag == null) {
+            return null;
+        }
+        LocalCopies.fetch(store, bucket, dbKey + SUFFIX, etag, localFile);
+        String cacheKey = localFile.getAbsolutePath() + "|" + localFile.length() + "|" + localFile.lastModified();
+        OrderIdIndex index = LOADED.get(cacheKey);
+        if (index == null) {
+            index = read(localFile);
+            LOADED.put(cacheKey, index);
+        }
+        return index;
+    }
+
+    /** Forget every index loaded in this container */
+    static void clearLoaded() {
+        LOADED.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package lambda;
+
+import org.crac.Resource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes CSV rows as the raw bytes of their input line followed by one
+ * appended integer column, so the columns a transform leaves alone are
+ * never decoded or re-encoded.
+ *
+ * Rows are gathered in a direct buffer taken from a container-wide pool and
+ * written through a channel: the output file's own FileChannel when
+ * uncompressed, or a channel over the compressing stream otherwise.
+ */
+public class PassthroughWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    /** Direct buffers returned by closed writers */
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    static {
+        Warmup.register(new BufferPool());
+    }
+
+    /** Drops the pooled buffers before a snapshot; writers allocate new ones after restore */
+    private static class BufferPool implements Resource {
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+            POOL.clear();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+            // Refilled as writers close
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private boolean closed;
+
+    public PassthroughWriter(File file, String codec) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        this.channel = Compression.NONE.equals(codec) ? out.getChannel() : Channels.newChannel(Compression.compress(out, codec));
+        ByteBuffer pooled = POOL.poll();
+        this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /** Write bytes as they are, e.g. a header line with its line ending */
+    public void write(byte[] bytes) throws IOException {
+        put(bytes);
+    }
+
+    /** Write line, a comma, value in decimal and '\n' */
+    public void writeRow(byte[] line, long value) throws IOException {
+        put(line);
+        if (buffer.remaining() < digits.length + 2) {
+            flush();
+        }
+        buffer.put((byte) ',');
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        buffer.put(digits, i, digits.length - i);
+        buffer.put((byte) '\n');
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.remaining()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /** Write what is buffered, close the channel and return the buffer to the pool */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            channel.close();
+            buffer.clear();
+            POOL.offer(buffer);
+        }
+    }
+}
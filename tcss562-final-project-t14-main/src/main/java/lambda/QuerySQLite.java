@@ -2,41 +2,145 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.S3Object;
+import saaf.Inspector;
 
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class QuerySQLite implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
+    /** Row cap of filter and select queries */
+    static final int ROW_LIMIT = 100;
+
+    /** Per-container latency histograms keyed by "<queryType>.<cold|warm>" */
+    private static final ConcurrentHashMap<String, LatencyHistogram> LATENCY = new ConcurrentHashMap<>();
+
+    /** Query types with histograms of their own; any other type runs as select and is counted as "other" */
+    private static final Set<String> QUERY_TYPES = new HashSet<>(Arrays.asList(
+            "select", "count", "aggregate", "filter", "top", "approx", "lookup"));
+
+    /** Threads fanning a query out over shards or a batch over connections; sized by TLQ_SHARD_THREADS (default 8) */
+    private static final DaemonPool SHARD_POOL = new DaemonPool("tlq-shard-query", shardThreads());
+
+    static {
+        Warmup.init("QuerySQLite", true);
+    }
+
+    private final ObjectStore store;
+
+    public QuerySQLite() {
+        this(ObjectStore.defaultStore());
+    }
+
+    public QuerySQLite(ObjectStore store) {
+        this.store = store;
+    }
+
     @Override
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
+        Inspector metrics = Helpers.startMetrics();
+        HashMap<String, Object> response = process(request, context);
+        Helpers.finishMetrics(metrics, "QuerySQLite", response);
+        return response;
+    }
+
+    private HashMap<String, Object> process(HashMap<String, Object> request, Context context) {
         HashMap<String, Object> response = new HashMap<>();
+        long startNanos = System.nanoTime();
 
         try {
+            Map<String, Object> startup = Warmup.firstInvocationReport();
+            if (startup != null) {
+                response.put("startup", startup);
+            }
+
             String bucket = (String) request.get("bucket");
             String dbKey = (String) request.get("dbKey");
             String tableName = (String) request.get("tableName");
             String queryType = (String) request.getOrDefault("queryType", "select");
             Map<String, Object> queryParams = (Map<String, Object>) request.get("queryParams");
+            String engine = (String) request.getOrDefault("engine", "auto");
 
             context.getLogger().log("Starting query execution\n");
             context.getLogger().log("Database: s3://" + bucket + "/" + dbKey + "\n");
 
-            // Get or download database
-            File dbFile = getDatabaseFile(bucket, dbKey, context);
-            
-            // Execute query
-            List<Map<String, Object>> results = executeQuery(dbFile, tableName, queryType, queryParams, context);
+            // Batch: many query specs answered from one download and a few connections
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> queries = (List<Map<String, Object>>) request.get("queries");
+            if (queries != null) {
+                int concurrency = ((Number) request.getOrDefault("concurrency", 1)).intValue();
+                executeBatch(bucket, dbKey, tableName, queries, engine, concurrency, response, context);
+                long elapsedNanos = System.nanoTime() - startNanos;
+                response.put("status", "success");
+                response.put("queryTimeMs", elapsedNanos / 1_000_000.0);
+                response.put("message", "Batch of " + queries.size() + " queries executed.");
+                if (Boolean.TRUE.equals(request.get("latencyReport"))) {
+                    response.put("latency", latencySnapshot());
+                }
+                return response;
+            }
+
+            boolean cacheHit;
+            List<Map<String, Object>> results;
+            if (dbKey.endsWith(ShardManifest.FILE_NAME)) {
+                // Sharded database: only the shards the query can touch are fetched
+                Map<String, Object> shardStats = new LinkedHashMap<>();
+                results = executeSharded(bucket, dbKey, tableName, queryType, queryParams, shardStats, context);
+                cacheHit = ((Number) shardStats.get("downloaded")).intValue() == 0;
+                response.put("shards", shardStats);
+            } else {
+                File dbFile = cacheFile(dbKey);
+                cacheHit = isCached(dbFile);
+                results = null;
+
+                // Order ID lookups consult the Bloom filter / ID list before SQLite
+                if (queryType.equalsIgnoreCase("lookup")) {
+                    Map<String, Object> lookupStats = new LinkedHashMap<>();
+                    results = executeLookup(bucket, dbKey, dbFile, tableName, queryParams, lookupStats, context);
+                    cacheHit = !(Boolean) lookupStats.get("downloaded");
+                    response.put("lookup", lookupStats);
+                }
+
+                // Cold container: answer indexed filters from pages fetched with ranged reads
+                if (!cacheHit && Boolean.TRUE.equals(request.get("lazy")) && queryType.equalsIgnoreCase("filter")) {
+                    Map<String, Object> lazyStats = new LinkedHashMap<>();
+                    results = executeLazyFilter(bucket, dbKey, tableName, queryParams, lazyStats, context);
+                    if (results != null) {
+                        cacheHit = ((Number) lazyStats.get("requests")).intValue() == 0;
+                        response.put("lazy", lazyStats);
+                    }
+                }
+
+                if (results == null) {
+                    // Get or download database
+                    cacheHit = !fetchDatabase(bucket, dbKey, dbFile, context);
+
+                    // Execute query
+                    results = executeColumnar(dbFile, tableName, queryType, queryParams, engine, cacheHit, context);
+                    response.put("engine", results != null ? "columnar" : "sqlite");
+                    if (results == null) {
+                        results = executeQuery(dbFile, tableName, queryType, queryParams, context);
+                    }
+                }
+            }
+
+            long elapsedNanos = System.nanoTime() - startNanos;
+            recordLatency(queryType, cacheHit, elapsedNanos);
 
             response.put("status", "success");
             response.put("rowCount", results.size());
             response.put("results", results);
+            response.put("cacheHit", cacheHit);
+            response.put("queryTimeMs", elapsedNanos / 1_000_000.0);
             response.put("message", "Query executed successfully.");
 
+            // Percentiles since the last report; reading resets them so a collector can merge intervals
+            if (Boolean.TRUE.equals(request.get("latencyReport"))) {
+                response.put("latency", latencySnapshot());
+            }
+
         } catch (Exception e) {
             response.put("status", "error");
             response.put("message", e.getMessage());
@@ -47,53 +151,784 @@ public class QuerySQLite implements RequestHandler<HashMap<String, Object>, Hash
         return response;
     }
 
-    /** Get database file from /tmp cache or download from S3 */
-    private File getDatabaseFile(String bucket, String key, Context context) throws IOException {
-        String dbName = key.substring(key.lastIndexOf('/') + 1);
-        File cachedDB = new File("/tmp/" + dbName);
+    private static int shardThreads() {
+        String value = System.getenv("TLQ_SHARD_THREADS");
+        return value == null || value.isEmpty() ? 8 : Math.max(1, Integer.parseInt(value));
+    }
 
-        // Check if database exists in /tmp (warm Lambda)
-        if (cachedDB.exists() && cachedDB.length() > 0) {
+    /** Add a query's time to the histogram for its type and cold/warm state */
+    static void recordLatency(String queryType, boolean cacheHit, long elapsedNanos) {
+        String latencyKey = latencyType(queryType) + (cacheHit ? ".warm" : ".cold");
+        LATENCY.computeIfAbsent(latencyKey, k -> new LatencyHistogram()).recordNanos(elapsedNanos);
+    }
+
+    /** Histogram name for a requested query type, so request input can't add histograms without bound */
+    static String latencyType(String queryType) {
+        String type = String.valueOf(queryType).toLowerCase();
+        return QUERY_TYPES.contains(type) ? type : "other";
+    }
+
+    /** Snapshot and reset every latency histogram recorded in this container */
+    public static Map<String, Object> latencySnapshot() {
+        Map<String, Object> report = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : LATENCY.entrySet()) {
+            report.put(entry.getKey(), entry.getValue().snapshotAndReset());
+        }
+        return report;
+    }
+
+    /** Local /tmp path used to cache the database for the given S3 key */
+    File cacheFile(String key) {
+        return new File("/tmp/" + key.substring(key.lastIndexOf('/') + 1));
+    }
+
+    /** Whether the database is already cached in /tmp (warm infrastructure) */
+    boolean isCached(File cachedDB) {
+        return cachedDB.exists() && cachedDB.length() > 0;
+    }
+
+    /**
+     * Make cachedDB hold the store's current version of the database. A copy
+     * left in /tmp by an earlier request is reused only while the object
+     * still has the ETag it was downloaded or uploaded with, so a warm
+     * container answers from an appended or reloaded database, not the old
+     * file.
+     *
+     * @return true if the database had to be downloaded (cold or stale cache).
+     */
+    boolean fetchDatabase(String bucket, String key, File cachedDB, Context context) throws IOException {
+        String etag = store.etag(bucket, key);
+        if (etag == null) {
+            throw new FileNotFoundException("No such database: " + bucket + "/" + key);
+        }
+
+        // Check if the database in /tmp is current (warm Lambda)
+        if (LocalCopies.isCurrent(cachedDB, etag)) {
             context.getLogger().log("Using cached database from /tmp (warm infrastructure)\n");
             context.getLogger().log("Database size: " + cachedDB.length() + " bytes\n");
-            return cachedDB;
+            return false;
         }
 
-        // Download from S3 (cold Lambda)
-        context.getLogger().log("Cache miss - downloading database from S3 (cold infrastructure)\n");
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
-        
-        S3Object object = s3.getObject(bucket, key);
-        InputStream input = object.getObjectContent();
+        // Download from S3 (cold Lambda, or the database was replaced)
+        context.getLogger().log((isCached(cachedDB) ? "Cached database is out of date" : "Cache miss")
+                + " - downloading database from S3\n");
+        LocalCopies.fetch(store, bucket, key, etag, cachedDB);
+        // Columns decoded from the old copy must not be served again
+        ColumnarTable.evict(cachedDB);
+
+        context.getLogger().log("Downloaded " + cachedDB.length() + " bytes to /tmp cache\n");
+        return true;
+    }
+
+    /**
+     * Scatter-gather a query over the shards of a sharded database.
+     *
+     * Filters on the shard column are pruned to the shards holding that value
+     * and empty shards are skipped. count, aggregate, top and filter run on
+     * every remaining shard in parallel on SHARD_POOL: counts are summed,
+     * aggregates merged from per-shard partial state (sum, count, min, max;
+     * AVG is sum/count), top-N merged from each shard's own top-N, and approx
+     * queries answered from the merged sketches of every shard. select
+     * walks shards one at a time and stops fetching once the row limit is
+     * reached, since any rows will do.
+     */
+    private List<Map<String, Object>> executeSharded(String bucket, String manifestKey, String tableName, String queryType,
+                                                     Map<String, Object> queryParams, Map<String, Object> shardStats,
+                                                     Context context) throws Exception {
+        ShardManifest manifest;
+        try (InputStream input = store.open(bucket, manifestKey)) {
+            manifest = ShardManifest.read(input);
+        }
+
+        String type = queryType.toLowerCase();
+        Map<String, Object> params = queryParams == null ? new HashMap<>() : queryParams;
+        List<ShardManifest.Shard> targets = type.equals("filter") && filterOperator(params).equals("=")
+                ? manifest.prune((String) params.getOrDefault("column", "Order_Priority"), params.getOrDefault("value", "H"))
+                : manifest.shards;
+        context.getLogger().log("Sharded by " + manifest.shardKey + ": querying " + targets.size()
+                + " of " + manifest.shardCount + " shards\n");
+
+        File cacheDir = shardCacheDirectory(manifest);
+        List<ShardResult> partials = new ArrayList<>();
+        if (type.equals("lookup")) {
+            throw new IllegalArgumentException("lookup is not supported on sharded databases");
+        }
+        if (type.equals("count") || type.equals("aggregate") || type.equals("top") || type.equals("filter")
+                || type.equals("approx")) {
+            List<Future<ShardResult>> futures = new ArrayList<>();
+            for (ShardManifest.Shard shard : targets) {
+                if (shard.rows > 0) {
+                    futures.add(SHARD_POOL.get().submit(() -> queryShard(bucket, shard, cacheDir, tableName, type, params, context)));
+                }
+            }
+            try {
+                for (Future<ShardResult> future : futures) {
+                    partials.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                for (Future<ShardResult> future : futures) {
+                    future.cancel(true);
+                }
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        } else {
+            int collected = 0;
+            for (ShardManifest.Shard shard : targets) {
+                if (shard.rows > 0 && collected < ROW_LIMIT) {
+                    ShardResult partial = queryShard(bucket, shard, cacheDir, tableName, type, params, context);
+                    partials.add(partial);
+                    collected += partial.rows.size();
+                }
+            }
+        }
+
+        List<Map<String, Object>> results;
+        switch (type) {
+            case "count":
+                long total = 0;
+                for (ShardResult partial : partials) {
+                    total += ((Number) partial.rows.get(0).get("total")).longValue();
+                }
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("total", total);
+                results = new ArrayList<>();
+                results.add(row);
+                break;
+
+            case "aggregate":
+                results = mergeAggregates(partials, params);
+                break;
+
+            case "top":
+                String orderColumn = (String) params.getOrDefault("orderBy", "Total_Revenue");
+                results = mergeTop(partials, orderColumn, (int) params.getOrDefault("limit", 10));
+                break;
 
-        FileOutputStream fos = new FileOutputStream(cachedDB);
-        byte[] buffer = new byte[4096];
-        int length;
-        long bytesRead = 0;
+            case "approx":
+                List<Map<String, Object>> sketchRows = new ArrayList<>();
+                for (ShardResult partial : partials) {
+                    sketchRows.addAll(partial.rows);
+                }
+                results = estimate(sketchRows, params);
+                break;
 
-        while ((length = input.read(buffer)) > 0) {
-            fos.write(buffer, 0, length);
-            bytesRead += length;
+            default:
+                results = new ArrayList<>();
+                for (ShardResult partial : partials) {
+                    results.addAll(partial.rows);
+                }
+                if (results.size() > ROW_LIMIT) {
+                    results = new ArrayList<>(results.subList(0, ROW_LIMIT));
+                }
+                break;
         }
 
-        fos.close();
-        input.close();
+        int downloaded = 0;
+        List<Map<String, Object>> perShard = new ArrayList<>();
+        for (ShardResult partial : partials) {
+            if (partial.downloaded) {
+                downloaded++;
+            }
+            Map<String, Object> timing = new LinkedHashMap<>();
+            timing.put("shard", partial.index);
+            timing.put("downloaded", partial.downloaded);
+            timing.put("fetchMs", partial.fetchNanos / 1_000_000.0);
+            timing.put("queryMs", partial.queryNanos / 1_000_000.0);
+            timing.put("rows", partial.rows.size());
+            perShard.add(timing);
+        }
 
-        context.getLogger().log("Downloaded " + bytesRead + " bytes to /tmp cache\n");
-        return cachedDB;
+        shardStats.put("shardKey", manifest.shardKey);
+        shardStats.put("total", manifest.shardCount);
+        shardStats.put("afterPruning", targets.size());
+        shardStats.put("queried", partials.size());
+        shardStats.put("downloaded", downloaded);
+        shardStats.put("perShard", perShard);
+        return results;
+    }
+
+    /** Rows and timings from one shard */
+    private static class ShardResult {
+        int index;
+        boolean downloaded;
+        long fetchNanos;
+        long queryNanos;
+        List<Map<String, Object>> rows;
+    }
+
+    /** Fetch one shard if needed and run the shard-level query against it */
+    private ShardResult queryShard(String bucket, ShardManifest.Shard shard, File cacheDir, String tableName,
+                                   String type, Map<String, Object> params, Context context) throws Exception {
+        ShardResult result = new ShardResult();
+        result.index = shard.index;
+
+        long start = System.nanoTime();
+        File shardFile = new File(cacheDir, "shard-" + shard.index + ".db");
+        // The manifest's loadId names the cache directory, so a shard found there is current
+        result.downloaded = !isCached(shardFile);
+        if (result.downloaded) {
+            store.download(bucket, shard.key, shardFile);
+        }
+        result.fetchNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:file:" + shardFile.getAbsolutePath() + "?mode=ro")) {
+            String sql = type.equals("aggregate")
+                    ? buildPartialAggregateQuery(conn, tableName, params)
+                    : buildQuery(tableName, type, params, ROW_LIMIT);
+            result.rows = readRows(conn, sql);
+        }
+        result.queryNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Per-shard GROUP BY returning mergeable state rather than the final
+     * value. SUM by Region reads the shard's rollup table when it has one.
+     */
+    private String buildPartialAggregateQuery(Connection conn, String tableName, Map<String, Object> params) throws SQLException {
+        String groupBy = (String) params.getOrDefault("groupBy", "Region");
+        String aggFunction = ((String) params.getOrDefault("function", "SUM")).toUpperCase();
+        String aggColumn = (String) params.getOrDefault("column", "Total_Revenue");
+        if (!Arrays.asList("SUM", "COUNT", "MIN", "MAX", "AVG").contains(aggFunction)) {
+            throw new IllegalArgumentException("Aggregate function " + aggFunction + " is not supported on sharded databases");
+        }
+
+        if (rollupColumn(conn, tableName, "aggregate", params) != null) {
+            return "SELECT \"" + groupBy + "\" AS grp, \"" + aggColumn + "\" AS partial_sum "
+                    + "FROM " + tableName + "_rollup_region";
+        }
+        String column = "\"" + aggColumn + "\"";
+        return "SELECT \"" + groupBy + "\" AS grp, SUM(" + column + ") AS partial_sum, COUNT(" + column + ") AS partial_count, "
+                + "MIN(" + column + ") AS partial_min, MAX(" + column + ") AS partial_max "
+                + "FROM " + tableName + " GROUP BY \"" + groupBy + "\"";
+    }
+
+    /** Combine per-shard partial aggregates into the rows a single database would return */
+    private List<Map<String, Object>> mergeAggregates(List<ShardResult> partials, Map<String, Object> params) {
+        String groupBy = (String) params.getOrDefault("groupBy", "Region");
+        String aggFunction = ((String) params.getOrDefault("function", "SUM")).toUpperCase();
+
+        // Per group: sum, count, min, max
+        Map<Object, Object[]> groups = new LinkedHashMap<>();
+        for (ShardResult partial : partials) {
+            for (Map<String, Object> row : partial.rows) {
+                Object[] state = groups.computeIfAbsent(row.get("grp"), g -> new Object[]{null, 0L, null, null});
+                Object sum = row.get("partial_sum");
+                if (sum instanceof Number) {
+                    state[0] = (state[0] == null ? 0.0 : (Double) state[0]) + ((Number) sum).doubleValue();
+                }
+                if (row.get("partial_count") instanceof Number) {
+                    state[1] = (Long) state[1] + ((Number) row.get("partial_count")).longValue();
+                }
+                Object min = row.get("partial_min");
+                if (min != null && (state[2] == null || compareValues(min, state[2]) < 0)) {
+                    state[2] = min;
+                }
+                Object max = row.get("partial_max");
+                if (max != null && (state[3] == null || compareValues(max, state[3]) > 0)) {
+                    state[3] = max;
+                }
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Map.Entry<Object, Object[]> entry : groups.entrySet()) {
+            Object[] state = entry.getValue();
+            Object value;
+            switch (aggFunction) {
+                case "COUNT":
+                    value = state[1];
+                    break;
+                case "MIN":
+                    value = state[2];
+                    break;
+                case "MAX":
+                    value = state[3];
+                    break;
+                case "AVG":
+                    long count = (Long) state[1];
+                    value = count == 0 || state[0] == null ? null : (Double) state[0] / count;
+                    break;
+                default:
+                    value = state[0];
+                    break;
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put(groupBy, entry.getKey());
+            row.put("aggregate_value", value);
+            results.add(row);
+        }
+        results.sort((a, b) -> compareValues(b.get("aggregate_value"), a.get("aggregate_value")));
+        return results;
+    }
+
+    /** Merge every shard's top-N into the global top-N */
+    private List<Map<String, Object>> mergeTop(List<ShardResult> partials, String orderColumn, int limit) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (ShardResult partial : partials) {
+            rows.addAll(partial.rows);
+        }
+        rows.sort((a, b) -> compareValues(b.get(orderColumn), a.get(orderColumn)));
+        return rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+    }
+
+    /**
+     * Order two values the way SQLite does: NULL before numbers, numbers
+     * before text, text by code point. The table's columns are TEXT, so
+     * ORDER BY and MIN/MAX on them compare as strings, not numbers.
+     */
+    static int compareValues(Object a, Object b) {
+        int classA = a == null ? 0 : a instanceof Number ? 1 : 2;
+        int classB = b == null ? 0 : b instanceof Number ? 1 : 2;
+        if (classA != classB) {
+            return Integer.compare(classA, classB);
+        }
+        if (classA == 0) {
+            return 0;
+        }
+        if (classA == 1) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * /tmp directory caching the shards of one load. Shards are keyed by the
+     * manifest's loadId, so a reload never serves stale shards; directories of
+     * earlier loads are removed when a new one shows up.
+     */
+    private File shardCacheDirectory(ShardManifest manifest) {
+        File parent = new File("/tmp/shards-" + manifest.dbName);
+        File dir = new File(parent, manifest.loadId);
+        if (!dir.isDirectory()) {
+            File[] previous = parent.listFiles();
+            if (previous != null) {
+                for (File old : previous) {
+                    File[] files = old.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            file.delete();
+                        }
+                    }
+                    old.delete();
+                }
+            }
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    /**
+     * Answer a filter by walking an index on the filter column through
+     * SQLitePageCache, fetching only the header, schema and touched index and
+     * table pages instead of the whole file.
+     *
+     * @return the rows, or null when the database has no usable index on the
+     * column or is in a format the page reader does not handle.
+     */
+    private List<Map<String, Object>> executeLazyFilter(String bucket, String dbKey, String tableName,
+                                                        Map<String, Object> queryParams, Map<String, Object> lazyStats,
+                                                        Context context) throws Exception {
+        Map<String, Object> params = queryParams == null ? new HashMap<>() : queryParams;
+        String column = (String) params.getOrDefault("column", "Order_Priority");
+        String value = String.valueOf(params.getOrDefault("value", "H"));
+        String operator = filterOperator(params);
+
+        try {
+            SQLitePageCache pages = SQLitePageCache.open(store, bucket, dbKey);
+            Map<String, Object> before = pages.getStats();
+            List<Map<String, Object>> results = new SQLiteBTree(pages).filter(tableName, column, operator, value, ROW_LIMIT);
+            if (results == null) {
+                context.getLogger().log("No index on " + column + ", downloading the whole database\n");
+                return null;
+            }
+
+            Map<String, Object> after = pages.getStats();
+            lazyStats.put("requests", (Integer) after.get("requests") - (Integer) before.get("requests"));
+            lazyStats.put("bytesFetched", (Long) after.get("bytesFetched") - (Long) before.get("bytesFetched"));
+            lazyStats.put("pagesCached", after.get("pagesCached"));
+            lazyStats.put("pagesTotal", after.get("pagesTotal"));
+            context.getLogger().log("Lazy filter on " + column + " fetched " + lazyStats.get("bytesFetched")
+                    + " bytes in " + lazyStats.get("requests") + " ranged reads\n");
+            return results;
+        } catch (UnsupportedOperationException e) {
+            context.getLogger().log("Page reader unavailable (" + e.getMessage() + "), downloading the whole database\n");
+            return null;
+        }
+    }
+
+    /**
+     * Check a batch of Order IDs ("ids") against the database's OrderIdIndex.
+     * IDs the Bloom filter rejects or the sorted ID list settles never reach
+     * SQLite; the rest (and, with "fetchRows", the full rows of present IDs)
+     * are resolved with one IN query per 500 IDs. Databases loaded without an
+     * index are answered from SQLite alone.
+     *
+     * @return one row per requested ID with Order_ID and found.
+     */
+    private List<Map<String, Object>> executeLookup(String bucket, String dbKey, File dbFile, String tableName,
+                                                    Map<String, Object> queryParams, Map<String, Object> lookupStats,
+                                                    Context context) throws Exception {
+        Map<String, Object> params = queryParams == null ? new HashMap<>() : queryParams;
+        List<?> requested = (List<?>) params.get("ids");
+        if (requested == null || requested.isEmpty()) {
+            throw new IllegalArgumentException("lookup needs a non-empty \"ids\" list");
+        }
+        boolean fetchRows = Boolean.TRUE.equals(params.get("fetchRows"));
+
+        File indexFile = OrderIdIndex.file(dbFile);
+        long indexModified = indexFile.isFile() ? indexFile.lastModified() : -1;
+        OrderIdIndex index = OrderIdIndex.load(store, bucket, dbKey, indexFile);
+        boolean indexCached = indexFile.lastModified() == indexModified;
+
+        List<String> ids = new ArrayList<>();
+        Map<String, Boolean> found = new HashMap<>();
+        Set<String> toQuery = new LinkedHashSet<>();
+        int absent = 0;
+        int present = 0;
+        for (Object value : requested) {
+            String id = value instanceof Number && ((Number) value).doubleValue() == Math.rint(((Number) value).doubleValue())
+                    ? Long.toString(((Number) value).longValue())
+                    : String.valueOf(value).trim();
+            ids.add(id);
+            Boolean contained = index == null ? null : index.contains(id);
+            if (contained == null) {
+                toQuery.add(id);
+            } else {
+                found.put(id, contained);
+                if (!contained) {
+                    absent++;
+                } else {
+                    present++;
+                    if (fetchRows) {
+                        toQuery.add(id);
+                    }
+                }
+            }
+        }
+
+        int bloomHits = 0;
+        Map<String, Map<String, Object>> rows = new HashMap<>();
+        boolean downloaded = false;
+        if (!toQuery.isEmpty()) {
+            downloaded = fetchDatabase(bucket, dbKey, dbFile, context);
+            List<String> pending = new ArrayList<>(toQuery);
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:file:" + dbFile.getAbsolutePath() + "?mode=ro")) {
+                for (int start = 0; start < pending.size(); start += 500) {
+                    List<String> chunk = pending.subList(start, Math.min(pending.size(), start + 500));
+                    String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                    String select = fetchRows ? "*" : "\"" + CreateSQLiteDB.ORDER_ID_COLUMN + "\"";
+                    try (PreparedStatement ps = conn.prepareStatement("SELECT " + select + " FROM " + tableName
+                            + " WHERE \"" + CreateSQLiteDB.ORDER_ID_COLUMN + "\" IN (" + placeholders + ")")) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            ps.setString(i + 1, chunk.get(i));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            ResultSetMetaData metadata = rs.getMetaData();
+                            while (rs.next()) {
+                                Map<String, Object> row = new LinkedHashMap<>();
+                                for (int i = 1; i <= metadata.getColumnCount(); i++) {
+                                    row.put(metadata.getColumnName(i), rs.getObject(i));
+                                }
+                                rows.putIfAbsent(String.valueOf(row.get(CreateSQLiteDB.ORDER_ID_COLUMN)), row);
+                            }
+                        }
+                    }
+                }
+            }
+            for (String id : toQuery) {
+                if (!found.containsKey(id)) {
+                    bloomHits++;
+                    found.put(id, rows.containsKey(id));
+                }
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        int falsePositives = 0;
+        for (String id : ids) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put(CreateSQLiteDB.ORDER_ID_COLUMN, id);
+            row.put("found", found.get(id));
+            if (fetchRows && rows.containsKey(id)) {
+                row.putAll(rows.get(id));
+            }
+            results.add(row);
+        }
+        for (String id : toQuery) {
+            if (index != null && !index.isExact() && !rows.containsKey(id)) {
+                falsePositives++;
+            }
+        }
+
+        lookupStats.put("index", index == null ? "none" : index.isExact() ? "bloom+ids" : "bloom");
+        lookupStats.put("indexCached", indexCached);
+        lookupStats.put("requested", ids.size());
+        lookupStats.put("absentFromIndex", absent);
+        lookupStats.put("presentInIndex", present);
+        lookupStats.put("checkedInSQLite", bloomHits);
+        lookupStats.put("falsePositives", falsePositives);
+        lookupStats.put("sqliteQueried", !toQuery.isEmpty());
+        lookupStats.put("downloaded", downloaded || (index != null && !indexCached));
+        context.getLogger().log("Lookup of " + ids.size() + " IDs: " + absent + " absent and " + present
+                + " present per the index, " + toQuery.size() + " sent to SQLite\n");
+        return results;
+    }
+
+    /** Comparison used by filter queries: =, <, <=, > or >= (default =) */
+    private static String filterOperator(Map<String, Object> params) {
+        String operator = String.valueOf(params.getOrDefault("operator", "=")).trim();
+        if (!Arrays.asList("=", "<", "<=", ">", ">=").contains(operator)) {
+            throw new IllegalArgumentException("Unsupported filter operator: " + operator);
+        }
+        return operator;
+    }
+
+    /**
+     * Answer count, aggregate, filter and top from the in-memory columnar copy
+     * of the table. Engine "auto" builds the copy once the container is warm
+     * (database already in /tmp) and keeps SUM by Region on the rollup;
+     * "columnar" always uses it; "sqlite" never does.
+     *
+     * @return the rows, or null to run the query in SQLite instead.
+     */
+    List<Map<String, Object>> executeColumnar(File dbFile, String tableName, String queryType,
+                                              Map<String, Object> queryParams, String engine, boolean warm,
+                                              Context context) throws SQLException {
+        String type = queryType.toLowerCase();
+        Map<String, Object> params = queryParams == null ? new HashMap<>() : queryParams;
+        boolean forced = engine.equalsIgnoreCase("columnar");
+        if (engine.equalsIgnoreCase("sqlite") || type.equals("approx")
+                || (!forced && type.equals("aggregate") && isRollupQuery(params))) {
+            return null;
+        }
+
+        ColumnarTable columnar = ColumnarTable.get(dbFile, tableName, warm || forced,
+                ColumnarTable.budgetBytes(context.getMemoryLimitInMB()));
+        if (columnar == null) {
+            return null;
+        }
+
+        List<Map<String, Object>> results = null;
+        long[] rowids;
+        switch (type) {
+            case "count":
+                results = columnar.count();
+                break;
+
+            case "aggregate":
+                results = columnar.aggregate((String) params.getOrDefault("groupBy", "Region"),
+                        (String) params.getOrDefault("function", "SUM"),
+                        (String) params.getOrDefault("column", "Total_Revenue"));
+                break;
+
+            case "filter":
+                rowids = columnar.filter((String) params.getOrDefault("column", "Order_Priority"), filterOperator(params),
+                        String.valueOf(params.getOrDefault("value", "H")), ROW_LIMIT);
+                results = rowids == null ? null : columnar.fetchRows(rowids);
+                break;
+
+            case "top":
+                rowids = columnar.top((String) params.getOrDefault("orderBy", "Total_Revenue"),
+                        (int) params.getOrDefault("limit", 10));
+                results = rowids == null ? null : columnar.fetchRows(rowids);
+                break;
+
+            default:
+                break;
+        }
+
+        if (results != null) {
+            context.getLogger().log("Answered " + type + " from columnar table (" + columnar.getRowCount()
+                    + " rows, loaded in " + columnar.getLoadMs() + " ms)\n");
+        }
+        return results;
+    }
+
+    /**
+     * Approximate DISTINCT count or QUANTILEs (default 0.5, 0.9, 0.99) of a
+     * column, overall or per groupBy value, from the sketch rows read by the
+     * approx query.
+     */
+    private static List<Map<String, Object>> estimate(List<Map<String, Object>> sketchRows, Map<String, Object> params) {
+        @SuppressWarnings("unchecked")
+        List<Number> quantiles = (List<Number>) params.getOrDefault("quantiles", Arrays.asList(0.5, 0.9, 0.99));
+        return ColumnSketches.estimate(sketchRows, (String) params.getOrDefault("function", "DISTINCT"),
+                (String) params.getOrDefault("column", "Country"), (String) params.get("groupBy"), quantiles);
+    }
+
+    /** SUM by Region that the region rollup can answer */
+    private static boolean isRollupQuery(Map<String, Object> params) {
+        String groupBy = (String) params.getOrDefault("groupBy", "Region");
+        String aggFunction = (String) params.getOrDefault("function", "SUM");
+        return groupBy.equalsIgnoreCase(CreateSQLiteDB.ROLLUP_GROUP) && aggFunction.equalsIgnoreCase("SUM")
+                && !Boolean.FALSE.equals(params.get("useRollup"));
     }
 
     /** Execute SQL query based on query type */
     private List<Map<String, Object>> executeQuery(File dbFile, String tableName, String queryType, 
                                                     Map<String, Object> queryParams, Context context) throws SQLException {
-        String url = "jdbc:sqlite:file:" + dbFile.getAbsolutePath() + "?mode=ro";
-        Connection conn = DriverManager.getConnection(url);
-        
-        context.getLogger().log("Connected to database in READ-ONLY mode\n");
+        try (Connection conn = openReadOnly(dbFile)) {
+            context.getLogger().log("Connected to database in READ-ONLY mode\n");
+            return executeQuery(conn, tableName, queryType, queryParams, context);
+        }
+    }
+
+    static Connection openReadOnly(File dbFile) throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:file:" + dbFile.getAbsolutePath() + "?mode=ro");
+    }
 
-        String sql = buildQuery(tableName, queryType, queryParams, context);
+    /** Execute SQL query based on query type on an open connection */
+    List<Map<String, Object>> executeQuery(Connection conn, String tableName, String queryType,
+                                                    Map<String, Object> queryParams, Context context) throws SQLException {
+        String sql = buildSQL(conn, tableName, queryType, queryParams, ROW_LIMIT);
         context.getLogger().log("Executing SQL: " + sql + "\n");
 
+        List<Map<String, Object>> results = readRows(conn, sql);
+        if (queryType.equalsIgnoreCase("approx")) {
+            results = estimate(results, queryParams == null ? new HashMap<>() : queryParams);
+        }
+
+        context.getLogger().log("Query returned " + results.size() + " rows\n");
+        return results;
+    }
+
+    /**
+     * Run a batch of query specs ({"id", "queryType", "queryParams", optional
+     * "tableName"}) against one database. A single database is fetched once
+     * and the specs are dealt round-robin over min(concurrency, specs)
+     * read-only connections, one SHARD_POOL task per connection; sharded
+     * databases run the specs one after another, since each one already fans
+     * out over the shards. A failing spec reports its own error without
+     * failing the others. Results are keyed by id (default "q<index>").
+     */
+    private void executeBatch(String bucket, String dbKey, String tableName, List<Map<String, Object>> queries,
+                              String engine, int concurrency, Map<String, Object> response,
+                              Context context) throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            Object id = queries.get(i).get("id");
+            String key = id == null ? "q" + i : id.toString();
+            if (ids.contains(key)) {
+                throw new IllegalArgumentException("Duplicate query id in batch: " + key);
+            }
+            ids.add(key);
+        }
+
+        List<Map<String, Object>> outcomes = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        boolean sharded = dbKey.endsWith(ShardManifest.FILE_NAME);
+        boolean cacheHit;
+        int connections = 0;
+        if (sharded) {
+            cacheHit = true;
+            for (int i = 0; i < queries.size(); i++) {
+                outcomes.set(i, runBatchQuery(bucket, dbKey, null, null, tableName, queries.get(i), engine, false, context));
+                cacheHit &= Boolean.TRUE.equals(outcomes.get(i).remove("cacheHit"));
+            }
+        } else {
+            File dbFile = cacheFile(dbKey);
+            boolean warm = !fetchDatabase(bucket, dbKey, dbFile, context);
+            cacheHit = warm;
+
+            connections = Math.max(1, Math.min(concurrency, queries.size()));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < connections; c++) {
+                int first = c;
+                int stride = connections;
+                Callable<Void> worker = () -> {
+                    try (Connection conn = openReadOnly(dbFile)) {
+                        for (int i = first; i < queries.size(); i += stride) {
+                            Map<String, Object> outcome = runBatchQuery(bucket, dbKey, dbFile, conn, tableName,
+                                    queries.get(i), engine, warm, context);
+                            outcome.remove("cacheHit");
+                            outcomes.set(i, outcome);
+                        }
+                    }
+                    return null;
+                };
+                futures.add(connections == 1 ? CompletableFuture.completedFuture(worker.call()) : SHARD_POOL.get().submit(worker));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        int failed = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            results.put(ids.get(i), outcomes.get(i));
+            if (!"success".equals(outcomes.get(i).get("status"))) {
+                failed++;
+            }
+        }
+        response.put("queryCount", queries.size());
+        response.put("failedQueries", failed);
+        response.put("connections", connections);
+        response.put("cacheHit", cacheHit);
+        response.put("results", results);
+        context.getLogger().log("Batch of " + queries.size() + " queries on " + connections + " connections, "
+                + failed + " failed\n");
+    }
+
+    /**
+     * One spec of a batch: status, queryType, rowCount, results, queryTimeMs
+     * and engine, or status and message when it fails. conn is null for
+     * sharded databases.
+     */
+    private Map<String, Object> runBatchQuery(String bucket, String dbKey, File dbFile, Connection conn,
+                                              String defaultTable, Map<String, Object> spec, String engine,
+                                              boolean warm, Context context) {
+        Map<String, Object> outcome = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        String queryType = (String) spec.getOrDefault("queryType", "select");
+        String tableName = (String) spec.getOrDefault("tableName", defaultTable);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> queryParams = (Map<String, Object>) spec.get("queryParams");
+        outcome.put("queryType", queryType);
+        try {
+            List<Map<String, Object>> results;
+            boolean cacheHit = warm;
+            if (conn == null) {
+                Map<String, Object> shardStats = new LinkedHashMap<>();
+                results = executeSharded(bucket, dbKey, tableName, queryType, queryParams, shardStats, context);
+                cacheHit = ((Number) shardStats.get("downloaded")).intValue() == 0;
+                outcome.put("shards", shardStats);
+            } else if (queryType.equalsIgnoreCase("lookup")) {
+                Map<String, Object> lookupStats = new LinkedHashMap<>();
+                results = executeLookup(bucket, dbKey, dbFile, tableName, queryParams, lookupStats, context);
+                outcome.put("lookup", lookupStats);
+            } else {
+                results = executeColumnar(dbFile, tableName, queryType, queryParams, engine, warm, context);
+                outcome.put("engine", results != null ? "columnar" : "sqlite");
+                if (results == null) {
+                    results = executeQuery(conn, tableName, queryType, queryParams, context);
+                }
+            }
+
+            long elapsedNanos = System.nanoTime() - start;
+            recordLatency(queryType, cacheHit, elapsedNanos);
+
+            outcome.put("status", "success");
+            outcome.put("rowCount", results.size());
+            outcome.put("results", results);
+            outcome.put("queryTimeMs", elapsedNanos / 1_000_000.0);
+            outcome.put("cacheHit", cacheHit);
+        } catch (Exception e) {
+            outcome.put("status", "error");
+            outcome.put("message", e.getMessage());
+            outcome.put("queryTimeMs", (System.nanoTime() - start) / 1_000_000.0);
+            context.getLogger().log("ERROR in batch query: " + e.getMessage() + "\n");
+        }
+        return outcome;
+    }
+
+    /** Run a query and collect every row as column name -> value */
+    private List<Map<String, Object>> readRows(Connection conn, String sql) throws SQLException {
         Statement stmt = conn.createStatement();
         ResultSet rs = stmt.executeQuery(sql);
 
@@ -116,14 +951,52 @@ public class QuerySQLite implements RequestHandler<HashMap<String, Object>, Hash
 
         rs.close();
         stmt.close();
-        conn.close();
-
-        context.getLogger().log("Query returned " + results.size() + " rows\n");
         return results;
     }
 
+    /**
+     * SQL for a query: SUM by Region from the rollup when it has the column,
+     * otherwise built from the query type. rowLimit caps filter and select.
+     */
+    String buildSQL(Connection conn, String tableName, String queryType, Map<String, Object> queryParams,
+                    int rowLimit) throws SQLException {
+        return rollupColumn(conn, tableName, queryType, queryParams) != null
+                ? buildRollupQuery(tableName, queryParams)
+                : buildQuery(tableName, queryType, queryParams, rowLimit);
+    }
+
+    /**
+     * Measure column to read from the region rollup built by CreateSQLiteDB,
+     * or null if the query cannot be answered from it. Only SUM by Region
+     * qualifies; the rollup holds exactly those totals.
+     */
+    private String rollupColumn(Connection conn, String tableName, String queryType, Map<String, Object> params) throws SQLException {
+        if (!queryType.equalsIgnoreCase("aggregate") || params == null || !isRollupQuery(params)) {
+            return null;
+        }
+        String aggColumn = (String) params.getOrDefault("column", "Total_Revenue");
+
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + tableName + "_rollup_region)")) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(aggColumn)) {
+                    return aggColumn;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** SUM by Region answered from the precomputed rollup table */
+    private String buildRollupQuery(String tableName, Map<String, Object> params) {
+        String groupBy = (String) params.getOrDefault("groupBy", "Region");
+        String aggColumn = (String) params.getOrDefault("column", "Total_Revenue");
+        return "SELECT \"" + groupBy + "\", \"" + aggColumn + "\" as aggregate_value "
+                + "FROM " + tableName + "_rollup_region ORDER BY aggregate_value DESC";
+    }
+
     /** Build SQL query based on type and parameters */
-    private String buildQuery(String tableName, String queryType, Map<String, Object> params, Context context) {
+    private String buildQuery(String tableName, String queryType, Map<String, Object> params, int rowLimit) {
         StringBuilder sql = new StringBuilder();
 
         switch (queryType.toLowerCase()) {
@@ -148,8 +1021,9 @@ public class QuerySQLite implements RequestHandler<HashMap<String, Object>, Hash
                 String filterValue = (String) params.getOrDefault("value", "H");
                 
                 sql.append("SELECT * FROM ").append(tableName)
-                   .append(" WHERE \"").append(filterColumn).append("\" = '").append(filterValue).append("'")
-                   .append(" LIMIT 100");
+                   .append(" WHERE \"").append(filterColumn).append("\" ").append(filterOperator(params))
+                   .append(" '").append(filterValue).append("'")
+                   .append(" LIMIT ").append(rowLimit);
                 break;
 
             case "top":
@@ -161,9 +1035,14 @@ public class QuerySQLite implements RequestHandler<HashMap<String, Object>, Hash
                    .append(" LIMIT ").append(limit);
                 break;
 
+            case "approx":
+                sql.append(ColumnSketches.buildQuery(tableName, (String) params.getOrDefault("function", "DISTINCT"),
+                        (String) params.getOrDefault("column", "Country"), (String) params.get("groupBy")));
+                break;
+
             case "select":
             default:
-                sql.append("SELECT * FROM ").append(tableName).append(" LIMIT 100");
+                sql.append("SELECT * FROM ").append(tableName).append(" LIMIT ").append(rowLimit);
                 break;
         }
 
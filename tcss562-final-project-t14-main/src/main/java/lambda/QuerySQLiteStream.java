@@ -0,0 +1,382 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * QuerySQLite as a RequestStreamHandler: same request, same response fields,
+ * but the request is read with a JsonReader and the rows of a single-database
+ * SQLite query are written straight from the ResultSet with a JsonWriter, so
+ * no row maps or response map are built and serialized by the runtime.
+ *
+ * select and filter also accept queryParams "limit" (default ROW_LIMIT, at
+ * most MAX_ROW_LIMIT) since large results are what this handler is for.
+ * Requests it does not stream (batches, sharded databases, lookup, approx,
+ * lazy and engine "columnar") are answered by QuerySQLite and written with
+ * Gson.
+ */
+public class QuerySQLiteStream implements RequestStreamHandler {
+
+    /** Row cap for select and filter when queryParams "limit" is given */
+    static final int MAX_ROW_LIMIT = 10000;
+
+    static {
+        Warmup.init("QuerySQLiteStream", true);
+    }
+
+    private final QuerySQLite query;
+
+    public QuerySQLiteStream() {
+        this(ObjectStore.defaultStore());
+    }
+
+    public QuerySQLiteStream(ObjectStore store) {
+        this.query = new QuerySQLite(store);
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        long startNanos = System.nanoTime();
+        HashMap<String, Object> request;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            request = readObject(reader);
+        }
+
+        NestingWriter writer = new NestingWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 65536));
+        writer.setLenient(true);
+        try {
+            if (!isStreamable(request)) {
+                HashMap<String, Object> response = query.handleRequest(request, context);
+                new Gson().toJson(response, HashMap.class, writer);
+                return;
+            }
+            streamQuery(request, writer, startNanos, context);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Whether the request is a single-database query this handler runs in SQLite itself */
+    static boolean isStreamable(Map<String, Object> request) {
+        String dbKey = (String) request.get("dbKey");
+        String queryType = String.valueOf(request.getOrDefault("queryType", "select")).toLowerCase();
+        return !request.containsKey("queries") && dbKey != null && !dbKey.endsWith(ShardManifest.FILE_NAME)
+                && !queryType.equals("lookup") && !queryType.equals("approx")
+                && !Boolean.TRUE.equals(request.get("lazy"))
+                && !"columnar".equalsIgnoreCase((String) request.get("engine"));
+    }
+
+    /**
+     * Run the query and write the response. Fields come out as they become
+     * known: startup, results, then rowCount and the rest. Any failure while
+     * the results are open ends them early, closing whatever row was being
+     * written, and reports status "error".
+     */
+    private void streamQuery(Map<String, Object> request, NestingWriter writer, long startNanos,
+                             Context context) throws IOException {
+        writer.beginObject();
+        Map<String, Object> startup = Warmup.firstInvocationReport();
+        if (startup != null) {
+            writer.name("startup");
+            new Gson().toJson(startup, Map.class, writer);
+        }
+
+        String bucket = (String) request.get("bucket");
+        String dbKey = (String) request.get("dbKey");
+        String tableName = (String) request.get("tableName");
+        String queryType = (String) request.getOrDefault("queryType", "select");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> queryParams = (Map<String, Object>) request.get("queryParams");
+
+        context.getLogger().log("Starting streamed query execution\n");
+        context.getLogger().log("Database: s3://" + bucket + "/" + dbKey + "\n");
+
+        File dbFile = query.cacheFile(dbKey);
+        boolean cacheHit = false;
+        long rows = 0;
+        String failure = null;
+        int depth = writer.depth();
+        try {
+            cacheHit = !query.fetchDatabase(bucket, dbKey, dbFile, context);
+            try (Connection conn = QuerySQLite.openReadOnly(dbFile);
+                 Statement stmt = conn.createStatement()) {
+                String sql = query.buildSQL(conn, tableName, queryType, queryParams, rowLimit(queryType, queryParams));
+                context.getLogger().log("Executing SQL: " + sql + "\n");
+                try (ResultSet rs = stmt.executeQuery(sql)) {
+                    writer.name("results").beginArray();
+                    rows = writeRows(rs, writer);
+                    writer.endArray();
+                }
+            }
+        } catch (Exception e) {
+            failure = e.getMessage();
+        } finally {
+            writer.closeTo(depth);
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (failure == null) {
+            QuerySQLite.recordLatency(queryType, cacheHit, elapsedNanos);
+            context.getLogger().log("Query streamed " + rows + " rows\n");
+            writer.name("status").value("success");
+            writer.name("rowCount").value(rows);
+            writer.name("engine").value("sqlite");
+            writer.name("cacheHit").value(cacheHit);
+            writer.name("queryTimeMs").value(elapsedNanos / 1_000_000.0);
+            writer.name("message").value("Query executed successfully.");
+            if (Boolean.TRUE.equals(request.get("latencyReport"))) {
+                writer.name("latency");
+                new Gson().toJson(QuerySQLite.latencySnapshot(), Map.class, writer);
+            }
+        } else {
+            context.getLogger().log("ERROR: " + failure + "\n");
+            writer.name("status").value("error");
+            writer.name("message").value(failure);
+        }
+        writer.endObject();
+    }
+
+    /** queryParams "limit" for select and filter, capped at MAX_ROW_LIMIT; ROW_LIMIT otherwise */
+    private static int rowLimit(String queryType, Map<String, Object> queryParams) {
+        String type = queryType.toLowerCase();
+        Object limit = queryParams == null ? null : queryParams.get("limit");
+        if (limit == null || !(type.equals("select") || type.equals("filter"))) {
+            return QuerySQLite.ROW_LIMIT;
+        }
+        return Math.max(0, Math.min(MAX_ROW_LIMIT, ((Number) limit).intValue()));
+    }
+
+    /**
+     * Write each row as an object of column name -> value. A row's values
+     * are read before it is started, so a failing read never leaves an
+     * object half written.
+     */
+    private static long writeRows(ResultSet rs, JsonWriter writer) throws SQLException, IOException {
+        ResultSetMetaData metadata = rs.getMetaData();
+        String[] columns = new String[metadata.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = metadata.getColumnName(i + 1);
+        }
+
+        Object[] values = new Object[columns.length];
+        long rows = 0;
+        while (rs.next()) {
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = rs.getObject(i + 1);
+            }
+            writer.beginObject();
+            for (int i = 0; i < columns.length; i++) {
+                writer.name(columns[i]);
+                writeValue(writer, values[i]);
+            }
+            writer.endObject();
+            rows++;
+        }
+        return rows;
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof Double || value instanceof Float) {
+            writer.value(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            writer.value(((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            writer.value(Base64.getEncoder().encodeToString((byte[]) value));
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * JsonWriter that keeps track of the open arrays and objects, so a
+     * response cut short by a failure can be closed and finished.
+     */
+    static final class NestingWriter extends JsonWriter {
+        /** true for each open object and false for each open array, innermost last */
+        private final Deque<Boolean> open = new ArrayDeque<>();
+        private boolean danglingName;
+
+        NestingWriter(Writer out) {
+            super(out);
+        }
+
+        int depth() {
+            return open.size();
+        }
+
+        /** End everything opened past depth, giving a name still waiting for its value null */
+        void closeTo(int depth) throws IOException {
+            while (open.size() > depth) {
+                if (danglingName) {
+                    nullValue();
+                }
+                if (open.peekLast()) {
+                    endObject();
+                } else {
+                    endArray();
+                }
+            }
+        }
+
+        @Override
+        public JsonWriter beginArray() throws IOException {
+            super.beginArray();
+            danglingName = false;
+            open.addLast(false);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endArray() throws IOException {
+            super.endArray();
+            open.removeLast();
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginObject() throws IOException {
+            super.beginObject();
+            danglingName = false;
+            open.addLast(true);
+            return this;
+        }
+
+        @Override
+        public JsonWriter endObject() throws IOException {
+            super.endObject();
+            open.removeLast();
+            return this;
+        }
+
+        @Override
+        public JsonWriter name(String name) throws IOException {
+            super.name(name);
+            danglingName = true;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(String value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter jsonValue(String value) throws IOException {
+            super.jsonValue(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter nullValue() throws IOException {
+            super.nullValue();
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(boolean value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Boolean value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(double value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(long value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Number value) throws IOException {
+            super.value(value);
+            danglingName = false;
+            return this;
+        }
+    }
+
+    /** Next JSON value, which must be an object, as the request map the Lambda runtime would pass */
+    @SuppressWarnings("unchecked")
+    static HashMap<String, Object> readObject(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalStateException("Expected a JSON object but found " + reader.peek());
+        }
+        return (HashMap<String, Object>) readValue(reader);
+    }
+
+    /**
+     * Next JSON value as the types the Lambda runtime gives a HashMap
+     * handler: objects as maps, arrays as lists, whole numbers as Integer or
+     * Long and other numbers as Double.
+     */
+    static Object readValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                HashMap<String, Object> object = new LinkedHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    object.put(name, readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                List<Object> array = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.add(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    try {
+                        long whole = Long.parseLong(number);
+                        return whole == (int) whole ? (Object) (int) whole : (Object) whole;
+                    } catch (NumberFormatException e) {
+                        // Beyond a long; fall through to double
+                    }
+                }
+                return Double.parseDouble(number);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new IllegalStateException("Unexpected JSON token " + token);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running HTTP server answering QuerySQLite requests, for running the
+ * query side in a plain container instead of Lambda.
+ *
+ * POST /query takes the same JSON as QuerySQLite and returns the same
+ * response. Single-database queries run against databases the server keeps:
+ * each is downloaded once, concurrent readers get their own read-only
+ * connections, and idle connections are reused rather than reopened. Every
+ * checkSeconds the object's ETag is compared with the downloaded copy's and
+ * a changed database is downloaded again; connections to the old copy are
+ * closed as they come back. Batches, sharded databases and lookups go to
+ * QuerySQLite, which checks the database's ETag (and the Order ID index's)
+ * on every request and shares the /tmp copy with the server. "lazy" is
+ * ignored, since every database is kept whole.
+ *
+ * At most maxConcurrent queries run at once. Up to maxQueued more wait up to
+ * queueTimeoutMs for a slot; the rest get 503 with Retry-After straight away.
+ * GET /metrics reports the request counters, throughput and per-query-type
+ * latency since the previous call, and the open databases; GET /health
+ * answers {"status": "ok"}.
+ *
+ * Requests run on virtual threads when the JDK has them (21+), otherwise on
+ * a fixed pool big enough for every running and waiting query.
+ *
+ * usage: QueryServer [--port 8080] [--store dir] [--max-concurrent N] [--max-queued N]
+ *                    [--queue-timeout-ms N] [--check-seconds N] [--verbose]
+ *
+ *   --store  directory standing in for S3 (default ObjectStore.defaultStore())
+ *   defaults: max-concurrent 2 per CPU, max-queued 64, queue-timeout-ms 1000, check-seconds 30
+ */
+public class QueryServer {
+
+    /** A downloaded database and its idle read-only connections */
+    private static class OpenDatabase {
+        final String bucket;
+        final String key;
+        final File file;
+        final ConcurrentLinkedQueue<Pooled> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicLong queries = new AtomicLong();
+        volatile int generation;
+        volatile String etag;
+        volatile long checkedAt;
+        int reloads;
+
+        OpenDatabase(String bucket, String key, File file) {
+            this.bucket = bucket;
+            this.key = key;
+            this.file = file;
+        }
+    }
+
+    /** A connection and the copy of the database it was opened on */
+    private static class Pooled {
+        final Connection conn;
+        final int generation;
+
+        Pooled(Connection conn, int generation) {
+            this.conn = conn;
+            this.generation = generation;
+        }
+    }
+
+    private final ObjectStore store;
+    private final QuerySQLite query;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final long checkIntervalMs;
+    private final boolean verbose;
+
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentHashMap<String, OpenDatabase> databases = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> latency = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong intervalCompleted = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long intervalStart = startedAt;
+    private String executorName;
+
+    public QueryServer(ObjectStore store, int maxConcurrent, int maxQueued, long queueTimeoutMs, long checkIntervalMs,
+                       boolean verbose) {
+        this.store = store;
+        this.query = new QuerySQLite(store);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.checkIntervalMs = checkIntervalMs;
+        this.verbose = verbose;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        ObjectStore store = null;
+        int maxConcurrent = 2 * Runtime.getRuntime().availableProcessors();
+        int maxQueued = 64;
+        long queueTimeoutMs = 1000;
+        long checkSeconds = 30;
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--store":
+                    store = new LocalObjectStore(new File(args[++i]));
+                    break;
+                case "--max-concurrent":
+                    maxConcurrent = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-queued":
+                    maxQueued = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue-timeout-ms":
+                    queueTimeoutMs = Long.parseLong(args[++i]);
+                    break;
+                case "--check-seconds":
+                    checkSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--verbose":
+                    verbose = true;
+                    break;
+                default:
+                    System.out.println("Unknown argument: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        QueryServer server = new QueryServer(store != null ? store : ObjectStore.defaultStore(), maxConcurrent,
+                maxQueued, queueTimeoutMs, checkSeconds * 1000, verbose);
+        HttpServer http = server.start(port);
+        System.out.println("QueryServer listening on port " + http.getAddress().getPort() + " (" + server.executorName
+                + ", max " + maxConcurrent + " concurrent, " + maxQueued + " queued)");
+    }
+
+    /** Bind the port and start serving; stopped by the JVM shutdown hook */
+    public HttpServer start(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        ExecutorService executor = newExecutor(maxConcurrent + maxQueued + 2);
+        http.setExecutor(executor);
+        http.createContext("/query", exchange -> serve(exchange, "POST", this::serveQuery));
+        http.createContext("/metrics", exchange -> serve(exchange, "GET", e -> reply(e, 200, metrics())));
+        http.createContext("/health", exchange -> serve(exchange, "GET",
+                e -> reply(e, 200, Collections.singletonMap("status", "ok"))));
+        http.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            http.stop(1);
+            executor.shutdown();
+            close();
+        }, "tlq-query-server-stop"));
+        return http;
+    }
+
+    /** One virtual thread per request where available, else a fixed pool of the given size */
+    private ExecutorService newExecutor(int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            executorName = "virtual threads";
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            executorName = threads + " platform threads";
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "tlq-query-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private interface Endpoint {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    private void serve(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                reply(exchange, 405, error("error", "Use " + method));
+                return;
+            }
+            endpoint.handle(exchange);
+        } catch (Exception e) {
+            reply(exchange, 500, error("error", String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serveQuery(HttpExchange exchange) throws Exception {
+        received.incrementAndGet();
+        HashMap<String, Object> request;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            request = QuerySQLiteStream.readObject(reader);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            reply(exchange, 400, error("error", "Request body is not a JSON object: " + e.getMessage()));
+            return;
+        }
+
+        if (!admit()) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            reply(exchange, 503, error("rejected", "Server busy: " + maxConcurrent + " queries running and "
+                    + maxQueued + " waiting"));
+            return;
+        }
+        long start = System.nanoTime();
+        HashMap<String, Object> response;
+        try {
+            response = execute(request, new LocalContext("QueryServer", 0, Integer.MAX_VALUE, !verbose));
+        } finally {
+            permits.release();
+        }
+
+        String queryType = request.containsKey("queries") ? "batch"
+                : QuerySQLite.latencyType(String.valueOf(request.getOrDefault("queryType", "select")));
+        latency.computeIfAbsent(queryType, k -> new LatencyHistogram()).recordNanos(System.nanoTime() - start);
+        if ("success".equals(response.get("status"))) {
+            completed.incrementAndGet();
+            intervalCompleted.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        reply(exchange, 200, response);
+    }
+
+    /** Take a query slot, waiting for one if fewer than maxQueued requests already are */
+    private boolean admit() throws InterruptedException {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /** Answer a QuerySQLite request, on the server's own connections when it names one database */
+    public HashMap<String, Object> execute(HashMap<String, Object> request, Context context) {
+        String dbKey = (String) request.get("dbKey");
+        String queryType = (String) request.getOrDefault("queryType", "select");
+        if (dbKey == null || request.containsKey("queries") || dbKey.endsWith(ShardManifest.FILE_NAME)) {
+            return delegate(request, context);
+        }
+
+        HashMap<String, Object> response = new HashMap<>();
+        long startNanos = System.nanoTime();
+        try {
+            String bucket = (String) request.get("bucket");
+            String tableName = (String) request.get("tableName");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> queryParams = (Map<String, Object>) request.get("queryParams");
+            String engine = (String) request.getOrDefault("engine", "auto");
+
+            OpenDatabase db = databases.computeIfAbsent(bucket + "/" + dbKey,
+                    k -> new OpenDatabase(bucket, dbKey, query.cacheFile(dbKey)));
+            if (queryType.equalsIgnoreCase("lookup")) {
+                // QuerySQLite reads the server's copy from /tmp; refreshing first keeps the pool on the same version
+                refreshIfDue(db, context);
+                db.queries.incrementAndGet();
+                return delegate(request, context);
+            }
+            int generation = db.generation;
+            refreshIfDue(db, context);
+            boolean cacheHit = generation > 0 && generation == db.generation;
+            db.queries.incrementAndGet();
+
+            List<Map<String, Object>> results = query.executeColumnar(db.file, tableName, queryType, queryParams,
+                    engine, cacheHit, context);
+            String usedEngine = results != null ? "columnar" : "sqlite";
+            if (results == null) {
+                Pooled pooled = borrow(db);
+                boolean reusable = false;
+                try {
+                    results = query.executeQuery(pooled.conn, tableName, queryType, queryParams, context);
+                    reusable = true;
+                } finally {
+                    release(db, pooled, reusable);
+                }
+            }
+
+            long elapsedNanos = System.nanoTime() - startNanos;
+            QuerySQLite.recordLatency(queryType, cacheHit, elapsedNanos);
+            response.put("status", "success");
+            response.put("rowCount", results.size());
+            response.put("results", results);
+            response.put("cacheHit", cacheHit);
+            response.put("engine", usedEngine);
+            response.put("queryTimeMs", elapsedNanos / 1_000_000.0);
+            response.put("message", "Query executed successfully.");
+            if (Boolean.TRUE.equals(request.get("latencyReport"))) {
+                response.put("latency", QuerySQLite.latencySnapshot());
+            }
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            context.getLogger().log("ERROR: " + e.getMessage() + "\n");
+        }
+        return response;
+    }
+
+    private HashMap<String, Object> delegate(HashMap<String, Object> request, Context context) {
+        HashMap<String, Object> response = query.handleRequest(request, context);
+        response.remove("startup");
+        return response;
+    }
+
+    /** Fetch the database on first use, and again when the object's ETag has changed since the last check */
+    private void refreshIfDue(OpenDatabase db, Context context) throws IOException {
+        if (System.currentTimeMillis() - db.checkedAt < checkIntervalMs) {
+            return;
+        }
+        synchronized (db) {
+            if (System.currentTimeMillis() - db.checkedAt < checkIntervalMs) {
+                return;
+            }
+            String etag = store.etag(db.bucket, db.key);
+            if (etag == null) {
+                throw new FileNotFoundException("No such database: " + db.bucket + "/" + db.key);
+            }
+            // A delegated request may already have fetched this version into the same /tmp file
+            if (!etag.equals(db.etag)) {
+                if (LocalCopies.fetch(store, db.bucket, db.key, etag, db.file)) {
+                    context.getLogger().log("Downloaded database s3://" + db.bucket + "/" + db.key + "\n");
+                }
+                if (db.generation > 0) {
+                    db.reloads++;
+                }
+                db.etag = etag;
+                db.generation++;
+                Pooled pooled;
+                while ((pooled = db.idle.poll()) != null) {
+                    close(db, pooled);
+                }
+            }
+            db.checkedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** An idle connection to the current copy, or a new one */
+    private Pooled borrow(OpenDatabase db) throws SQLException {
+        Pooled pooled;
+        while ((pooled = db.idle.poll()) != null) {
+            if (pooled.generation == db.generation) {
+                return pooled;
+            }
+            close(db, pooled);
+        }
+        int generation = db.generation;
+        Connection conn = QuerySQLite.openReadOnly(db.file);
+        db.open.incrementAndGet();
+        return new Pooled(conn, generation);
+    }
+
+    /** Keep a connection for the next query unless it failed or the database has been reloaded since */
+    private void release(OpenDatabase db, Pooled pooled, boolean reusable) {
+        if (reusable && pooled.generation == db.generation) {
+            db.idle.offer(pooled);
+        } else {
+            close(db, pooled);
+        }
+    }
+
+    private static void close(OpenDatabase db, Pooled pooled) {
+        try {
+            pooled.conn.close();
+        } catch (SQLException e) {
+            // Nothing left to do with it
+        }
+        db.open.decrementAndGet();
+    }
+
+    /** Close every idle connection */
+    public void close() {
+        for (OpenDatabase db : databases.values()) {
+            Pooled pooled;
+            while ((pooled = db.idle.poll()) != null) {
+                close(db, pooled);
+            }
+        }
+    }
+
+    /**
+     * Counters since start, throughput and latency percentiles since the
+     * previous call (reading resets them, as with QuerySQLite's
+     * latencyReport), and the open databases.
+     */
+    public Map<String, Object> metrics() {
+        long now = System.currentTimeMillis();
+        long intervalMs = Math.max(1, now - intervalStart);
+        long done = intervalCompleted.getAndSet(0);
+        intervalStart = now;
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("uptimeMs", now - startedAt);
+        metrics.put("executor", executorName);
+        metrics.put("maxConcurrent", maxConcurrent);
+        metrics.put("maxQueued", maxQueued);
+        metrics.put("running", maxConcurrent - permits.availablePermits());
+        metrics.put("queued", queued.get());
+        metrics.put("received", received.get());
+        metrics.put("completed", completed.get());
+        metrics.put("failed", failed.get());
+        metrics.put("rejected", rejected.get());
+
+        Map<String, Object> throughput = new LinkedHashMap<>();
+        throughput.put("intervalMs", intervalMs);
+        throughput.put("completed", done);
+        throughput.put("perSecond", Math.round(done * 1000.0 / intervalMs * 10) / 10.0);
+        metrics.put("throughput", throughput);
+
+        Map<String, Object> latencies = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : latency.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().snapshotAndReset());
+        }
+        metrics.put("latency", latencies);
+
+        List<Map<String, Object>> open = new ArrayList<>();
+        for (OpenDatabase db : databases.values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("bucket", db.bucket);
+            entry.put("key", db.key);
+            entry.put("sizeBytes", db.file.length());
+            entry.put("connections", db.open.get());
+            entry.put("idleConnections", db.idle.size());
+            entry.put("queries", db.queries.get());
+            entry.put("reloads", db.reloads);
+            open.add(entry);
+        }
+        metrics.put("databases", open);
+        return metrics;
+    }
+
+    private static Map<String, Object> error(String status, String message) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", status);
+        response.put("message", message);
+        return response;
+    }
+
+    private static void reply(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = new Gson().toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
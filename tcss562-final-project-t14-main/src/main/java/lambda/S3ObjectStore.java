@@ -0,0 +1,133 @@
+package lambda;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ObjectStore backed by Amazon S3. One client is shared by every handler in
+ * the container so connection pools and credentials survive warm invocations.
+ */
+public class S3ObjectStore implements ObjectStore {
+
+    private static final S3ObjectStore INSTANCE = new S3ObjectStore();
+
+    private volatile AmazonS3 s3;
+
+    private S3ObjectStore() {}
+
+    public static S3ObjectStore getInstance() {
+        return INSTANCE;
+    }
+
+    /** Shared client, built on first use */
+    public AmazonS3 getClient() {
+        if (s3 == null) {
+            synchronized (this) {
+                if (s3 == null) {
+                    s3 = AmazonS3ClientBuilder.defaultClient();
+                }
+            }
+        }
+        return s3;
+    }
+
+    /**
+     * Drop the shared client and its pooled connections, e.g. before a
+     * snapshot is taken. The next getClient() builds a fresh one.
+     */
+    public synchronized void reset() {
+        if (s3 != null) {
+            s3.shutdown();
+            s3 = null;
+        }
+    }
+
+    @Override
+    public InputStream open(String bucket, String key) throws IOException {
+        return getClient().getObject(bucket, key).getObjectContent();
+    }
+
+    /** Open-ended ranged GET starting at offset */
+    @Override
+    public InputStream open(String bucket, String key, long offset) throws IOException {
+        if (offset <= 0) {
+            return open(bucket, key);
+        }
+        return getClient().getObject(new GetObjectRequest(bucket, key).withRange(offset)).getObjectContent();
+    }
+
+    /** Ranged GET, so only the requested bytes cross the network */
+    @Override
+    public byte[] readRange(String bucket, String key, long offset, int length) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(offset, offset + length - 1);
+        try (S3Object object = getClient().getObject(request);
+             InputStream input = object.getObjectContent()) {
+            return ObjectStore.readFully(input, length);
+        }
+    }
+
+    @Override
+    public String upload(String bucket, String key, File file) throws IOException {
+        return getClient().putObject(bucket, key, file).getETag();
+    }
+
+    @Override
+    public boolean exists(String bucket, String key) throws IOException {
+        return getClient().doesObjectExist(bucket, key);
+    }
+
+    @Override
+    public void delete(String bucket, String key) throws IOException {
+        getClient().deleteObject(bucket, key);
+    }
+
+    /** Pages through ListObjectsV2, which returns keys in UTF-8 binary order */
+    @Override
+    public List<String> list(String bucket, String prefix) throws IOException {
+        List<String> keys = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        ListObjectsV2Result result;
+        do {
+            result = getClient().listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                keys.add(summary.getKey());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return keys;
+    }
+
+    @Override
+    public long length(String bucket, String key) throws IOException {
+        try {
+            return getClient().getObjectMetadata(bucket, key).getContentLength();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String etag(String bucket, String key) throws IOException {
+        try {
+            return getClient().getObjectMetadata(bucket, key).getETag();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+}
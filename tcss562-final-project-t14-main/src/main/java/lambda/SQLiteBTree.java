@@ -0,0 +1,378 @@
+package lambda;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Minimal read-only SQLite b-tree reader over a SQLitePageCache.
+ *
+ * It understands just enough of the file format (table and index b-trees,
+ * records, overflow pages) to answer "SELECT * ... WHERE col op value" from
+ * an index whose first column is col: walk the index to the matching
+ * entries, then look each rowid up in the table b-tree. Only the pages on
+ * those paths are fetched. Column and index definitions are taken from the
+ * schema SQL by replaying it on an in-memory database.
+ *
+ * Text is compared as UTF-8 bytes, i.e. SQLite's default BINARY collation;
+ * indexes with another collation or a WHERE clause are not used.
+ */
+public class SQLiteBTree {
+
+    private static final int INTERIOR_INDEX = 2;
+    private static final int INTERIOR_TABLE = 5;
+    private static final int LEAF_INDEX = 10;
+    private static final int LEAF_TABLE = 13;
+
+    /** One row of sqlite_master */
+    static class SchemaEntry {
+        String type;
+        String name;
+        String table;
+        long rootPage;
+        String sql;
+    }
+
+    private final SQLitePageCache pages;
+    private final int usable;
+    private List<SchemaEntry> schema;
+
+    public SQLiteBTree(SQLitePageCache pages) {
+        this.pages = pages;
+        this.usable = pages.getUsableSize();
+    }
+
+    /**
+     * Rows of table where column op value (op is =, <, <=, > or >=), in index
+     * order, up to limit rows.
+     *
+     * @return the rows, or null when no usable index covers the column.
+     */
+    public List<Map<String, Object>> filter(String table, String column, String op, String value, int limit)
+            throws IOException, SQLException {
+        SchemaEntry tableEntry = null;
+        for (SchemaEntry entry : schema()) {
+            if (entry.type.equals("table") && entry.name.equalsIgnoreCase(table)) {
+                tableEntry = entry;
+            }
+        }
+        if (tableEntry == null) {
+            throw new SQLException("no such table: " + table);
+        }
+
+        SchemaEntry index = null;
+        List<String> columns = new ArrayList<>();
+        boolean rowidAlias;
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(tableEntry.sql);
+            rowidAlias = false;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(\"" + tableEntry.name + "\")")) {
+                while (rs.next()) {
+                    columns.add(rs.getString("name"));
+                    rowidAlias |= rs.getInt("pk") > 0 && "INTEGER".equalsIgnoreCase(rs.getString("type"));
+                }
+            }
+            for (SchemaEntry entry : schema()) {
+                if (index == null && entry.type.equals("index") && entry.sql != null
+                        && entry.table.equalsIgnoreCase(tableEntry.name)
+                        && !entry.sql.toUpperCase().contains(" WHERE ")
+                        && !entry.sql.toUpperCase().contains("COLLATE")) {
+                    stmt.execute(entry.sql);
+                    try (ResultSet rs = stmt.executeQuery("PRAGMA index_info(\"" + entry.name + "\")")) {
+                        if (rs.next() && column.equalsIgnoreCase(rs.getString("name"))) {
+                            index = entry;
+                        }
+                    }
+                }
+            }
+        }
+        if (index == null || rowidAlias) {
+            return null;
+        }
+
+        byte[] bound = value.getBytes(StandardCharsets.UTF_8);
+        byte[] lo = op.equals("=") || op.startsWith(">") ? bound : null;
+        byte[] hi = op.equals("=") || op.startsWith("<") ? bound : null;
+        boolean loInclusive = !op.equals(">");
+        boolean hiInclusive = !op.equals("<");
+
+        List<Long> rowids = new ArrayList<>();
+        scanIndex(index.rootPage, lo, loInclusive, hi, hiInclusive, rowids, limit);
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long rowid : rowids) {
+            Object[] record = findRow(tableEntry.rootPage, rowid);
+            if (record == null) {
+                throw new SQLException("Index " + index.name + " points at missing rowid " + rowid);
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                Object field = i < record.length ? record[i] : null;
+                // sqlite-jdbc's getObject returns Integer for values that fit
+                if (field instanceof Long && (Long) field == ((Long) field).intValue()) {
+                    field = ((Long) field).intValue();
+                }
+                row.put(columns.get(i), field);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /** Entries of sqlite_master, read from the table b-tree rooted at page 1 */
+    List<SchemaEntry> schema() throws IOException {
+        if (schema == null) {
+            List<SchemaEntry> entries = new ArrayList<>();
+            List<Object[]> records = new ArrayList<>();
+            scanTable(1, records);
+            for (Object[] record : records) {
+                SchemaEntry entry = new SchemaEntry();
+                entry.type = (String) record[0];
+                entry.name = (String) record[1];
+                entry.table = (String) record[2];
+                entry.rootPage = record[3] == null ? 0 : ((Number) record[3]).longValue();
+                entry.sql = (String) record[4];
+                entries.add(entry);
+            }
+            schema = entries;
+        }
+        return schema;
+    }
+
+    /** Every record of a (small) table b-tree, in rowid order */
+    private void scanTable(long pageNumber, List<Object[]> records) throws IOException {
+        byte[] page = pages.page(pageNumber);
+        int header = pageNumber == 1 ? 100 : 0;
+        int type = page[header];
+        int cells = readShort(page, header + 3);
+
+        if (type == INTERIOR_TABLE) {
+            for (int i = 0; i < cells; i++) {
+                scanTable(SQLitePageCache.readInt(page, cellOffset(page, header, 12, i)), records);
+            }
+            scanTable(SQLitePageCache.readInt(page, header + 8), records);
+        } else if (type == LEAF_TABLE) {
+            for (int i = 0; i < cells; i++) {
+                int[] pos = {cellOffset(page, header, 8, i)};
+                long payloadSize = varint(page, pos);
+                varint(page, pos);
+                records.add(decodeRecord(payload(page, pos[0], payloadSize, true)));
+            }
+        } else {
+            throw new IOException("Unexpected page type " + type + " in table b-tree page " + pageNumber);
+        }
+    }
+
+    /**
+     * Collect rowids of index entries whose first column lies within the
+     * bounds, in index order. Returns false once the scan can stop.
+     */
+    private boolean scanIndex(long pageNumber, byte[] lo, boolean loInclusive, byte[] hi, boolean hiInclusive,
+                              List<Long> rowids, int limit) throws IOException {
+        byte[] page = pages.page(pageNumber);
+        int header = pageNumber == 1 ? 100 : 0;
+        int type = page[header];
+        int cells = readShort(page, header + 3);
+        boolean interior = type == INTERIOR_INDEX;
+        if (!interior && type != LEAF_INDEX) {
+            throw new IOException("Unexpected page type " + type + " in index b-tree page " + pageNumber);
+        }
+
+        for (int i = 0; i < cells; i++) {
+            int[] pos = {cellOffset(page, header, interior ? 12 : 8, i)};
+            long child = 0;
+            if (interior) {
+                child = SQLitePageCache.readInt(page, pos[0]) & 0xffffffffL;
+                pos[0] += 4;
+            }
+            long payloadSize = varint(page, pos);
+            Object[] entry = decodeRecord(payload(page, pos[0], payloadSize, false));
+            Object key = entry[0];
+
+            // Everything in the left child sorts at or before this entry
+            if (interior && (lo == null || compare(key, lo) >= 0)) {
+                if (!scanIndex(child, lo, loInclusive, hi, hiInclusive, rowids, limit)) {
+                    return false;
+                }
+            }
+            if (hi != null && compare(key, hi) > (hiInclusive ? 0 : -1)) {
+                return false;
+            }
+            boolean aboveLo = lo == null || compare(key, lo) >= (loInclusive ? 0 : 1);
+            if (aboveLo && key != null) {
+                rowids.add(((Number) entry[entry.length - 1]).longValue());
+                if (rowids.size() >= limit) {
+                    return false;
+                }
+            }
+        }
+
+        if (interior) {
+            return scanIndex(SQLitePageCache.readInt(page, header + 8) & 0xffffffffL,
+                    lo, loInclusive, hi, hiInclusive, rowids, limit);
+        }
+        return true;
+    }
+
+    /** Record with the given rowid, found by binary search down the table b-tree */
+    private Object[] findRow(long root, long rowid) throws IOException {
+        long pageNumber = root;
+        while (true) {
+            byte[] page = pages.page(pageNumber);
+            int header = pageNumber == 1 ? 100 : 0;
+            int type = page[header];
+            int cells = readShort(page, header + 3);
+
+            if (type == INTERIOR_TABLE) {
+                // Left child of the first cell whose key is >= rowid, else the right-most child
+                int low = 0;
+                int high = cells;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    int[] pos = {cellOffset(page, header, 12, mid) + 4};
+                    if (varint(page, pos) < rowid) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                pageNumber = low < cells
+                        ? SQLitePageCache.readInt(page, cellOffset(page, header, 12, low)) & 0xffffffffL
+                        : SQLitePageCache.readInt(page, header + 8) & 0xffffffffL;
+            } else if (type == LEAF_TABLE) {
+                int low = 0;
+                int high = cells - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    int[] pos = {cellOffset(page, header, 8, mid)};
+                    long payloadSize = varint(page, pos);
+                    long key = varint(page, pos);
+                    if (key < rowid) {
+                        low = mid + 1;
+                    } else if (key > rowid) {
+                        high = mid - 1;
+                    } else {
+                        return decodeRecord(payload(page, pos[0], payloadSize, true));
+                    }
+                }
+                return null;
+            } else {
+                throw new IOException("Unexpected page type " + type + " in table b-tree page " + pageNumber);
+            }
+        }
+    }
+
+    private static int cellOffset(byte[] page, int header, int headerSize, int cell) {
+        return readShort(page, header + headerSize + 2 * cell);
+    }
+
+    /** Cell payload, following overflow pages when it does not fit locally */
+    private byte[] payload(byte[] page, int offset, long size, boolean tableLeaf) throws IOException {
+        int local = localSize(size, tableLeaf);
+        byte[] payload = new byte[(int) size];
+        System.arraycopy(page, offset, payload, 0, local);
+
+        int copied = local;
+        long overflow = copied < size ? SQLitePageCache.readInt(page, offset + local) & 0xffffffffL : 0;
+        while (copied < size) {
+            byte[] next = pages.page(overflow);
+            int chunk = (int) Math.min(size - copied, usable - 4);
+            System.arraycopy(next, 4, payload, copied, chunk);
+            copied += chunk;
+            overflow = SQLitePageCache.readInt(next, 0) & 0xffffffffL;
+        }
+        return payload;
+    }
+
+    /** Bytes of a payload stored on the b-tree page itself (file format section 1.6) */
+    private int localSize(long size, boolean tableLeaf) {
+        int maxLocal = tableLeaf ? usable - 35 : ((usable - 12) * 64 / 255) - 23;
+        if (size <= maxLocal) {
+            return (int) size;
+        }
+        int minLocal = ((usable - 12) * 32 / 255) - 23;
+        int local = (int) (minLocal + ((size - minLocal) % (usable - 4)));
+        return local <= maxLocal ? local : minLocal;
+    }
+
+    /** Decode a record into null, Long, Double, String or byte[] values */
+    static Object[] decodeRecord(byte[] payload) {
+        int[] pos = {0};
+        int headerSize = (int) varint(payload, pos);
+        List<Long> types = new ArrayList<>();
+        while (pos[0] < headerSize) {
+            types.add(varint(payload, pos));
+        }
+
+        Object[] values = new Object[types.size()];
+        int body = headerSize;
+        for (int i = 0; i < values.length; i++) {
+            long type = types.get(i);
+            if (type == 0) {
+                values[i] = null;
+            } else if (type <= 6) {
+                int length = type <= 4 ? (int) type : type == 5 ? 6 : 8;
+                long value = payload[body];
+                for (int b = 1; b < length; b++) {
+                    value = (value << 8) | (payload[body + b] & 0xff);
+                }
+                values[i] = value;
+                body += length;
+            } else if (type == 7) {
+                long bits = 0;
+                for (int b = 0; b < 8; b++) {
+                    bits = (bits << 8) | (payload[body + b] & 0xff);
+                }
+                values[i] = Double.longBitsToDouble(bits);
+                body += 8;
+            } else if (type == 8 || type == 9) {
+                values[i] = type - 8;
+            } else {
+                int length = (int) ((type - 12) / 2);
+                values[i] = type % 2 == 1
+                        ? new String(payload, body, length, StandardCharsets.UTF_8)
+                        : Arrays.copyOfRange(payload, body, body + length);
+                body += length;
+            }
+        }
+        return values;
+    }
+
+    /** Compare a key against a text bound: NULL and numbers sort before text, blobs after */
+    private static int compare(Object key, byte[] bound) {
+        if (key == null || key instanceof Number) {
+            return -1;
+        }
+        if (key instanceof byte[]) {
+            return 1;
+        }
+        byte[] text = ((String) key).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, bound.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (text[i] & 0xff) - (bound[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return text.length - bound.length;
+    }
+
+    /** SQLite big-endian varint; advances pos[0] */
+    static long varint(byte[] data, int[] pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            int b = data[pos[0]++] & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return (value << 8) | (data[pos[0]++] & 0xff);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+}
@@ -0,0 +1,226 @@
+package lambda;
+
+import org.crac.Resource;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Page-granular view of a SQLite database stored in an ObjectStore.
+ *
+ * Pages are fetched on demand with ranged reads and written into a sparse
+ * file in /tmp; a bitmap records which pages are present, so each page
+ * crosses the network at most once per container. Every miss also fetches
+ * the following READAHEAD-1 pages, since b-tree siblings written by a bulk
+ * load tend to sit next to each other.
+ *
+ * Only rollback-journal databases are supported; a WAL database's main file
+ * may be missing committed pages.
+ *
+ * Every open() compares the object's ETag with the one the cache was built
+ * from. When the database has been appended to or uploaded again, the cache
+ * is replaced by an empty one, and queries still reading the old one fail
+ * instead of mixing pages of two versions.
+ *
+ * The sparse file stays open between queries. Before a snapshot every handle
+ * is closed and every cache dropped along with its file, since /tmp of a
+ * restored copy need not hold them.
+ */
+public class SQLitePageCache {
+
+    private static final ConcurrentHashMap<String, SQLitePageCache> CACHES = new ConcurrentHashMap<>();
+
+    static {
+        Warmup.register(new Caches());
+    }
+
+    private static class Caches implements Resource {
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+            for (SQLitePageCache cache : CACHES.values()) {
+                cache.close();
+            }
+            CACHES.clear();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+            // Caches are created again by open()
+        }
+    }
+
+    /** Pages fetched per miss; TLQ_PAGE_READAHEAD overrides */
+    private static final int READAHEAD = readahead();
+
+    /** Bytes read on open: the 100-byte header and the start of the schema */
+    private static final int FIRST_READ = 65536;
+
+    private final ObjectStore store;
+    private final String bucket;
+    private final String key;
+    private final String etag;
+    private final File file;
+    private final BitSet present = new BitSet();
+    private RandomAccessFile raf;
+    private boolean closed;
+
+    private int pageSize;
+    private int usableSize;
+    private long pageCount;
+    private int requests;
+    private long bytesFetched;
+
+    private SQLitePageCache(ObjectStore store, String bucket, String key, String etag) {
+        this.store = store;
+        this.bucket = bucket;
+        this.key = key;
+        this.etag = etag;
+        this.file = new File("/tmp/pages-" + key.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Cache for the current version of the given database object, shared by
+     * every query in the container
+     */
+    public static SQLitePageCache open(ObjectStore store, String bucket, String key) throws IOException {
+        String etag = store.etag(bucket, key);
+        if (etag == null) {
+            throw new FileNotFoundException("No such object: " + bucket + "/" + key);
+        }
+        SQLitePageCache cache = CACHES.compute(bucket + "/" + key, (k, cached) -> {
+            if (cached != null && etag.equals(cached.etag)) {
+                return cached;
+            }
+            if (cached != null) {
+                cached.close();
+            }
+            return new SQLitePageCache(store, bucket, key, etag);
+        });
+        cache.init();
+        return cache;
+    }
+
+    /** Read the header on first use and size the cache from it */
+    private synchronized void init() throws IOException {
+        if (pageSize > 0 || closed) {
+            return;
+        }
+
+        byte[] head = store.readRange(bucket, key, 0, FIRST_READ);
+        if (head.length < 100 || !new String(head, 0, 15, "US-ASCII").equals("SQLite format 3")) {
+            throw new UnsupportedOperationException(key + " is not a SQLite database");
+        }
+        int size = ((head[16] & 0xff) << 8) | (head[17] & 0xff);
+        int candidatePageSize = size == 1 ? 65536 : size;
+        if (head[18] == 2 || head[19] == 2) {
+            throw new UnsupportedOperationException(key + " is in WAL mode");
+        }
+        if (readInt(head, 56) != 1) {
+            throw new UnsupportedOperationException(key + " is not UTF-8 encoded");
+        }
+
+        // The in-header page count is only valid when the change counter matches
+        long count = readInt(head, 28) & 0xffffffffL;
+        if (count == 0 || readInt(head, 24) != readInt(head, 92)) {
+            count = (store.length(bucket, key) + candidatePageSize - 1) / candidatePageSize;
+        }
+
+        file.delete();
+        pageSize = candidatePageSize;
+        usableSize = pageSize - (head[20] & 0xff);
+        pageCount = count;
+        requests = 1;
+        bytesFetched = head.length;
+        store(1, head);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** Page size minus the reserved bytes at the end of every page */
+    public int getUsableSize() {
+        return usableSize;
+    }
+
+    /** Content of a page, numbered from 1 as in SQLite */
+    public synchronized byte[] page(long pageNumber) throws IOException {
+        if (closed) {
+            throw new IOException(bucket + "/" + key + " was replaced while it was being read");
+        }
+        if (pageNumber < 1 || pageNumber > pageCount) {
+            throw new IOException("Page " + pageNumber + " is outside the database (" + pageCount + " pages)");
+        }
+        if (!present.get((int) pageNumber)) {
+            int pages = (int) Math.min(READAHEAD, pageCount - pageNumber + 1);
+            byte[] data = store.readRange(bucket, key, (pageNumber - 1) * pageSize, pages * pageSize);
+            requests++;
+            bytesFetched += data.length;
+            store(pageNumber, data);
+        }
+
+        byte[] page = new byte[pageSize];
+        RandomAccessFile handle = handle();
+        handle.seek((pageNumber - 1) * pageSize);
+        handle.readFully(page);
+        return page;
+    }
+
+    /** Write whole pages starting at firstPage into the sparse file */
+    private void store(long firstPage, byte[] data) throws IOException {
+        int pages = data.length / pageSize;
+        RandomAccessFile handle = handle();
+        handle.seek((firstPage - 1) * pageSize);
+        handle.write(data, 0, pages * pageSize);
+        present.set((int) firstPage, (int) firstPage + pages);
+    }
+
+    /** The sparse file, opened on first use */
+    private RandomAccessFile handle() throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+        }
+        return raf;
+    }
+
+    /** Close the sparse file and delete it; later reads through this cache fail */
+    private synchronized void close() {
+        closed = true;
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // The file is deleted below either way
+        } finally {
+            raf = null;
+            file.delete();
+            present.clear();
+        }
+    }
+
+    /** Pages held, ranged reads issued and bytes fetched so far */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pageSize", pageSize);
+        stats.put("pagesTotal", pageCount);
+        stats.put("pagesCached", present.cardinality());
+        stats.put("requests", requests);
+        stats.put("bytesFetched", bytesFetched);
+        stats.put("databaseBytes", pageCount * pageSize);
+        return stats;
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int readahead() {
+        String value = System.getenv("TLQ_PAGE_READAHEAD");
+        return value == null || value.isEmpty() ? 16 : Math.max(1, Integer.parseInt(value));
+    }
+}
@@ -0,0 +1,191 @@
+package lambda;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Layout of a sharded database written by CreateSQLiteDB in "sharded" mode.
+ *
+ * The shards live at databases/<dbName>/shard-k.db next to a manifest.json
+ * holding this object. Rows are routed by the partition value of their shard
+ * key (Region, Order Date month or Order ID) as
+ * floorMod(value.hashCode(), shardCount); String.hashCode() is fixed by the
+ * Java spec so loader and query side always agree. Region and month shards
+ * also list the values they hold so QuerySQLite can prune without hashing.
+ */
+public class ShardManifest {
+
+    public static final String FILE_NAME = "manifest.json";
+
+    /** One shard database */
+    public static class Shard {
+        int index;
+        String key;
+        long rows;
+        long sizeBytes;
+        SortedSet<String> values;
+    }
+
+    int version = 1;
+    String loadId;
+    String dbName;
+    String table;
+    String shardKey;
+    String column;
+    int shardCount;
+    String partitioning = "floorMod(String.hashCode(), shardCount)";
+    String minMonth;
+    String maxMonth;
+    List<Shard> shards = new ArrayList<>();
+
+    ShardManifest() {
+    }
+
+    ShardManifest(String dbName, String table, String shardKey, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shards must be at least 1");
+        }
+        this.loadId = UUID.randomUUID().toString();
+        this.dbName = dbName;
+        this.table = table;
+        this.shardKey = normalizeKey(shardKey);
+        this.column = columnFor(this.shardKey);
+        this.shardCount = shardCount;
+        for (int k = 0; k < shardCount; k++) {
+            Shard shard = new Shard();
+            shard.index = k;
+            shard.key = objectKey(dbName, k);
+            if (!this.shardKey.equals("orderId")) {
+                shard.values = new TreeSet<>();
+            }
+            shards.add(shard);
+        }
+    }
+
+    /** Object key of shard k */
+    public static String objectKey(String dbName, int k) {
+        return "databases/" + dbName + "/shard-" + k + ".db";
+    }
+
+    /** Object key of the manifest for a sharded database */
+    public static String manifestKey(String dbName) {
+        return "databases/" + dbName + "/" + FILE_NAME;
+    }
+
+    /** Accept "region", "month" or "orderId" in any case */
+    static String normalizeKey(String shardKey) {
+        String key = shardKey == null ? "region" : shardKey.trim().toLowerCase();
+        switch (key) {
+            case "region":
+                return "region";
+            case "month":
+            case "orderdate":
+            case "order_date":
+                return "month";
+            case "orderid":
+            case "order_id":
+                return "orderId";
+            default:
+                throw new IllegalArgumentException("Unknown shardKey: " + shardKey + " (use region, month or orderId)");
+        }
+    }
+
+    /** Table column a shard key is derived from */
+    static String columnFor(String shardKey) {
+        switch (shardKey) {
+            case "month":
+                return "Order_Date";
+            case "orderId":
+                return "Order_ID";
+            default:
+                return "Region";
+        }
+    }
+
+    /**
+     * Value rows are partitioned on: the column text itself, or yyyy-MM for
+     * an Order Date in M/d/yyyy form. Returns null for unparseable dates.
+     */
+    String partitionValue(String raw) {
+        if (raw == null) {
+            return "";
+        }
+        String value = raw.trim();
+        if (!shardKey.equals("month")) {
+            return value;
+        }
+        String[] parts = value.split("/");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return String.format("%04d-%02d", Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[0].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Shard a partition value belongs to */
+    int shardOf(String partitionValue) {
+        return Math.floorMod(partitionValue == null ? 0 : partitionValue.hashCode(), shardCount);
+    }
+
+    /** Record that a row with this partition value went to shard k */
+    void addRow(int k, String partitionValue) {
+        Shard shard = shards.get(k);
+        shard.rows++;
+        if (shard.values != null && partitionValue != null) {
+            shard.values.add(partitionValue);
+        }
+        if (shardKey.equals("month") && partitionValue != null) {
+            if (minMonth == null || partitionValue.compareTo(minMonth) < 0) {
+                minMonth = partitionValue;
+            }
+            if (maxMonth == null || partitionValue.compareTo(maxMonth) > 0) {
+                maxMonth = partitionValue;
+            }
+        }
+    }
+
+    /**
+     * Shards that can hold rows where column = value. Equality on the shard
+     * column narrows to the shards holding that value; anything else needs
+     * every shard.
+     */
+    List<Shard> prune(String filterColumn, Object filterValue) {
+        if (filterColumn == null || filterValue == null || !filterColumn.equalsIgnoreCase(column)) {
+            return shards;
+        }
+        String value = partitionValue(filterValue.toString());
+        if (value == null) {
+            return shards;
+        }
+        List<Shard> matching = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.values != null ? shard.values.contains(value) : shard.index == shardOf(value)) {
+                matching.add(shard);
+            }
+        }
+        return matching;
+    }
+
+    public static ShardManifest read(InputStream input) throws IOException {
+        try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+            ShardManifest manifest = new Gson().fromJson(reader, ShardManifest.class);
+            if (manifest == null || manifest.shards == null || manifest.shardCount != manifest.shards.size()) {
+                throw new IOException("Invalid shard manifest");
+            }
+            return manifest;
+        }
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+        }
+    }
+}
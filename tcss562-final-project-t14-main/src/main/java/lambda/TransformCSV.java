@@ -2,43 +2,114 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.S3Object;
+import saaf.Inspector;
 
 import java.io.*;
-import java.text.ParseException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class TransformCSV implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
+    static {
+        Warmup.init("TransformCSV", false);
+    }
+
+    /** Rows between checks of the checkpoint deadline */
+    private static final int CHECK_INTERVAL = 10000;
+
+    /** Names of the state objects saved with a checkpoint */
+    private static final String SEEN_IDS = "seen-ids.bin";
+    private static final String RUN_PREFIX = "run-";
+
+    private final ObjectStore store;
+
+    public TransformCSV() {
+        this(ObjectStore.defaultStore());
+    }
+
+    public TransformCSV(ObjectStore store) {
+        this.store = store;
+    }
+
     @Override
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
+        Inspector metrics = Helpers.startMetrics();
+        HashMap<String, Object> response = process(request, context);
+        Helpers.finishMetrics(metrics, "TransformCSV", response);
+        return response;
+    }
+
+    private HashMap<String, Object> process(HashMap<String, Object> request, Context context) {
         HashMap<String, Object> response = new HashMap<>();
 
         try {
+            Map<String, Object> startup = Warmup.firstInvocationReport();
+            if (startup != null) {
+                response.put("startup", startup);
+            }
+
             String sourceBucket = (String) request.get("sourceBucket");
             String sourceKey = (String) request.get("sourceKey");
             String destBucket = (String) request.get("destBucket");
-            String destKey = (String) request.getOrDefault("destKey", "transformed-" + sourceKey);
+            String outputCodec = Compression.normalize((String) request.get("compression"));
+            String destKey = (String) request.getOrDefault("destKey",
+                    "transformed-" + Compression.stripSuffix(sourceKey) + Compression.suffix(outputCodec));
+            CsvSummary summary = newSummary(request);
+            @SuppressWarnings("unchecked")
+            List<String> sortBy = (List<String>) request.getOrDefault("sortBy", Collections.singletonList("Order Priority"));
+            // A quarter of the function's memory for sort buffers unless sortMemoryMB says otherwise
+            long sortMemoryMB = request.containsKey("sortMemoryMB")
+                    ? ((Number) request.get("sortMemoryMB")).longValue()
+                    : context.getMemoryLimitInMB() / 4;
+            // Rows pass through as raw bytes unless "passthrough": false asks for the field-by-field writer
+            boolean passthrough = !Boolean.FALSE.equals(request.get("passthrough"));
+
+            if (ObjectBatch.isBatch(request, "sourceKeys", "sourcePrefix")) {
+                transformBatch(request, sourceBucket, destBucket, outputCodec, sortBy, sortMemoryMB << 20, passthrough,
+                        response, context);
+                return response;
+            }
 
             context.getLogger().log("Starting CSV transformation\n");
             context.getLogger().log("Source: s3://" + sourceBucket + "/" + sourceKey + "\n");
 
-            // Download CSV from S3
-            File csvFile = downloadFromS3(sourceBucket, sourceKey, context);
+            // Checkpoints are kept in the source bucket
+            String token = (String) request.get("continuationToken");
+            Checkpoint resume = token == null ? null : Checkpoint.load(store, sourceBucket, token, "TransformCSV", sourceKey);
+            Checkpoint.Deadline deadline = new Checkpoint.Deadline(context, Checkpoint.marginMillis(request));
+
+            // Stream CSV from S3, decompressing on the fly
+            context.getLogger().log("Streaming CSV from S3\n");
+            OffsetLineReader reader = Checkpoint.openSource(store, sourceBucket, sourceKey, resume, context);
             
             // Transform CSV
-            File transformedFile = transformCSV(csvFile, context);
+            File transformedFile;
+            try {
+                transformedFile = transformCSV(reader, outputCodec, summary, sortBy, sortMemoryMB << 20, passthrough,
+                        sourceBucket, sourceKey, resume, deadline, response, context);
+            } finally {
+                reader.close();
+            }
+            if (transformedFile == null) {
+                response.put("status", "partial");
+                response.put("message", "Stopped before the timeout after " + response.get("rowCount")
+                        + " rows; invoke again with continuationToken to resume.");
+                return response;
+            }
             
             // Upload transformed CSV back to S3
-            uploadToS3(destBucket, destKey, transformedFile, context);
+            publish(destBucket, destKey, transformedFile, outputCodec, summary, response, context);
 
             response.put("status", "success");
             response.put("sourceLocation", "s3://" + sourceBucket + "/" + sourceKey);
-            response.put("destLocation", "s3://" + destBucket + "/" + destKey);
+            response.put("inputSizeBytes", reader.getSourceBytes());
             response.put("message", "CSV transformed successfully.");
+            if (resume != null) {
+                response.put("resumedFrom", resume.token);
+                response.put("invocations", resume.invocations + 1);
+                resume.delete(store, sourceBucket, context);
+            }
 
         } catch (Exception e) {
             response.put("status", "error");
@@ -50,86 +121,358 @@ public class TransformCSV implements RequestHandler<HashMap<String, Object>, Has
         return response;
     }
 
-    /** Download file from S3 */
-    private File downloadFromS3(String bucket, String key, Context context) throws IOException {
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
-
-        context.getLogger().log("Downloading CSV from S3\n");
-        S3Object object = s3.getObject(bucket, key);
-        InputStream input = object.getObjectContent();
+    /** Summary requested by "summaries": true, or null */
+    private static CsvSummary newSummary(Map<String, Object> request) {
+        if (!Boolean.TRUE.equals(request.get("summaries"))) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        List<String> dimensions = (List<String>) request.getOrDefault("summaryDimensions",
+                Arrays.asList(CsvSummary.DEFAULT_DIMENSIONS));
+        return new CsvSummary(dimensions,
+                (String) request.getOrDefault("topBy", "Total Revenue"),
+                ((Number) request.getOrDefault("topN", 10)).intValue());
+    }
 
-        File temp = File.createTempFile("input", ".csv");
-        FileOutputStream fos = new FileOutputStream(temp);
+    /** Upload the transformed CSV and its summary, then drop the local copy */
+    private void publish(String destBucket, String destKey, File transformedFile, String outputCodec, CsvSummary summary,
+                         Map<String, Object> result, Context context) throws IOException {
+        uploadToS3(destBucket, destKey, transformedFile, context);
+
+        // Small JSON summary next to the CSV
+        if (summary != null) {
+            String summaryKey = Compression.stripSuffix(destKey) + ".summary.json";
+            File summaryFile = File.createTempFile("summary", ".json");
+            summary.write(summaryFile);
+            uploadToS3(destBucket, summaryKey, summaryFile, context);
+            result.put("summaryLocation", "s3://" + destBucket + "/" + summaryKey);
+            result.put("summarySizeBytes", summaryFile.length());
+            summaryFile.delete();
+        }
 
-        byte[] buffer = new byte[4096];
-        int length;
+        result.put("destLocation", "s3://" + destBucket + "/" + destKey);
+        result.put("outputSizeBytes", transformedFile.length());
+        result.put("outputCompression", outputCodec);
+        transformedFile.delete();
+    }
 
-        while ((length = input.read(buffer)) > 0) {
-            fos.write(buffer, 0, length);
+    /**
+     * Transform the objects named by "sourceKeys" or "sourcePrefix" in one
+     * invocation. "output": "perKey" (default) transforms up to concurrency
+     * objects at a time, each to transformed-<key> under "destPrefix" with
+     * its own share of the sort memory. "combined" reads them back to back
+     * into one deduplicated, sorted output at destKey. Either way the
+     * response lists a result per object; a failing object in perKey mode
+     * does not fail the rest.
+     */
+    private void transformBatch(Map<String, Object> request, String sourceBucket, String destBucket, String outputCodec,
+                                List<String> sortBy, long sortBudgetBytes, boolean passthrough,
+                                Map<String, Object> response, Context context) throws Exception {
+        if (request.containsKey("continuationToken")) {
+            throw new IllegalArgumentException("Batches cannot be resumed from a checkpoint");
+        }
+        String prefix = (String) request.get("sourcePrefix");
+        @SuppressWarnings("unchecked")
+        List<String> sourceKeys = (List<String>) request.get("sourceKeys");
+        List<String> keys = ObjectBatch.resolveKeys(store, sourceBucket, sourceKeys, prefix);
+        int concurrency = Math.min(ObjectBatch.concurrency(request), keys.size());
+        String output = (String) request.getOrDefault("output", "perKey");
+        context.getLogger().log("Transforming " + keys.size() + " objects (" + output + ", concurrency " + concurrency + ")\n");
+
+        List<Map<String, Object>> objects;
+        int failed = 0;
+        if (output.equalsIgnoreCase("combined")) {
+            String destKey = (String) request.getOrDefault("destKey", "transformed-batch.csv" + Compression.suffix(outputCodec));
+            CsvSummary summary = newSummary(request);
+            ObjectBatch.ConcatenatedReader reader = ObjectBatch.concatenate(store, sourceBucket, keys, concurrency, context);
+            File transformedFile;
+            try {
+                transformedFile = transformCSV(reader, outputCodec, summary, sortBy, sortBudgetBytes, passthrough,
+                        sourceBucket, null, null, null, response, context);
+            } finally {
+                reader.close();
+            }
+            publish(destBucket, destKey, transformedFile, outputCodec, summary, response, context);
+            objects = reader.getObjects();
+            long inputBytes = 0;
+            for (Map<String, Object> object : objects) {
+                inputBytes += (Long) object.get("sizeBytes");
+            }
+            response.put("inputSizeBytes", inputBytes);
+        } else if (output.equalsIgnoreCase("perKey")) {
+            String destPrefix = (String) request.getOrDefault("destPrefix", "");
+            long budget = sortBudgetBytes / concurrency;
+            objects = ObjectBatch.forEach(keys, concurrency, (key, result) -> {
+                String destKey = destPrefix + "transformed-" + Compression.stripSuffix(key) + Compression.suffix(outputCodec);
+                CsvSummary summary = newSummary(request);
+                OffsetLineReader reader = OffsetLineReader.open(store.open(sourceBucket, key), key, context);
+                File transformedFile;
+                try {
+                    transformedFile = transformCSV(reader, outputCodec, summary, sortBy, budget, passthrough,
+                            sourceBucket, key, null, null, result, context);
+                } finally {
+                    reader.close();
+                }
+                result.put("inputSizeBytes", reader.getSourceBytes());
+                publish(destBucket, destKey, transformedFile, outputCodec, summary, result, context);
+            }, context);
+            failed = ObjectBatch.failures(objects);
+        } else {
+            throw new IllegalArgumentException("Unsupported output: " + output + " (use perKey or combined)");
         }
 
-        fos.close();
-        input.close();
-        
-        context.getLogger().log("Downloaded " + temp.length() + " bytes\n");
-        return temp;
+        response.put("status", "success");
+        response.put("output", output);
+        response.put("objectCount", keys.size());
+        response.put("failedObjects", failed);
+        response.put("concurrency", concurrency);
+        response.put("objects", objects);
+        response.put("sourceLocation", "s3://" + sourceBucket + "/" + (prefix != null ? prefix : ""));
+        response.put("message", "Transformed " + keys.size() + " objects" + (failed > 0 ? ", " + failed + " failed." : "."));
     }
 
-    /** Transform CSV: remove duplicates, sort, add processing time */
-    private File transformCSV(File inputFile, Context context) throws IOException, ParseException {
+    /**
+     * Transform CSV: remove duplicates, sort, add processing time, and feed
+     * the summary if one is given.
+     *
+     * The first row of each Order ID wins; only the IDs are held to detect
+     * repeats. Unique rows go through an ExternalSorter on the sortBy keys
+     * ("Column" or "Column desc", default Order Priority), which spills
+     * sorted runs to /tmp once sortBudgetBytes is reached, so input larger
+     * than the heap still sorts.
+     *
+     * Once the deadline is reached while reading, the seen IDs and sorted
+     * runs are saved with a checkpoint and null is returned; a resumed call
+     * restores them and carries on from the checkpoint's offset. The merge
+     * and write phase is not checkpointed and has to fit in the margin. A
+     * deadline needs an OffsetLineReader to record the offset.
+     *
+     * With passthrough and a ByteLineReader, each row stays the bytes of its
+     * line from reader to output: only the Order ID, sort key and date
+     * fields are decoded, and the line is written back verbatim with the
+     * new column. Otherwise rows are split into Strings and rejoined.
+     */
+    private File transformCSV(LineSource reader, String outputCodec, CsvSummary summary, List<String> sortBy,
+                              long sortBudgetBytes, boolean passthrough, String bucket, String sourceKey,
+                              Checkpoint resume, Checkpoint.Deadline deadline, Map<String, Object> stats,
+                              Context context) throws IOException {
         context.getLogger().log("Starting CSV transformation\n");
 
-        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
         String headerLine = reader.readLine();
         
         if (headerLine == null) {
-            reader.close();
             throw new IOException("CSV file is empty");
         }
 
         String[] headers = headerLine.split(",");
         context.getLogger().log("Headers: " + headerLine + "\n");
+        if (summary != null) {
+            summary.begin(headers);
+        }
 
         // Find column indices
         int orderIdIndex = findColumnIndex(headers, "Order ID");
-        int orderPriorityIndex = findColumnIndex(headers, "Order Priority");
         int orderDateIndex = findColumnIndex(headers, "Order Date");
         int shipDateIndex = findColumnIndex(headers, "Ship Date");
+        if (orderIdIndex < 0) {
+            throw new IOException("CSV has no Order ID column");
+        }
 
-        // Read all records and remove duplicates by Order ID
-        Map<String, String[]> uniqueRecords = new LinkedHashMap<>();
+        // Sort keys; Order Priority ranks L=Low, M=Medium, H=High, C=Critical
+        List<ExternalSorter.SortKey> keys = new ArrayList<>();
+        for (String spec : sortBy) {
+            String[] words = spec.trim().split("\\s+");
+            boolean descending = words.length > 1 && words[words.length - 1].equalsIgnoreCase("desc");
+            boolean ascending = words.length > 1 && words[words.length - 1].equalsIgnoreCase("asc");
+            String column = descending || ascending ? spec.trim().substring(0, spec.trim().lastIndexOf(' ')).trim() : spec.trim();
+            int index = findColumnIndex(headers, column);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown sortBy column: " + column);
+            }
+            keys.add(new ExternalSorter.SortKey(index, descending, column.equalsIgnoreCase("Order Priority")));
+        }
+
+        passthrough &= reader instanceof ByteLineReader;
+
+        // Read all records, keeping the first of each Order ID
+        Set<String> seenIds = new HashSet<>();
+        SeenOrderIds seenNumericIds = new SeenOrderIds();
         String line;
         int rowCount = 0;
+        int uniqueCount = 0;
+
+        try (ExternalSorter sorter = new ExternalSorter(keys, sortBudgetBytes)) {
+            if (resume != null) {
+                if (!sortBy.equals(resume.state.get("sortBy"))) {
+                    throw new IllegalArgumentException("sortBy differs from the checkpointed run: " + resume.state.get("sortBy"));
+                }
+                if (passthrough != Boolean.TRUE.equals(resume.state.get("passthrough"))) {
+                    throw new IllegalArgumentException("passthrough differs from the checkpointed run");
+                }
+                restoreState(resume, bucket, seenNumericIds, seenIds, sorter);
+                rowCount = (int) resume.total("rowCount", 0);
+                uniqueCount = (int) resume.total("uniqueRows", 0);
+                context.getLogger().log("Restored " + rowCount + " rows and " + sorter.getRunCount() + " sorted runs\n");
+            }
+
+            ByteLineReader lines = passthrough ? (ByteLineReader) reader : null;
+            ByteFields fields = new ByteFields();
+            String[] keyValues = new String[keys.size()];
+            while (true) {
+                if (passthrough) {
+                    byte[] bytes = lines.readLineBytes();
+                    if (bytes == null) {
+                        break;
+                    }
+                    // Same rows and output as the split path: split(",") drops trailing empty fields
+                    fields.split(bytes);
+                    if (fields.count() > orderIdIndex) {
+                        long numericId = SeenOrderIds.parse(bytes, fields.trimmedStart(orderIdIndex), fields.trimmedEnd(orderIdIndex));
+                        boolean first = numericId >= 0 ? seenNumericIds.add(numericId) : seenIds.add(fields.get(orderIdIndex).trim());
+                        if (first) {
+                            for (int k = 0; k < keyValues.length; k++) {
+                                int index = keys.get(k).index;
+                                keyValues[k] = index < fields.count() ? fields.get(index) : "";
+                            }
+                            sorter.addLine(fields.line(), keyValues);
+                            uniqueCount++;
+                        }
+                    }
+                } else {
+                    if ((line = reader.readLine()) == null) {
+                        break;
+                    }
+                    String[] parts = line.split(",");
+                    if (parts.length > orderIdIndex) {
+                        String orderId = parts[orderIdIndex].trim();
+                        long numericId = SeenOrderIds.parse(orderId);
+                        boolean first = numericId >= 0 ? seenNumericIds.add(numericId) : seenIds.add(orderId);
+                        if (first) {
+                            sorter.add(parts);
+                            uniqueCount++;
+                        }
+                    }
+                }
+                rowCount++;
+                if (rowCount % CHECK_INTERVAL == 0 && deadline != null && deadline.reached()) {
+                    break;
+                }
+            }
+
+            if (deadline != null && deadline.wasReached()) {
+                Checkpoint checkpoint = resume != null ? resume : Checkpoint.create("TransformCSV", sourceKey, store.length(bucket, sourceKey));
+                checkpoint.advance((OffsetLineReader) reader, rowCount - checkpoint.rowsConsumed);
+                checkpoint.headerLine = headerLine;
+                checkpoint.state.put("sortBy", sortBy);
+                checkpoint.state.put("passthrough", passthrough);
+                checkpoint.state.put("rowCount", rowCount);
+                checkpoint.state.put("uniqueRows", uniqueCount);
+                saveState(checkpoint, bucket, seenNumericIds, seenIds, sorter);
+                checkpoint.save(store, bucket);
+                context.getLogger().log("Saved checkpoint " + checkpoint.token + " at byte " + checkpoint.byteOffset + "\n");
+                stats.put("rowCount", rowCount);
+                stats.put("uniqueRows", uniqueCount);
+                stats.put("continuationToken", checkpoint.token);
+                stats.put("byteOffset", checkpoint.byteOffset);
+                stats.put("invocations", checkpoint.invocations);
+                return null;
+            }
+
+            context.getLogger().log("Original rows: " + rowCount + "\n");
+            context.getLogger().log("Unique rows: " + uniqueCount + "\n");
+            context.getLogger().log("Duplicates removed: " + (rowCount - uniqueCount) + "\n");
+            stats.put("rowCount", rowCount);
+            stats.put("uniqueRows", uniqueCount);
+            seenIds = null;
+            seenNumericIds = null;
+
+            Map<String, Object> sortStats = new LinkedHashMap<>();
+            sortStats.put("keys", sortBy);
+            sortStats.put("memoryBudgetBytes", sorter.getBudgetBytes());
+            sortStats.put("runs", sorter.getRunCount());
+            sortStats.put("spilledBytes", sorter.getSpilledBytes());
+            stats.put("sort", sortStats);
+            context.getLogger().log("Records sorted by " + sortBy + " (" + sorter.getRunCount() + " runs spilled, "
+                    + sorter.getSpilledBytes() + " bytes)\n");
+            stats.put("writer", passthrough ? "passthrough" : "fields");
+
+            if (passthrough) {
+                return writePassthrough(sorter.sortedLines(), headerLine, orderDateIndex, shipDateIndex, outputCodec,
+                        summary, context);
+            }
+            return writeTransformed(sorter.sorted(), headerLine, orderDateIndex, shipDateIndex, outputCodec, summary, context);
+        }
+    }
 
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split(",");
-            if (parts.length > orderIdIndex) {
-                String orderId = parts[orderIdIndex].trim();
-                if (!uniqueRecords.containsKey(orderId)) {
-                    uniqueRecords.put(orderId, parts);
+    /**
+     * Upload the seen Order IDs and any sorted runs not saved yet. Runs keep
+     * their position as their name, so runs restored from an earlier
+     * checkpoint are already there.
+     */
+    private void saveState(Checkpoint checkpoint, String bucket, SeenOrderIds seenNumericIds, Set<String> seenIds,
+                           ExternalSorter sorter) throws IOException {
+        File idsFile = File.createTempFile("seen-ids", ".bin");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idsFile), 1 << 16))) {
+                seenNumericIds.write(out);
+                out.writeInt(seenIds.size());
+                for (String id : seenIds) {
+                    out.writeUTF(id);
                 }
             }
-            rowCount++;
+            checkpoint.put(store, bucket, SEEN_IDS, idsFile);
+        } finally {
+            idsFile.delete();
         }
-        reader.close();
 
-        context.getLogger().log("Original rows: " + rowCount + "\n");
-        context.getLogger().log("Unique rows: " + uniqueRecords.size() + "\n");
-        context.getLogger().log("Duplicates removed: " + (rowCount - uniqueRecords.size()) + "\n");
+        List<File> runs = sorter.spillAll();
+        Object saved = checkpoint.state.get("runCounts");
+        int alreadySaved = saved == null ? 0 : ((List<?>) saved).size();
+        for (int r = alreadySaved; r < runs.size(); r++) {
+            checkpoint.put(store, bucket, RUN_PREFIX + r + ".bin", runs.get(r));
+        }
+        checkpoint.state.put("runCounts", new ArrayList<>(sorter.getRunCounts()));
+        checkpoint.state.put("nextSeq", sorter.getNextSeq());
+    }
 
-        // Sort by Order Priority (L=Low, M=Medium, H=High, C=Critical)
-        List<String[]> sortedRecords = new ArrayList<>(uniqueRecords.values());
-        sortedRecords.sort((a, b) -> {
-            String priorityA = a[orderPriorityIndex].trim();
-            String priorityB = b[orderPriorityIndex].trim();
-            return getPriorityOrder(priorityA) - getPriorityOrder(priorityB);
-        });
+    /** Download what saveState() uploaded into fresh ID sets and sorter */
+    private void restoreState(Checkpoint checkpoint, String bucket, SeenOrderIds seenNumericIds, Set<String> seenIds,
+                              ExternalSorter sorter) throws IOException {
+        File idsFile = File.createTempFile("seen-ids", ".bin");
+        try {
+            store.download(bucket, checkpoint.objectKey(SEEN_IDS), idsFile);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idsFile), 1 << 16))) {
+                seenNumericIds.read(in);
+                for (int i = in.readInt(); i > 0; i--) {
+                    seenIds.add(in.readUTF());
+                }
+            }
+        } finally {
+            idsFile.delete();
+        }
 
-        context.getLogger().log("Records sorted by priority\n");
+        List<File> runs = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        Object saved = checkpoint.state.get("runCounts");
+        if (saved != null) {
+            for (Object count : (List<?>) saved) {
+                File run = File.createTempFile("sort-run", ".bin");
+                store.download(bucket, checkpoint.objectKey(RUN_PREFIX + runs.size() + ".bin"), run);
+                runs.add(run);
+                counts.add(((Number) count).longValue());
+            }
+        }
+        sorter.restore(runs, counts, ((Number) checkpoint.state.getOrDefault("nextSeq", 0)).longValue());
+    }
 
+    /** Write the header plus each record with its processing time appended */
+    private File writeTransformed(Iterator<String[]> sortedRecords, String headerLine, int orderDateIndex,
+                                  int shipDateIndex, String outputCodec, CsvSummary summary,
+                                  Context context) throws IOException {
         // Write transformed CSV with new column
-        File outputFile = File.createTempFile("transformed", ".csv");
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
+        File outputFile = File.createTempFile("transformed", ".csv" + Compression.suffix(outputCodec));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                Compression.compress(new FileOutputStream(outputFile), outputCodec), StandardCharsets.UTF_8), 65536);
 
         // Write header with new column
         writer.write(headerLine + ",Order Processing Time (days)\n");
@@ -137,7 +480,8 @@ public class TransformCSV implements RequestHandler<HashMap<String, Object>, Has
         // Write sorted and transformed records
         SimpleDateFormat dateFormat = new SimpleDateFormat("M/d/yyyy");
         
-        for (String[] record : sortedRecords) {
+        while (sortedRecords.hasNext()) {
+            String[] record = sortedRecords.next();
             StringBuilder sb = new StringBuilder();
             for (int i = 0; i < record.length; i++) {
                 sb.append(record[i]);
@@ -147,19 +491,10 @@ public class TransformCSV implements RequestHandler<HashMap<String, Object>, Has
             }
 
             // Calculate processing time
-            try {
-                String orderDateStr = record[orderDateIndex].trim();
-                String shipDateStr = record[shipDateIndex].trim();
-                
-                Date orderDate = dateFormat.parse(orderDateStr);
-                Date shipDate = dateFormat.parse(shipDateStr);
-                
-                long diffMillis = shipDate.getTime() - orderDate.getTime();
-                long diffDays = diffMillis / (1000 * 60 * 60 * 24);
-                
-                sb.append(",").append(diffDays);
-            } catch (Exception e) {
-                sb.append(",0");
+            long processingDays = processingDays(field(record, orderDateIndex), field(record, shipDateIndex), dateFormat);
+            sb.append(",").append(processingDays);
+            if (summary != null) {
+                summary.add(record, processingDays);
             }
 
             sb.append("\n");
@@ -172,6 +507,50 @@ public class TransformCSV implements RequestHandler<HashMap<String, Object>, Has
         return outputFile;
     }
 
+    /**
+     * Write the header plus each line's bytes as read, with its processing
+     * time appended. Only the two date fields are decoded, and the whole
+     * line only when a summary needs its fields.
+     */
+    private File writePassthrough(Iterator<byte[]> sortedLines, String headerLine, int orderDateIndex,
+                                  int shipDateIndex, String outputCodec, CsvSummary summary,
+                                  Context context) throws IOException {
+        File outputFile = File.createTempFile("transformed", ".csv" + Compression.suffix(outputCodec));
+        SimpleDateFormat dateFormat = new SimpleDateFormat("M/d/yyyy");
+        ByteFields fields = new ByteFields();
+
+        try (PassthroughWriter writer = new PassthroughWriter(outputFile, outputCodec)) {
+            writer.write((headerLine + ",Order Processing Time (days)\n").getBytes(StandardCharsets.UTF_8));
+            while (sortedLines.hasNext()) {
+                byte[] line = sortedLines.next();
+                fields.split(line);
+                long processingDays = processingDays(fields.get(orderDateIndex), fields.get(shipDateIndex), dateFormat);
+                if (summary != null) {
+                    summary.add(new String(line, StandardCharsets.UTF_8).split(","), processingDays);
+                }
+                writer.writeRow(line, processingDays);
+            }
+        }
+        context.getLogger().log("Transformation complete. Output size: " + outputFile.length() + " bytes\n");
+
+        return outputFile;
+    }
+
+    /** Days from order to ship date (both M/d/yyyy), or 0 if either is missing or unparseable */
+    private static long processingDays(String orderDate, String shipDate, SimpleDateFormat dateFormat) {
+        try {
+            long diffMillis = dateFormat.parse(shipDate.trim()).getTime() - dateFormat.parse(orderDate.trim()).getTime();
+            return diffMillis / (1000 * 60 * 60 * 24);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /** The record's field at index, or null if it has none there */
+    private static String field(String[] record, int index) {
+        return index >= 0 && index < record.length ? record[index] : null;
+    }
+
     /** Find column index by name */
     private int findColumnIndex(String[] headers, String columnName) {
         for (int i = 0; i < headers.length; i++) {
@@ -182,23 +561,101 @@ public class TransformCSV implements RequestHandler<HashMap<String, Object>, Has
         return -1;
     }
 
-    /** Get priority order for sorting */
-    private int getPriorityOrder(String priority) {
-        switch (priority.toUpperCase()) {
-            case "L": return 1;  // Low
-            case "M": return 2;  // Medium
-            case "H": return 3;  // High
-            case "C": return 4;  // Critical
-            default: return 0;
+    /**
+     * Set of non-negative integer Order IDs in an open-addressing long table,
+     * about 16 bytes per ID instead of a String and a HashSet node.
+     */
+    static class SeenOrderIds {
+        private long[] table = new long[1 << 16];
+        private int size;
+
+        /** The ID as a long, or -1 if it is not a plain non-negative integer */
+        static long parse(String id) {
+            if (id.isEmpty() || id.length() > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = 0; i < id.length(); i++) {
+                char c = id.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            // Leading zeros would make different strings collide
+            return id.length() > 1 && id.charAt(0) == '0' ? -1 : value;
+        }
+
+        /** parse() of the UTF-8 bytes of an ID, from inclusive to exclusive */
+        static long parse(byte[] bytes, int from, int to) {
+            int length = to - from;
+            if (length <= 0 || length > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                byte b = bytes[i];
+                if (b < '0' || b > '9') {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return length > 1 && bytes[from] == '0' ? -1 : value;
+        }
+
+        /** Add the ID; false if it was already present */
+        boolean add(long id) {
+            if (size * 2 >= table.length) {
+                long[] old = table;
+                table = new long[old.length * 2];
+                size = 0;
+                for (long stored : old) {
+                    if (stored != 0) {
+                        insert(stored);
+                    }
+                }
+            }
+            return insert(id + 1);
+        }
+
+        /** Write the IDs, not the empty slots */
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (long stored : table) {
+                if (stored != 0) {
+                    out.writeLong(stored - 1);
+                }
+            }
+        }
+
+        /** Add the IDs saved by write() */
+        void read(DataInputStream in) throws IOException {
+            for (int i = in.readInt(); i > 0; i--) {
+                add(in.readLong());
+            }
+        }
+
+        /** Stores id + 1 so that 0 can mark empty slots */
+        private boolean insert(long stored) {
+            int mask = table.length - 1;
+            long h = stored * 0x9E3779B97F4A7C15L;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == stored) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = stored;
+            size++;
+            return true;
         }
     }
 
     /** Upload file to S3 */
     private void uploadToS3(String bucket, String key, File file, Context context) throws IOException {
-        AmazonS3 s3 = AmazonS3ClientBuilder.defaultClient();
-        
         context.getLogger().log("Uploading transformed CSV to S3: " + bucket + "/" + key + "\n");
-        s3.putObject(bucket, key, file);
+        store.upload(bucket, key, file);
         context.getLogger().log("Successfully uploaded to S3\n");
     }
 }
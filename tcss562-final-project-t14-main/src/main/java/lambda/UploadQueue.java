@@ -0,0 +1,215 @@
+package lambda;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Uploads waiting for CoalesceUploads to process them, kept as a JSON
+ * manifest object in the uploads' bucket (queue/pending.json by default).
+ * A flushed batch is recorded next to it under queue/batches/<id>.json.
+ *
+ * Claimed entries stay in the manifest, marked with their batch, until the
+ * batch's append load has committed. If the function dies first, the next
+ * invocation finds the claim older than the function timeout and puts the
+ * entries back as pending.
+ *
+ * The manifest is read, changed and written back whole, so it stays small
+ * (one entry per pending object) and writers must not race: CoalesceUploads
+ * serializes updates within a container and is deployed with reserved
+ * concurrency 1.
+ */
+public class UploadQueue {
+
+    public static final String DEFAULT_KEY = "queue/pending.json";
+
+    /** One uploaded object */
+    public static class Entry {
+        String key;
+        long size;
+        long receivedAt;
+        int attempts;
+        /** Batch processing this entry, or null while it is pending */
+        String claimedBy;
+        long claimedAt;
+
+        Entry() {
+        }
+
+        Entry(String key, long size, long receivedAt) {
+            this.key = key;
+            this.size = size;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /** A claimed set of entries and what became of them */
+    public static class Batch {
+        String id;
+        long claimedAt;
+        String status;
+        String message;
+        List<Entry> entries = new ArrayList<>();
+        Map<String, Object> transform;
+        Map<String, Object> load;
+    }
+
+    List<Entry> entries = new ArrayList<>();
+    long updatedAt;
+
+    /** Entries not claimed by a batch, in queue order */
+    List<Entry> pending() {
+        List<Entry> pending = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.claimedBy == null) {
+                pending.add(entry);
+            }
+        }
+        return pending;
+    }
+
+    /** Queue stored under key, or an empty one */
+    static UploadQueue load(ObjectStore store, String bucket, String key) throws IOException {
+        if (!store.exists(bucket, key)) {
+            return new UploadQueue();
+        }
+        try (Reader reader = new InputStreamReader(store.open(bucket, key), StandardCharsets.UTF_8)) {
+            UploadQueue queue = new Gson().fromJson(reader, UploadQueue.class);
+            return queue == null ? new UploadQueue() : queue;
+        }
+    }
+
+    void save(ObjectStore store, String bucket, String key) throws IOException {
+        updatedAt = System.currentTimeMillis();
+        write(store, bucket, key, this);
+    }
+
+    /** Write any of these objects as pretty-printed JSON */
+    static void write(ObjectStore store, String bucket, String key, Object value) throws IOException {
+        File file = File.createTempFile("queue", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(value, writer);
+            }
+            store.upload(bucket, key, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Batch record stored under key, or null */
+    static Batch readBatch(ObjectStore store, String bucket, String key) throws IOException {
+        if (!store.exists(bucket, key)) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(store.open(bucket, key), StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(reader, Batch.class);
+        }
+    }
+
+    /** Key a batch claimed from the queue at queueKey is recorded under */
+    static String batchKey(String queueKey, String batchId) {
+        int slash = queueKey.lastIndexOf('/');
+        return queueKey.substring(0, slash + 1) + "batches/" + batchId + ".json";
+    }
+
+    /**
+     * Add an upload. A key that is already pending keeps its place in the
+     * queue and takes the new size, since the next flush reads the latest
+     * version anyway. A key in a running batch is queued again, as the batch
+     * may have read the old version.
+     */
+    boolean add(String key, long size, long receivedAt) {
+        for (Entry entry : pending()) {
+            if (entry.key.equals(key)) {
+                entry.size = size;
+                return false;
+            }
+        }
+        entries.add(new Entry(key, size, receivedAt));
+        return true;
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (Entry entry : pending()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    /** When the oldest pending entry arrived, or -1 if the queue is empty */
+    long oldestReceivedAt() {
+        long oldest = -1;
+        for (Entry entry : pending()) {
+            if (oldest < 0 || entry.receivedAt < oldest) {
+                oldest = entry.receivedAt;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Claim the pending entries as a new batch. Entries being retried sit at
+     * the front and are claimed one at a time, so a bad object only fails
+     * its own batch; otherwise every pending entry is taken.
+     */
+    Batch claim() {
+        Batch batch = new Batch();
+        batch.id = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-"
+                + UUID.randomUUID().toString().substring(0, 8);
+        batch.claimedAt = System.currentTimeMillis();
+        batch.status = "claimed";
+        List<Entry> pending = pending();
+        List<Entry> claimed = !pending.isEmpty() && pending.get(0).attempts > 0 ? pending.subList(0, 1) : pending;
+        for (Entry entry : claimed) {
+            entry.claimedBy = batch.id;
+            entry.claimedAt = batch.claimedAt;
+            batch.entries.add(entry);
+        }
+        return batch;
+    }
+
+    /** Drop the entries of a batch whose load has committed */
+    void complete(String batchId) {
+        entries.removeIf(entry -> batchId.equals(entry.claimedBy));
+    }
+
+    /**
+     * Put the entries of a failed batch back at the front of the queue as
+     * pending, dropping those already tried maxAttempts times.
+     *
+     * @return The entries dropped.
+     */
+    List<Entry> release(String batchId, int maxAttempts) {
+        List<Entry> retry = new ArrayList<>();
+        List<Entry> dropped = new ArrayList<>();
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (batchId.equals(entry.claimedBy)) {
+                it.remove();
+                entry.claimedBy = null;
+                entry.claimedAt = 0;
+                entry.attempts++;
+                (entry.attempts < maxAttempts ? retry : dropped).add(entry);
+            }
+        }
+        entries.addAll(0, retry);
+        return dropped;
+    }
+
+    /** Batches holding entries claimed before the cutoff time */
+    Set<String> claimedBefore(long cutoff) {
+        Set<String> batches = new LinkedHashSet<>();
+        for (Entry entry : entries) {
+            if (entry.claimedBy != null && entry.claimedAt < cutoff) {
+                batches.add(entry.claimedBy);
+            }
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,387 @@
+package lambda;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.crac.Core;
+import org.crac.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Container start-up work and timing.
+ *
+ * Handlers call init() from a static initializer, so loading the SQLite driver
+ * (including extracting its native library) and building the shared S3 client
+ * happen during the Lambda init phase instead of inside the first request.
+ * The S3 client is only built inside a function sandbox: the local runner,
+ * the tests and QueryServer --store pass a LocalObjectStore to the handler
+ * after init, and building a client there means a slow, failing lookup of
+ * EC2 instance metadata.
+ * Every step is timed and the first response of a container carries the
+ * report under "startup", which is what we compare between builds.
+ *
+ * Warmup is also a CRaC resource (used by Lambda SnapStart). Before a
+ * checkpoint it primes the handler by pushing a small generated CSV through
+ * the real transform/load/query code and serializing the responses, then
+ * drops state that must not be shared by restored copies: the S3 client and
+ * its pooled connections, pending metrics and the SAAF container id. After
+ * restore the S3 client is rebuilt and the next response reports the restore.
+ *
+ * Set TLQ_EAGER_INIT=false to skip the eager steps and measure the lazy path,
+ * and TLQ_PRIME=true to also prime during a regular (non-snapshot) init.
+ */
+public final class Warmup implements Resource {
+
+    private static final boolean EAGER = !"false".equalsIgnoreCase(System.getenv("TLQ_EAGER_INIT"));
+    private static final boolean PRIME_ON_INIT = "true".equalsIgnoreCase(System.getenv("TLQ_PRIME"));
+
+    /** Set by the Lambda and OpenWhisk runtimes, whose containers are frozen between requests */
+    static final boolean IN_SANDBOX = System.getenv("AWS_LAMBDA_FUNCTION_NAME") != null
+            || System.getenv("__OW_ACTION_NAME") != null;
+    private static final int PRIME_ITERATIONS = 5;
+    private static final int PRIME_ROWS = 200;
+
+    private static final Map<String, Object> REPORT = new LinkedHashMap<>();
+    private static final AtomicBoolean REPORTED = new AtomicBoolean();
+    private static final Warmup INSTANCE = new Warmup();
+    private static final List<Resource> RESOURCES = new ArrayList<>();
+
+    private static String handlerName;
+    private static boolean sqliteReady = false;
+    private static boolean s3Ready = false;
+    private static boolean registered = false;
+    private static volatile boolean priming = false;
+
+    private Warmup() {}
+
+    /** A timed start-up step */
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * Run the start-up steps a handler needs. Safe to call from several
+     * handlers' static initializers; each step runs once per container.
+     *
+     * @param handler Name of the handler class being initialized.
+     * @param sqlite Whether the handler uses SQLite.
+     */
+    public static synchronized void init(String handler, boolean sqlite) {
+        long start = System.nanoTime();
+        if (REPORT.isEmpty()) {
+            REPORT.put("eagerInit", EAGER);
+            REPORT.put("jvmUptimeAtInitMs", ManagementFactory.getRuntimeMXBean().getUptime());
+        }
+        REPORT.put("handler", handler);
+        handlerName = handler;
+
+        if (!registered) {
+            step("cracRegisterMs", () -> Core.getGlobalContext().register(INSTANCE));
+            registered = true;
+        }
+        if (!EAGER) {
+            return;
+        }
+
+        if (sqlite && !sqliteReady) {
+            step("sqliteDriverMs", () -> Class.forName("org.sqlite.JDBC"));
+            step("sqliteNativeMs", () -> {
+                try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+                    conn.createStatement().execute("SELECT 1");
+                }
+            });
+            sqliteReady = true;
+        }
+
+        if (!s3Ready && usesS3()) {
+            step("s3ClientMs", () -> S3ObjectStore.getInstance().getClient());
+            s3Ready = true;
+        }
+
+        if (PRIME_ON_INIT) {
+            step("primeMs", () -> prime(handler));
+        }
+
+        REPORT.put("loadedClasses", ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        REPORT.merge("initTotalMs", (System.nanoTime() - start) / 1_000_000.0,
+                (a, b) -> (Double) a + (Double) b);
+    }
+
+    /** Whether the platform will construct handlers on S3, so the client is worth building up front */
+    private static boolean usesS3() {
+        return IN_SANDBOX && ObjectStore.defaultStore() instanceof S3ObjectStore;
+    }
+
+    /**
+     * Register a container-wide pool or cache to be notified around
+     * checkpoint/restore. Warmup notifies them itself, after priming and in
+     * reverse order of registration, so priming never finds a pool already
+     * shut down. Warmup keeps a strong reference.
+     */
+    public static synchronized void register(Resource resource) {
+        RESOURCES.add(resource);
+    }
+
+    /** Whether the handlers are currently being run by prime() rather than for a request */
+    static boolean isPriming() {
+        return priming;
+    }
+
+    /**
+     * Drop what a warm container keeps between requests, so the next one runs
+     * as it would in a new container: registered pools and caches are
+     * released as around a checkpoint, loaded Order ID indexes and the
+     * versions of /tmp copies are forgotten, the S3 client is closed and the
+     * next response carries the start-up report again. Loaded classes and
+     * compiled code survive; only a new JVM measures those. Files in /tmp are
+     * left to the caller.
+     */
+    public static synchronized void resetContainer() throws Exception {
+        notifyResources(null, true);
+        notifyResources(null, false);
+        OrderIdIndex.clearLoaded();
+        LocalCopies.clear();
+        S3ObjectStore.getInstance().reset();
+        s3Ready = false;
+        REPORTED.set(false);
+    }
+
+    /**
+     * Start-up report for the first request handled by this container (or by
+     * this restored snapshot), or null for every later request.
+     */
+    public static synchronized Map<String, Object> firstInvocationReport() {
+        if (priming || !REPORTED.compareAndSet(false, true)) {
+            return null;
+        }
+        Map<String, Object> report = new LinkedHashMap<>(REPORT);
+        report.put("firstRequestAtUptimeMs", ManagementFactory.getRuntimeMXBean().getUptime());
+        report.put("loadedClassesAtFirstRequest", ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        return report;
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws Exception {
+        synchronized (Warmup.class) {
+            if (handlerName != null) {
+                step("primeMs", () -> prime(handlerName));
+            }
+            MetricsSink.flushAll();
+            step("checkpointResourcesMs", () -> notifyResources(context, true));
+            S3ObjectStore.getInstance().reset();
+            s3Ready = false;
+
+            // Restored copies must not share SAAF's container identity
+            new File("/tmp/container-id").delete();
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) throws Exception {
+        synchronized (Warmup.class) {
+            long start = System.nanoTime();
+            REPORT.put("restored", true);
+            if (EAGER && usesS3()) {
+                step("s3ClientMs", () -> S3ObjectStore.getInstance().getClient());
+                s3Ready = true;
+            }
+            step("restoreResourcesMs", () -> notifyResources(context, false));
+            REPORT.put("restoreMs", (System.nanoTime() - start) / 1_000_000.0);
+            REPORTED.set(false);
+        }
+    }
+
+    /**
+     * Notify every registered resource, before a checkpoint in reverse order
+     * of registration and after restore in order. One failing resource does
+     * not keep the rest from being notified; the first failure is rethrown.
+     */
+    private static void notifyResources(org.crac.Context<? extends Resource> context, boolean checkpoint)
+            throws Exception {
+        Exception failure = null;
+        for (int i = 0; i < RESOURCES.size(); i++) {
+            try {
+                if (checkpoint) {
+                    RESOURCES.get(RESOURCES.size() - 1 - i).beforeCheckpoint(context);
+                } else {
+                    RESOURCES.get(i).afterRestore(context);
+                }
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Run the handler's real code path on generated data so classes are
+     * loaded and hot methods are compiled before the first real request.
+     * Uses a throwaway local store and removes everything it created.
+     */
+    static void prime(String handler) throws Exception {
+        priming = true;
+        File storeDir = Files.createTempDirectory("tlq-prime").toFile();
+        String dbName = "tlq-prime-" + UUID.randomUUID() + ".db";
+        File dbFile = new File("/tmp/" + dbName);
+        try {
+            LocalObjectStore store = new LocalObjectStore(storeDir);
+            LocalContext context = new LocalContext("prime", 512, 60000, true);
+            File csv = writeSampleCSV(new File(storeDir, "sample.csv"));
+            store.upload("prime", "sample.csv", csv);
+            Gson gson = new Gson();
+
+            for (int i = 0; i < PRIME_ITERATIONS; i++) {
+                HashMap<String, Object> request = new HashMap<>();
+                HashMap<String, Object> response;
+                switch (handler) {
+                    case "TransformCSV":
+                        request.put("sourceBucket", "prime");
+                        request.put("sourceKey", "sample.csv");
+                        request.put("destBucket", "prime");
+                        request.put("destKey", "sample-out.csv");
+                        response = new TransformCSV(store).handleRequest(request, context);
+                        break;
+                    case "CreateSQLiteDB":
+                        request.put("bucket", "prime");
+                        request.put("key", "sample.csv");
+                        request.put("dbName", dbName);
+                        response = new CreateSQLiteDB(store).handleRequest(request, context);
+                        break;
+                    case "QuerySQLite":
+                    case "QuerySQLiteStream":
+                        if (!dbFile.exists()) {
+                            loadSampleDB(csv, dbFile);
+                            store.upload("prime", "databases/" + dbName, dbFile);
+                        }
+                        request.put("bucket", "prime");
+                        request.put("dbKey", "databases/" + dbName);
+                        request.put("tableName", "sales_records");
+                        request.put("queryParams", new HashMap<String, Object>());
+                        response = new HashMap<>();
+                        for (String queryType : new String[]{"count", "aggregate", "filter", "top", "select"}) {
+                            request.put("queryType", queryType);
+                            response = handler.equals("QuerySQLite")
+                                    ? new QuerySQLite(store).handleRequest(request, context)
+                                    : streamQuery(new QuerySQLiteStream(store), request, context);
+                        }
+                        break;
+                    default:
+                        return;
+                }
+                if (!"success".equals(response.get("status"))) {
+                    throw new IllegalStateException("Priming " + handler + " failed: " + response.get("message"));
+                }
+                gson.toJson(response);
+            }
+
+            if (handler.startsWith("QuerySQLite")) {
+                // Keep priming queries out of the latency histograms
+                QuerySQLite.latencySnapshot();
+            }
+        } finally {
+            priming = false;
+            ColumnarTable.evict(dbFile);
+            LocalCopies.forget(dbFile);
+            dbFile.delete();
+            deleteRecursively(storeDir);
+        }
+    }
+
+    /** Invoke the streaming query handler the way the runtime does and parse its response */
+    private static HashMap<String, Object> streamQuery(QuerySQLiteStream handler, Map<String, Object> request,
+                                                       LocalContext context) throws Exception {
+        ByteArrayInputStream input = new ByteArrayInputStream(new Gson().toJson(request).getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        handler.handleRequest(input, output, context);
+        return new Gson().fromJson(output.toString("UTF-8"), new TypeToken<HashMap<String, Object>>() { }.getType());
+    }
+
+    /** Sales CSV in the upstream layout, including duplicate Order IDs */
+    private static File writeSampleCSV(File file) throws Exception {
+        String[] regions = {"Europe", "Asia", "Sub-Saharan Africa", "North America"};
+        String[] priorities = {"L", "M", "H", "C"};
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("Region,Country,Item Type,Sales Channel,Order Priority,Order Date,Order ID,"
+                    + "Ship Date,Units Sold,Unit Price,Unit Cost,Total Revenue,Total Cost,Total Profit\n");
+            for (int i = 0; i < PRIME_ROWS; i++) {
+                int units = 100 + i * 7;
+                double revenue = units * 9.33;
+                double cost = units * 6.92;
+                writer.write(regions[i % regions.length] + ",Country" + (i % 13) + ",Snacks,"
+                        + (i % 2 == 0 ? "Online" : "Offline") + "," + priorities[i % priorities.length] + ","
+                        + (1 + i % 12) + "/" + (1 + i % 28) + "/2015," + (100000000 + i % (PRIME_ROWS - 10)) + ","
+                        + (1 + i % 12) + "/28/2015," + units + ",9.33,6.92,"
+                        + String.format("%.2f,%.2f,%.2f", revenue, cost, revenue - cost) + "\n");
+            }
+        }
+        return file;
+    }
+
+    /** Build a query-ready database without needing CreateSQLiteDB in this jar */
+    private static void loadSampleDB(File csv, File dbFile) throws Exception {
+        List<String> lines = Files.readAllLines(csv.toPath());
+        String[] headers = lines.get(0).split(",");
+        StringBuilder create = new StringBuilder("CREATE TABLE sales_records (");
+        StringBuilder insert = new StringBuilder("INSERT INTO sales_records VALUES (");
+        for (int i = 0; i < headers.length; i++) {
+            create.append(i > 0 ? ", " : "").append("\"").append(headers[i].replace(" ", "_")).append("\" TEXT");
+            insert.append(i > 0 ? ", ?" : "?");
+        }
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(create.append(")").toString());
+            }
+            try (PreparedStatement ps = conn.prepareStatement(insert.append(")").toString())) {
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] parts = line.split(",");
+                    for (int i = 0; i < headers.length; i++) {
+                        ps.setString(i + 1, parts[i]);
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Run one step, recording its time or the error that stopped it */
+    private static void step(String name, Step step) {
+        long start = System.nanoTime();
+        try {
+            step.run();
+            REPORT.put(name, (System.nanoTime() - start) / 1_000_000.0);
+        } catch (Throwable e) {
+            // Never fail container init; the lazy path still works
+            REPORT.put(name + "Error", e.toString());
+        }
+    }
+}
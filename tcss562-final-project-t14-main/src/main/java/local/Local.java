@@ -5,97 +5,139 @@
  */
 package local;
 
+import lambda.Functions;
+import lambda.LocalContext;
+import lambda.LocalObjectStore;
+import lambda.OrderIdIndex;
+import lambda.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
+ * Runs the TLQ pipeline (transform -> load -> query) on this machine through
+ * the real handler classes, using a directory in place of S3.
+ *
+ * usage: Local [csv file] [store dir] [--cold] [--verbose] [--platform lambda|openwhisk]
+ *
+ *   csv file    input CSV (default test.csv)
+ *   store dir   directory standing in for S3 (default local-store)
+ *   --cold      before querying, delete the database and its Order ID index
+ *               from /tmp and reset the container state a warm function
+ *               keeps (Warmup.resetContainer); the JVM itself stays warm
+ *   --verbose   print handler logs
+ *   --platform  call the handlers with HashMaps as Lambda does (default), or
+ *               with JSON objects as the OpenWhisk actions do
  *
  * @author robertcordingly
  */
 public class Local {
-    
+
+    private static final String BUCKET = "local-bucket";
+
     // int main enables testing function from cmd line
-    public static void main(String[] args) {
-        // Context c = new Context() {
-        //     @Override
-        //     public String getAwsRequestId() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public String getLogGroupName() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public String getLogStreamName() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public String getFunctionName() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public String getFunctionVersion() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public String getInvokedFunctionArn() {
-        //         return "";
-        //     }
-
-        //     @Override
-        //     public CognitoIdentity getIdentity() {
-        //         return null;
-        //     }
-
-        //     @Override
-        //     public ClientContext getClientContext() {
-        //         return null;
-        //     }
-
-        //     @Override
-        //     public int getRemainingTimeInMillis() {
-        //         return 0;
-        //     }
-
-        //     @Override
-        //     public int getMemoryLimitInMB() {
-        //         return 0;
-        //     }
-
-        //     @Override
-        //     public LambdaLogger getLogger() {
-        //         return new LambdaLogger() {
-        //             @Override
-        //             public void log(String string) {
-        //                 System.out.println("LOG:" + string);
-        //             }
-        //         };
-        //     }
-        // };
-
-        // // Create an instance of the class
-        // Hello lt = new Hello();
-
-        // // Create a request object
-        // Request req = new Request();
-
-        // // Grab the name from the cmdline from arg 0
-        // String name = (args.length > 0 ? args[0] : "");
-
-        // // Load the name into the request object
-        // req.setName(name);
-
-        // // Report name to stdout
-        // System.out.println("cmd-line param name=" + req.getName());
-
-        // Run the function
-        //HashMap<String, Object> resp = lt.handleRequest(req, c);
-        
-        // Print out function result
-        //System.out.println("function result:" + resp.toString());
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        boolean cold = false;
+        boolean verbose = false;
+        boolean openWhisk = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cold")) {
+                cold = true;
+            } else if (args[i].equals("--verbose")) {
+                verbose = true;
+            } else if (args[i].equals("--platform")) {
+                openWhisk = args[++i].equalsIgnoreCase("openwhisk");
+            } else {
+                positional.add(args[i]);
+            }
+        }
+
+        File csvFile = new File(positional.size() > 0 ? positional.get(0) : "test.csv");
+        File storeDir = new File(positional.size() > 1 ? positional.get(1) : "local-store");
+        if (!csvFile.isFile()) {
+            System.out.println("ERROR: " + csvFile + " not found");
+            System.exit(1);
+        }
+
+        LocalObjectStore store = new LocalObjectStore(storeDir);
+        Functions functions = new Functions(store);
+        String baseName = csvFile.getName().replaceAll("\\.csv$", "");
+        String sourceKey = "input/" + csvFile.getName();
+        String transformedKey = "transformed/" + baseName + "-cleaned.csv";
+        String dbName = baseName + ".db";
+
+        store.upload(BUCKET, sourceKey, csvFile);
+        System.out.println("Store: " + storeDir.getAbsolutePath());
+        System.out.println("Input: " + csvFile + " (" + csvFile.length() + " bytes)");
+        System.out.println("Platform: " + (openWhisk ? "openwhisk" : "lambda") + "\n");
+        System.out.println(String.format("%-18s %10s %10s %12s %10s", "stage", "ms", "rows", "rows/s", "MB/s"));
+
+        // Transform
+        HashMap<String, Object> transformRequest = new HashMap<>();
+        transformRequest.put("sourceBucket", BUCKET);
+        transformRequest.put("sourceKey", sourceKey);
+        transformRequest.put("destBucket", BUCKET);
+        transformRequest.put("destKey", transformedKey);
+        HashMap<String, Object> transformed = runStage("transform", csvFile.length(), "rowCount",
+                functions, Functions.TRANSFORM, transformRequest, openWhisk, verbose);
+
+        // Load
+        HashMap<String, Object> loadRequest = new HashMap<>();
+        loadRequest.put("bucket", BUCKET);
+        loadRequest.put("key", transformedKey);
+        loadRequest.put("dbName", dbName);
+        runStage("load", toLong(transformed.get("outputSizeBytes")), "rowsInserted",
+                functions, Functions.LOAD, loadRequest, openWhisk, verbose);
+
+        // Query
+        if (cold) {
+            new File("/tmp/" + dbName).delete();
+            new File("/tmp/" + dbName + OrderIdIndex.SUFFIX).delete();
+            Warmup.resetContainer();
+        }
+        for (String queryType : new String[]{"count", "aggregate", "filter", "top", "select"}) {
+            HashMap<String, Object> queryRequest = new HashMap<>();
+            queryRequest.put("bucket", BUCKET);
+            queryRequest.put("dbKey", "databases/" + dbName);
+            queryRequest.put("tableName", "sales_records");
+            queryRequest.put("queryType", queryType);
+            queryRequest.put("queryParams", new HashMap<String, Object>());
+            runStage("query:" + queryType, 0, "rowCount", functions, Functions.QUERY, queryRequest, openWhisk, verbose);
+        }
+    }
+
+    /**
+     * Invoke one function, print its timing line and stop the run on failure.
+     * With openWhisk the request and response cross the JSON boundary inside
+     * the timed call, as they do in an OpenWhisk action.
+     */
+    private static HashMap<String, Object> runStage(String stage, long inputBytes, String rowsKey,
+            Functions functions, String function, HashMap<String, Object> request, boolean openWhisk,
+            boolean verbose) {
+        LocalContext context = new LocalContext(stage, 512, 900000, !verbose);
+
+        long start = System.nanoTime();
+        HashMap<String, Object> response = openWhisk
+                ? Functions.fromJson(functions.invoke(function, Functions.toJson(request), context))
+                : functions.invoke(function, request, context);
+        double ms = (System.nanoTime() - start) / 1_000_000.0;
+
+        if (!"success".equals(response.get("status"))) {
+            System.out.println(stage + " failed: " + response.get("message"));
+            System.exit(1);
+        }
+
+        long rows = toLong(response.get(rowsKey));
+        double seconds = ms / 1000.0;
+        System.out.println(String.format("%-18s %10.1f %10d %12.0f %10s", stage, ms, rows,
+                rows / seconds, inputBytes > 0 ? String.format("%.2f", inputBytes / 1048576.0 / seconds) : "-"));
+        return response;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
     }
 }
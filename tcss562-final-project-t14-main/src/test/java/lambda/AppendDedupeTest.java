@@ -0,0 +1,184 @@
+package lambda;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Append loads onto a database whose full load kept duplicate Order IDs:
+ * the first append collapses the duplicates, and the region rollup and the
+ * column sketches must describe the table that is left.
+ */
+public class AppendDedupeTest {
+
+    private static final String DB_NAME = "test-append.db";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalObjectStore store;
+
+    @Before
+    public void loadWithDuplicates() throws Exception {
+        store = new LocalObjectStore(folder.newFolder("store"));
+
+        // 1000 orders, then 200 of the same IDs again with different values
+        List<String> rows = new ArrayList<>(SalesCsv.rows(500000000L, 1000, 11));
+        rows.addAll(SalesCsv.rows(500000000L, 200, 12));
+        store.upload("b", "full.csv", SalesCsv.write(folder.newFile("full.csv"), rows));
+
+        // 100 new orders and 50 already loaded
+        List<String> more = new ArrayList<>(SalesCsv.rows(500001000L, 100, 13));
+        more.addAll(SalesCsv.rows(500000500L, 50, 14));
+        store.upload("b", "more.csv", SalesCsv.write(folder.newFile("more.csv"), more));
+
+        HashMap<String, Object> response = load("full.csv", "full");
+        assertEquals("success", response.get("status"));
+        assertEquals(1200, count("SELECT COUNT(*) FROM sales_records"));
+    }
+
+    @After
+    public void deleteDatabase() {
+        new File("/tmp/" + DB_NAME).delete();
+        new File("/tmp/" + DB_NAME + OrderIdIndex.SUFFIX).delete();
+    }
+
+    @Test
+    public void appendSkipsLoadedIdsAndCollapsesDuplicates() throws Exception {
+        HashMap<String, Object> response = load("more.csv", "append");
+        assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+        assertEquals(100, ((Number) response.get("rowsInserted")).intValue());
+        assertEquals(1100, ((Number) response.get("totalRows")).intValue());
+        assertEquals(1100, count("SELECT COUNT(DISTINCT Order_ID) FROM sales_records"));
+
+        // The first occurrence of each duplicated ID is the one kept
+        List<String> first = SalesCsv.rows(500000000L, 1, 11);
+        assertEquals(1, count("SELECT COUNT(*) FROM sales_records WHERE Order_ID = '500000000' AND Country = '"
+                + first.get(0).split(",")[1] + "'"));
+
+        HashMap<String, Object> again = load("more.csv", "append");
+        assertEquals(0, ((Number) again.get("rowsInserted")).intValue());
+        assertEquals(1100, ((Number) again.get("totalRows")).intValue());
+    }
+
+    @Test
+    public void rollupAndSketchesDescribeTheDeduplicatedTable() throws Exception {
+        assertEquals("success", load("more.csv", "append").get("status"));
+
+        Map<String, String> grouped = new TreeMap<>();
+        Map<String, String> rollup = new TreeMap<>();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:/tmp/" + DB_NAME);
+             Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT Region, COUNT(*), ROUND(SUM(Total_Revenue), 2) "
+                    + "FROM sales_records GROUP BY Region")) {
+                while (rs.next()) {
+                    grouped.put(rs.getString(1), rs.getLong(2) + " " + rs.getString(3));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT Region, order_count, ROUND(Total_Revenue, 2) "
+                    + "FROM sales_records_rollup_region")) {
+                while (rs.next()) {
+                    rollup.put(rs.getString(1), rs.getLong(2) + " " + rs.getString(3));
+                }
+            }
+        }
+        assertEquals(grouped, rollup);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("function", "QUANTILE");
+        params.put("column", "Units_Sold");
+        List<Map<String, Object>> quantiles = approx(params);
+        assertEquals(1100L, ((Number) quantiles.get(0).get("count")).longValue());
+
+        params.put("groupBy", "Region");
+        for (Map<String, Object> row : approx(params)) {
+            String region = (String) row.get("Region");
+            assertEquals(region, grouped.get(region).split(" ")[0], String.valueOf(row.get("count")));
+        }
+    }
+
+    @Test
+    public void warmQueryPicksUpADatabaseReplacedElsewhere() throws Exception {
+        HashMap<String, Object> first = query("count");
+        assertEquals(1200L, ((Number) first.get("total")).longValue());
+        assertEquals(true, first.get("cacheHit"));
+
+        // Another container publishes a version of the same size: deleted rows only free pages
+        File replaced = folder.newFile("replaced.db");
+        Files.copy(new File("/tmp/" + DB_NAME).toPath(), replaced.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + replaced.getAbsolutePath());
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM sales_records WHERE rowid <= 200");
+        }
+        assertEquals(new File("/tmp/" + DB_NAME).length(), replaced.length());
+        store.upload("b", "databases/" + DB_NAME, replaced);
+
+        HashMap<String, Object> second = query("count");
+        assertEquals(1000L, ((Number) second.get("total")).longValue());
+        assertEquals(false, second.get("cacheHit"));
+    }
+
+    /** Run a query and return its only result row, with "cacheHit" added */
+    @SuppressWarnings("unchecked")
+    private HashMap<String, Object> query(String queryType) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("dbKey", "databases/" + DB_NAME);
+        request.put("tableName", "sales_records");
+        request.put("queryType", queryType);
+        request.put("queryParams", new HashMap<String, Object>());
+        HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+        assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+        HashMap<String, Object> row = new HashMap<>(((List<Map<String, Object>>) response.get("results")).get(0));
+        row.put("cacheHit", response.get("cacheHit"));
+        return row;
+    }
+
+    private HashMap<String, Object> load(String key, String mode) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("key", key);
+        request.put("dbName", DB_NAME);
+        request.put("mode", mode);
+        return new CreateSQLiteDB(store).handleRequest(request, context());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> approx(Map<String, Object> params) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("dbKey", "databases/" + DB_NAME);
+        request.put("tableName", "sales_records");
+        request.put("queryType", "approx");
+        request.put("queryParams", params);
+        HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+        assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+        return (List<Map<String, Object>>) response.get("results");
+    }
+
+    private static long count(String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:/tmp/" + DB_NAME);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static LocalContext context() {
+        return new LocalContext("test", 512, 600000, true);
+    }
+}
@@ -0,0 +1,138 @@
+package lambda;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/** QuerySQLite batches ("queries") against single requests for the same specs */
+public class BatchQueryTest {
+
+    private static final String DB_NAME = "test-batch.db";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalObjectStore store;
+
+    @Before
+    public void load() throws Exception {
+        store = new LocalObjectStore(folder.newFolder("store"));
+        store.upload("b", "sales.csv", SalesCsv.write(folder.newFile("sales.csv"), SalesCsv.rows(700000000L, 3000, 21)));
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("key", "sales.csv");
+        request.put("dbName", DB_NAME);
+        assertEquals("success", new CreateSQLiteDB(store).handleRequest(request, context()).get("status"));
+    }
+
+    @After
+    public void deleteDatabase() {
+        new File("/tmp/" + DB_NAME).delete();
+        new File("/tmp/" + DB_NAME + OrderIdIndex.SUFFIX).delete();
+    }
+
+    @Test
+    public void batchAnswersMatchSingleQueries() {
+        List<Map<String, Object>> specs = specs();
+        List<Object> single = new ArrayList<>();
+        for (Map<String, Object> spec : specs) {
+            HashMap<String, Object> request = request();
+            request.putAll(spec);
+            HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+            assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+            single.add(response.get("results"));
+        }
+
+        for (int concurrency : new int[]{1, 3}) {
+            HashMap<String, Object> request = request();
+            request.put("queries", specs);
+            request.put("concurrency", concurrency);
+            HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+            assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+            assertEquals(0, response.get("failedQueries"));
+
+            Map<?, ?> results = (Map<?, ?>) response.get("results");
+            assertEquals(Arrays.asList("count", "q1", "q2", "q3", "q4", "top"), new ArrayList<>(results.keySet()));
+            int i = 0;
+            for (Object outcome : results.values()) {
+                Map<?, ?> result = (Map<?, ?>) outcome;
+                assertEquals("success", result.get("status"));
+                assertEquals("query " + i, new Gson().toJson(single.get(i)), new Gson().toJson(result.get("results")));
+                i++;
+            }
+        }
+    }
+
+    @Test
+    public void failingSpecIsReportedWithoutFailingTheBatch() {
+        List<Map<String, Object>> specs = specs();
+        specs.add(spec("bad", "approx", "function", "MEDIAN", "column", "Units_Sold"));
+        HashMap<String, Object> request = request();
+        request.put("queries", specs);
+        HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+
+        assertEquals("success", response.get("status"));
+        assertEquals(1, response.get("failedQueries"));
+        Map<?, ?> results = (Map<?, ?>) response.get("results");
+        assertEquals("error", ((Map<?, ?>) results.get("bad")).get("status"));
+        assertEquals("success", ((Map<?, ?>) results.get("top")).get("status"));
+    }
+
+    @Test
+    public void duplicateIdsAreRejected() {
+        List<Map<String, Object>> specs = specs();
+        specs.add(spec("count", "count"));
+        HashMap<String, Object> request = request();
+        request.put("queries", specs);
+        HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+
+        assertEquals("error", response.get("status"));
+        assertTrue(String.valueOf(response.get("message")).contains("Duplicate query id"));
+    }
+
+    private static List<Map<String, Object>> specs() {
+        List<Map<String, Object>> specs = new ArrayList<>();
+        specs.add(spec("count", "count"));
+        specs.add(spec(null, "aggregate", "groupBy", "Region", "function", "SUM", "column", "Total_Revenue"));
+        specs.add(spec(null, "aggregate", "groupBy", "Item_Type", "function", "AVG", "column", "Total_Profit"));
+        specs.add(spec(null, "filter", "column", "Country", "value", "Country 7"));
+        specs.add(spec(null, "aggregate", "groupBy", "Sales_Channel", "function", "COUNT", "column", "Order_ID"));
+        specs.add(spec("top", "top", "orderBy", "Total_Profit", "limit", 10));
+        return specs;
+    }
+
+    /** A batch spec; params are name, value pairs for queryParams */
+    private static Map<String, Object> spec(String id, String queryType, Object... params) {
+        Map<String, Object> spec = new LinkedHashMap<>();
+        if (id != null) {
+            spec.put("id", id);
+        }
+        spec.put("queryType", queryType);
+        Map<String, Object> queryParams = new LinkedHashMap<>();
+        for (int i = 0; i < params.length; i += 2) {
+            queryParams.put((String) params[i], params[i + 1]);
+        }
+        spec.put("queryParams", queryParams);
+        return spec;
+    }
+
+    private static HashMap<String, Object> request() {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("dbKey", "databases/" + DB_NAME);
+        request.put("tableName", "sales_records");
+        return request;
+    }
+
+    private static LocalContext context() {
+        return new LocalContext("test", 512, 600000, true);
+    }
+}
@@ -0,0 +1,128 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loads and transforms cut short by the checkpoint deadline and resumed with
+ * their continuationToken must give the same output as one uninterrupted run.
+ */
+public class CheckpointResumeTest {
+
+    private static final int ROWS = 25000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalObjectStore store;
+
+    @Before
+    public void upload() throws Exception {
+        store = new LocalObjectStore(folder.newFolder("store"));
+        File csv = SalesCsv.write(folder.newFile("sales.csv"), SalesCsv.rows(300000000L, ROWS, 5));
+        store.upload("b", "sales.csv", csv);
+    }
+
+    @After
+    public void deleteDatabases() {
+        for (String name : new String[]{"test-resume-whole.db", "test-resume-parts.db"}) {
+            new File("/tmp/" + name).delete();
+            new File("/tmp/" + name + OrderIdIndex.SUFFIX).delete();
+        }
+    }
+
+    @Test
+    public void resumedLoadMatchesAWholeLoad() throws Exception {
+        HashMap<String, Object> whole = loadRequest("test-resume-whole.db");
+        assertEquals("success", new CreateSQLiteDB(store).handleRequest(whole, context()).get("status"));
+
+        int calls = runToCompletion(new CreateSQLiteDB(store), loadRequest("test-resume-parts.db"));
+        assertTrue("expected the load to be split, took " + calls + " call(s)", calls > 1);
+
+        assertEquals(summary("test-resume-whole.db"), summary("test-resume-parts.db"));
+        assertTrue(summary("test-resume-parts.db").startsWith(ROWS + "|" + ROWS + "|"));
+    }
+
+    @Test
+    public void resumedTransformMatchesAWholeTransform() throws Exception {
+        assertEquals("success", new TransformCSV(store).handleRequest(transformRequest("whole.csv"), context()).get("status"));
+
+        int calls = runToCompletion(new TransformCSV(store), transformRequest("parts.csv"));
+        assertTrue("expected the transform to be split, took " + calls + " call(s)", calls > 1);
+
+        assertArrayEquals(Files.readAllBytes(store.download("b", "whole.csv", folder.newFile()).toPath()),
+                Files.readAllBytes(store.download("b", "parts.csv", folder.newFile()).toPath()));
+    }
+
+    /**
+     * Invoke the handler with a checkpoint margin longer than the function's
+     * timeout, so every call stops at its first deadline check, until it
+     * stops reporting "partial".
+     */
+    private static int runToCompletion(RequestHandler<HashMap<String, Object>, HashMap<String, Object>> handler,
+                                       HashMap<String, Object> request) {
+        request.put("checkpointMarginMs", 1200000);
+        int calls = 0;
+        while (true) {
+            HashMap<String, Object> response = handler.handleRequest(new HashMap<>(request), context());
+            calls++;
+            if (!"partial".equals(response.get("status"))) {
+                assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+                return calls;
+            }
+            assertTrue("no progress after " + calls + " calls", calls < 20);
+            request.put("continuationToken", response.get("continuationToken"));
+        }
+    }
+
+    private static HashMap<String, Object> loadRequest(String dbName) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("key", "sales.csv");
+        request.put("dbName", dbName);
+        return request;
+    }
+
+    private static HashMap<String, Object> transformRequest(String destKey) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("sourceBucket", "b");
+        request.put("sourceKey", "sales.csv");
+        request.put("destBucket", "b");
+        request.put("destKey", destKey);
+        return request;
+    }
+
+    /** Row count, distinct Order IDs and column totals of a database the load uploaded */
+    private String summary(String dbName) throws Exception {
+        File copy = store.download("b", "databases/" + dbName, folder.newFile());
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + copy.getAbsolutePath());
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*), COUNT(DISTINCT Order_ID), SUM(Units_Sold), "
+                     + "ROUND(SUM(Total_Profit), 2), MIN(Order_Date), MAX(Country) FROM sales_records")) {
+            rs.next();
+            StringBuilder summary = new StringBuilder();
+            for (int i = 1; i <= 6; i++) {
+                summary.append(i > 1 ? "|" : "").append(rs.getString(i));
+            }
+            return summary.toString();
+        }
+    }
+
+    private static LocalContext context() {
+        return new LocalContext("test", 512, 600000, true);
+    }
+}
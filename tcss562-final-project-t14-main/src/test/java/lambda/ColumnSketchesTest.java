@@ -0,0 +1,135 @@
+package lambda;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ColumnSketchesTest {
+
+    private static final String DB_NAME = "test-sketches.db";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void deleteDatabase() {
+        new File("/tmp/" + DB_NAME).delete();
+        new File("/tmp/" + DB_NAME + OrderIdIndex.SUFFIX).delete();
+    }
+
+    @Test
+    public void hyperLogLogEstimatesWithinItsErrorAndMergesExactly() {
+        int distinct = 50000;
+        HyperLogLog all = new HyperLogLog();
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < distinct; i++) {
+            String value = "order-" + i;
+            all.add(value);
+            all.add(value);
+            (i % 2 == 0 ? first : second).add(value);
+        }
+
+        assertEquals(distinct, all.estimate(), 3 * HyperLogLog.STANDARD_ERROR * distinct);
+        first.merge(second);
+        assertEquals(all.estimate(), first.estimate());
+        assertEquals(all.estimate(), HyperLogLog.fromBytes(all.toBytes()).estimate());
+    }
+
+    @Test
+    public void kllQuantilesStayWithinTheRankError() {
+        int n = 100000;
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            values.add((double) i);
+        }
+        Collections.shuffle(values, new Random(7));
+
+        KllSketch all = new KllSketch();
+        KllSketch first = new KllSketch();
+        KllSketch second = new KllSketch();
+        for (int i = 0; i < n; i++) {
+            all.add(values.get(i));
+            (i < n / 3 ? first : second).add(values.get(i));
+        }
+        first.merge(second);
+        KllSketch copy = KllSketch.fromBytes(all.toBytes());
+
+        assertEquals(n, all.getCount());
+        assertEquals(n, first.getCount());
+        assertTrue(all.isEstimate());
+        for (double q : new double[]{0.01, 0.25, 0.5, 0.9, 0.99}) {
+            assertEquals(q, all.quantile(q) / n, 2 * KllSketch.RANK_ERROR);
+            assertEquals(q, first.quantile(q) / n, 2 * KllSketch.RANK_ERROR);
+            assertEquals(all.quantile(q), copy.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void approxQueriesAgreeWithExactAnswers() throws Exception {
+        LocalObjectStore store = new LocalObjectStore(folder.newFolder("store"));
+        File csv = SalesCsv.write(folder.newFile("sales.csv"), SalesCsv.rows(100000000L, 5000, 1));
+        store.upload("b", "sales.csv", csv);
+
+        HashMap<String, Object> load = new HashMap<>();
+        load.put("bucket", "b");
+        load.put("key", "sales.csv");
+        load.put("dbName", DB_NAME);
+        assertEquals("success", new CreateSQLiteDB(store).handleRequest(load, context()).get("status"));
+
+        Map<String, Long> exact = new HashMap<>();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:/tmp/" + DB_NAME);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT Region, COUNT(DISTINCT Country) FROM sales_records GROUP BY Region")) {
+            while (rs.next()) {
+                exact.put(rs.getString(1), rs.getLong(2));
+            }
+        }
+
+        Map<String, Object> distinctParams = new HashMap<>();
+        distinctParams.put("function", "DISTINCT");
+        distinctParams.put("column", "Country");
+        distinctParams.put("groupBy", "Region");
+        List<Map<String, Object>> distinct = approx(store, distinctParams);
+        assertEquals(exact.size(), distinct.size());
+        for (Map<String, Object> row : distinct) {
+            long expected = exact.get((String) row.get("Region"));
+            assertEquals(expected, ((Number) row.get("approx_distinct")).doubleValue(), 3 * HyperLogLog.STANDARD_ERROR * expected);
+        }
+
+        Map<String, Object> quantileParams = new HashMap<>();
+        quantileParams.put("function", "QUANTILE");
+        quantileParams.put("column", "Units_Sold");
+        List<Map<String, Object>> quantiles = approx(store, quantileParams);
+        assertEquals(1, quantiles.size());
+        assertEquals(5000L, ((Number) quantiles.get(0).get("count")).longValue());
+        assertEquals(5000, ((Number) quantiles.get(0).get("p50")).doubleValue(), 10000 * 2 * KllSketch.RANK_ERROR);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> approx(ObjectStore store, Map<String, Object> params) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("bucket", "b");
+        request.put("dbKey", "databases/" + DB_NAME);
+        request.put("tableName", "sales_records");
+        request.put("queryType", "approx");
+        request.put("queryParams", params);
+        HashMap<String, Object> response = new QuerySQLite(store).handleRequest(request, context());
+        assertEquals(String.valueOf(response.get("message")), "success", response.get("status"));
+        return (List<Map<String, Object>>) response.get("results");
+    }
+
+    private static LocalContext context() {
+        return new LocalContext("test", 512, 600000, true);
+    }
+}
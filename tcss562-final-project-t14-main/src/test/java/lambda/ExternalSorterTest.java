@@ -0,0 +1,68 @@
+package lambda;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ExternalSorterTest {
+
+    private static final String[] PRIORITIES = {"C", "H", "M", "L", "?"};
+
+    @Test
+    public void spilledRunsMergeInKeyOrderAndKeepTies() throws Exception {
+        Random random = new Random(3);
+        List<String[]> records = new ArrayList<>();
+        for (int i = 0; i < 60000; i++) {
+            records.add(new String[]{String.valueOf(i), PRIORITIES[random.nextInt(PRIORITIES.length)],
+                    String.valueOf(random.nextInt(500)), "padding to make each record worth spilling"});
+        }
+
+        List<String[]> sorted = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(Arrays.asList(
+                new ExternalSorter.SortKey(1, false, true),
+                new ExternalSorter.SortKey(2, true, false)), 1 << 20)) {
+            for (String[] record : records) {
+                sorter.add(record);
+            }
+            Iterator<String[]> it = sorter.sorted();
+            while (it.hasNext()) {
+                sorted.add(it.next());
+            }
+            assertTrue("expected several runs, got " + sorter.getRunCount(), sorter.getRunCount() > 1);
+        }
+
+        // Priority ascending (unknown first, then L, M, H, C), units descending, input order for ties
+        List<String[]> expected = new ArrayList<>(records);
+        expected.sort(Comparator.<String[]>comparingInt(r -> ExternalSorter.priorityRank(r[1]))
+                .thenComparing(r -> -Integer.parseInt(r[2])));
+        assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("record " + i, expected.get(i), sorted.get(i));
+        }
+    }
+
+    @Test
+    public void linesSortNumbersAndDatesBeforeText() throws Exception {
+        String[] keys = {"n/a", "10", "9.5", "1/2/2015", "12/31/2014", "", "-3"};
+        List<String> sorted = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(
+                Collections.singletonList(new ExternalSorter.SortKey(0, false, false)), 1 << 20)) {
+            for (String key : keys) {
+                sorter.addLine(("line " + key).getBytes(StandardCharsets.UTF_8), new String[]{key});
+            }
+            Iterator<byte[]> it = sorter.sortedLines();
+            while (it.hasNext()) {
+                sorted.add(new String(it.next(), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(keys.length, sorted.size());
+        assertEquals("line -3", sorted.get(0));
+        assertTrue(sorted.indexOf("line 9.5") < sorted.indexOf("line 10"));
+        assertTrue(sorted.indexOf("line 12/31/2014") < sorted.indexOf("line 1/2/2015"));
+        assertTrue(sorted.indexOf("line 1/2/2015") < sorted.indexOf("line n/a"));
+        assertTrue(sorted.indexOf("line 10") < sorted.indexOf("line n/a"));
+    }
+}
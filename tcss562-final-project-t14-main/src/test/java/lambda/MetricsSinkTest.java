@@ -0,0 +1,130 @@
+package lambda;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batches leave the sink when they are full, when their oldest record is
+ * older than the flush interval, or when flushed explicitly, and land in the
+ * store as one NDJSON object each.
+ */
+public class MetricsSinkTest {
+
+    private static final long LONG_INTERVAL_MS = 600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalObjectStore store;
+
+    @Before
+    public void createStore() throws Exception {
+        store = new LocalObjectStore(folder.newFolder("store"));
+    }
+
+    @Test
+    public void fullBatchesAreWrittenAndTheRestWaits() throws Exception {
+        MetricsSink sink = new MetricsSink(store, "m", "size/", true, 2, LONG_INTERVAL_MS, 100);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sink.submit(record(i)));
+        }
+
+        awaitBatches(sink, 2);
+        assertEquals(1, ((Number) sink.getStats().get("queued")).intValue());
+        List<String> keys = store.list("m", "size/");
+        assertEquals(2, keys.size());
+        for (String key : keys) {
+            assertTrue(key, key.endsWith(".ndjson.gz"));
+            assertEquals(2, read(key, true).size());
+        }
+
+        // The partial batch goes out on an explicit flush
+        sink.flush();
+        keys = store.list("m", "size/");
+        assertEquals(3, keys.size());
+        Set<Integer> seen = new TreeSet<>();
+        for (String key : keys) {
+            for (JsonObject line : read(key, true)) {
+                seen.add(line.get("n").getAsInt());
+            }
+        }
+        assertEquals(new TreeSet<>(Arrays.asList(0, 1, 2, 3, 4)), seen);
+    }
+
+    @Test
+    public void partialBatchIsWrittenOnceItIsOldEnough() throws Exception {
+        MetricsSink sink = new MetricsSink(store, "m", "age/", false, 100, 200, 100);
+        sink.submit(record(1));
+        sink.submit(record(2));
+        sink.submit(record(3));
+
+        awaitBatches(sink, 1);
+        List<String> keys = store.list("m", "age/");
+        assertEquals(1, keys.size());
+        assertTrue(keys.get(0), keys.get(0).endsWith(".ndjson"));
+        List<JsonObject> lines = read(keys.get(0), false);
+        assertEquals(3, lines.size());
+        assertEquals("Query", lines.get(0).get("function").getAsString());
+        assertEquals(0, ((Number) sink.getStats().get("queued")).intValue());
+    }
+
+    @Test
+    public void flushAllWritesEverySharedSink() throws Exception {
+        File dir = folder.newFolder("metrics");
+        MetricsSink sink = MetricsSink.forDirectory(dir);
+        assertSame(sink, MetricsSink.forDirectory(dir));
+        sink.submit(record(7));
+        sink.submit(record(8));
+
+        MetricsSink.flushAll();
+        LocalObjectStore local = new LocalObjectStore(dir.getParentFile());
+        List<String> keys = local.list(dir.getName(), "metrics/");
+        assertEquals(1, keys.size());
+        try (InputStream input = new GZIPInputStream(local.open(dir.getName(), keys.get(0)))) {
+            assertEquals(2, parse(input).size());
+        }
+    }
+
+    private static Map<String, Object> record(int n) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("function", "Query");
+        record.put("n", n);
+        return record;
+    }
+
+    private static void awaitBatches(MetricsSink sink, int batches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (((Number) sink.getStats().get("flushedBatches")).intValue() < batches
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(batches, ((Number) sink.getStats().get("flushedBatches")).intValue());
+    }
+
+    private List<JsonObject> read(String key, boolean gzip) throws IOException {
+        try (InputStream input = gzip ? new GZIPInputStream(store.open("m", key)) : store.open("m", key)) {
+            return parse(input);
+        }
+    }
+
+    private static List<JsonObject> parse(InputStream input) throws IOException {
+        List<JsonObject> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(new JsonParser().parse(line).getAsJsonObject());
+        }
+        return lines;
+    }
+}
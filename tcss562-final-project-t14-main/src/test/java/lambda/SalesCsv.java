@@ -0,0 +1,69 @@
+package lambda;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/** Sales-record CSVs in the layout of the course data set, for the tests */
+final class SalesCsv {
+
+    static final String HEADER = "Region,Country,Item Type,Sales Channel,Order Priority,Order Date,Order ID,"
+            + "Ship Date,Units Sold,Unit Price,Unit Cost,Total Revenue,Total Cost,Total Profit";
+
+    private static final String[] REGIONS = {"Asia", "Europe", "Sub-Saharan Africa", "North America",
+            "Australia and Oceania", "Central America and the Caribbean", "Middle East and North Africa"};
+    private static final String[] ITEMS = {"Baby Food", "Beverages", "Cereal", "Clothes", "Cosmetics", "Fruits",
+            "Household", "Meat", "Office Supplies", "Personal Care", "Snacks", "Vegetables"};
+    private static final String[] PRIORITIES = {"L", "M", "H", "C"};
+
+    private SalesCsv() {
+    }
+
+    /** Rows for Order IDs firstId to firstId + count - 1; the same seed gives the same rows */
+    static List<String> rows(long firstId, int count, long seed) {
+        Random random = new Random(seed);
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int units = 1 + random.nextInt(10000);
+            double price = 1 + random.nextInt(60000) / 100.0;
+            double cost = Math.round(price * (40 + random.nextInt(50))) / 100.0;
+            int month = 1 + random.nextInt(12);
+            int day = 1 + random.nextInt(28);
+            int year = 2010 + random.nextInt(8);
+            rows.add(String.join(",",
+                    REGIONS[random.nextInt(REGIONS.length)],
+                    "Country " + random.nextInt(60),
+                    ITEMS[random.nextInt(ITEMS.length)],
+                    random.nextBoolean() ? "Online" : "Offline",
+                    PRIORITIES[random.nextInt(PRIORITIES.length)],
+                    month + "/" + day + "/" + year,
+                    String.valueOf(firstId + i),
+                    month + "/" + Math.min(28, day + 10) + "/" + year,
+                    String.valueOf(units),
+                    money(price),
+                    money(cost),
+                    money(units * price),
+                    money(units * cost),
+                    money(units * (price - cost))));
+        }
+        return rows;
+    }
+
+    /** Write the header and rows to file */
+    static File write(File file, List<String> rows) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        lines.addAll(rows);
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static String money(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}